@@ -0,0 +1,183 @@
+package hudson.plugins.codecover;
+
+import hudson.model.AbstractBuild;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of the {@link CoverageTree} of a build, as seen by the views.
+ *
+ * <p>
+ * Instances are lightweight views created on demand; the data stays in the
+ * trees held by the {@link CoverageReport}. A node is either in the top of the
+ * tree or in the segment of one of the children of the root, which is only
+ * loaded once the children of that node are asked for.
+ */
+public abstract class AbstractReport<SELF extends AbstractReport<SELF>> extends CoverageObject<SELF> {
+    private final CoverageReport report;
+
+    /**
+     * The tree this node is in: the top of the tree, or a segment.
+     */
+    private final CoverageTree tree;
+
+    /**
+     * Id of this node in {@link #tree}.
+     */
+    final int node;
+
+    AbstractReport(CoverageReport report, CoverageTree tree, int node) {
+        this.report = report;
+        this.tree = tree;
+        this.node = node;
+        if (tree != null) {
+            this.statement = tree.getRatio(node, CoverageXmlParser.STATEMENT);
+            this.branch = tree.getRatio(node, CoverageXmlParser.BRANCH);
+            this.loop = tree.getRatio(node, CoverageXmlParser.LOOP);
+            this.condition = tree.getRatio(node, CoverageXmlParser.CONDITION);
+        }
+    }
+
+    /**
+     * Gets the root of the tree this node belongs to.
+     */
+    CoverageReport getReport() {
+        return report;
+    }
+
+    CoverageTree getTree() {
+        return tree;
+    }
+
+    public String getName() {
+        return getTree().getName(node);
+    }
+
+    public String getDisplayName() {
+        return getName();
+    }
+
+    /**
+     * Gets the tree that holds the children of this node: its segment if
+     * it has one, which is loaded if needed.
+     */
+    CoverageTree getChildTree() {
+        if (node != 0 && getTree() == getReport().getTree()) {
+            CoverageTree segment = getReport().getSegment(node);
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return getTree();
+    }
+
+    /**
+     * Gets the id of this node in {@link #getChildTree()}.
+     */
+    int getChildNode(CoverageTree childTree) {
+        // a node is the root of its segment
+        return childTree == getTree() ? node : 0;
+    }
+
+    /**
+     * Gets the names of the nodes from the root to this node, the root excluded.
+     */
+    List<String> getPath() {
+        CoverageTree t = getTree();
+        List<String> path = new ArrayList<String>();
+        for (int n = node; n > 0; n = t.getParent(n)) {
+            path.add(t.getName(n));
+        }
+        if (t != getReport().getTree()) {
+            // the root of a segment is a child of the root of the report
+            path.add(t.getName(0));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Gets the child nodes, by name, in the order of the tree.
+     */
+    public Map<String, AbstractReport<?>> getChildren() {
+        CoverageTree t = getChildTree();
+        Map<String, AbstractReport<?>> r = new LinkedHashMap<String, AbstractReport<?>>();
+        for (int c = t.getFirstChild(getChildNode(t)); c >= 0; c = t.getNextSibling(c)) {
+            r.put(t.getName(c), getReport().createNode(t, c));
+        }
+        return r;
+    }
+
+    public boolean hasChildren() {
+        CoverageTree t = getChildTree();
+        return t.hasChildren(getChildNode(t));
+    }
+
+    public boolean hasChildrenStatementCoverage() {
+        CoverageTree t = getChildTree();
+        for (int c = t.getFirstChild(getChildNode(t)); c >= 0; c = t.getNextSibling(c)) {
+            if (t.hasMetric(c, CoverageXmlParser.STATEMENT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the page of the children asked for by the request, for the breakdown table.
+     */
+    public Breakdown getBreakdown(StaplerRequest req) {
+        return getBreakdown(req, null);
+    }
+
+    /**
+     * Gets the page of the children asked for by the parameters of the request
+     * whose names start with the given prefix, for one of several breakdown tables of a page.
+     */
+    public Breakdown getBreakdown(StaplerRequest req, String prefix) {
+        return Breakdown.of(this, req, prefix);
+    }
+
+    /**
+     * Serves a page of the children, sorted and filtered as described by {@link Breakdown}.
+     * The rows are written as HTML table rows, or as JSON with <tt>format=json</tt>,
+     * straight to the response. The number of matching children is in the
+     * <tt>X-Total-Count</tt> header.
+     */
+    public void doBreakdown(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        getBreakdown(req).serve(rsp, "json".equals(req.getParameter("format")));
+    }
+
+    /**
+     * Serves the child nodes under their names.
+     */
+    public AbstractReport<?> getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
+        CoverageTree t = getChildTree();
+        int c = t.findChild(getChildNode(t), token);
+        return c >= 0 ? getReport().createNode(t, c) : null;
+    }
+
+    @Override
+    public AbstractBuild<?,?> getBuild() {
+        return getReport().getBuild();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SELF getPreviousResult() {
+        CoverageReport prev = getReport().getPreviousResult();
+        if (prev == null) {
+            return null;
+        }
+        AbstractReport<?> r = prev.findNode(getPath());
+        return r != null && r.getClass() == getClass() ? (SELF) r : null;
+    }
+}
@@ -0,0 +1,365 @@
+package hudson.plugins.codecover;
+
+import hudson.Util;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One page of the children of a node, sorted and filtered on the server, as
+ * shown by the breakdown tables and served by {@link AbstractReport#doBreakdown}.
+ *
+ * <p>
+ * The children are sorted by their ids in the {@link CoverageTree}, comparing
+ * the counters and names in place, so that neither a view nor a {@link Ratio}
+ * is created for the rows that are not on the page. The parameters are:
+ *
+ * <dl>
+ * <dt>sort</dt><dd><tt>name</tt> or a metric: <tt>statement</tt>, <tt>branch</tt>, <tt>loop</tt>,
+ *     <tt>condition</tt>. The order of the tree by default</dd>
+ * <dt>order</dt><dd><tt>asc</tt>, by default, or <tt>desc</tt>. Children without the metric
+ *     come last either way</dd>
+ * <dt>filter</dt><dd>only the children whose name contains it, ignoring case</dd>
+ * <dt>start, count</dt><dd>the page, by default the first {@link #DEFAULT_PAGE_SIZE} children</dd>
+ * </dl>
+ *
+ * <p>
+ * A page showing several tables gives each one a prefix, which comes before
+ * the names of its parameters, so that each table is sorted and paged on its own.
+ */
+public final class Breakdown {
+
+    static final int DEFAULT_PAGE_SIZE = Integer.getInteger(Breakdown.class.getName() + ".pageSize", 100);
+
+    private static final String[] METRICS = { "statement", "branch", "loop", "condition" };
+
+    private final CoverageTree tree;
+
+    /**
+     * Comes before the names of the parameters of this breakdown.
+     */
+    private final String prefix;
+
+    /**
+     * The matching children, sorted.
+     */
+    private final Integer[] ids;
+
+    private final String sort;
+    private final boolean descending;
+    private final String filter;
+    private final int start;
+    private final int count;
+
+    /**
+     * @param node
+     *      the node of the tree whose children are shown.
+     */
+    Breakdown(CoverageTree tree, int node, String prefix, String sort, boolean descending, String filter, int start, int count) {
+        this.tree = tree;
+        this.prefix = prefix;
+        this.sort = sort;
+        this.descending = descending;
+        this.filter = filter;
+        this.count = count;
+
+        String key = filter != null ? filter.toLowerCase(Locale.ENGLISH) : null;
+        List<Integer> matching = new ArrayList<Integer>();
+        for (int c = tree.getFirstChild(node); c >= 0; c = tree.getNextSibling(c)) {
+            if (key == null || tree.getName(c).toLowerCase(Locale.ENGLISH).contains(key)) {
+                matching.add(c);
+            }
+        }
+        this.ids = matching.toArray(new Integer[matching.size()]);
+        Comparator<Integer> order = comparator(tree, sort, descending);
+        if (order != null) {
+            // stable, so that ties stay in the order of the tree
+            Arrays.sort(ids, order);
+        }
+        this.start = Math.max(0, Math.min(start, ids.length - 1));
+    }
+
+    static Breakdown of(AbstractReport<?> parent, StaplerRequest req, String prefix) {
+        CoverageTree tree = parent.getChildTree();
+        return of(tree, parent.getChildNode(tree), req, prefix);
+    }
+
+    /**
+     * Gets the breakdown described by the parameters of a request whose names start with the given prefix.
+     *
+     * @param prefix
+     *      null or empty for the parameters without a prefix.
+     */
+    static Breakdown of(CoverageTree tree, int node, StaplerRequest req, String prefix) {
+        prefix = prefix != null ? prefix : "";
+        return of(tree, node, prefix, req.getParameter(prefix + "sort"), req.getParameter(prefix + "order"),
+                req.getParameter(prefix + "filter"), req.getParameter(prefix + "start"), req.getParameter(prefix + "count"));
+    }
+
+    /**
+     * Gets the breakdown described by the given parameters, ignoring those that are invalid.
+     */
+    static Breakdown of(CoverageTree tree, int node, String sort, String order, String filter, String start, String count) {
+        return of(tree, node, "", sort, order, filter, start, count);
+    }
+
+    private static Breakdown of(CoverageTree tree, int node, String prefix, String sort, String order, String filter, String start, String count) {
+        sort = Util.fixEmptyAndTrim(sort);
+        if (sort != null && !sort.equals("name") && metric(sort) < 0) {
+            sort = null;
+        }
+        return new Breakdown(tree, node, prefix, sort, "desc".equals(order), Util.fixEmptyAndTrim(filter),
+                parseInt(start, 0), Math.max(1, parseInt(count, DEFAULT_PAGE_SIZE)));
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        value = Util.fixEmptyAndTrim(value);
+        try {
+            return value != null ? Math.max(0, Integer.parseInt(value)) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static int metric(String name) {
+        return Arrays.asList(METRICS).indexOf(name);
+    }
+
+    private static Comparator<Integer> comparator(final CoverageTree tree, String sort, final boolean descending) {
+        if (sort == null) {
+            return descending ? new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return b - a;
+                }
+            } : null;
+        }
+        final int metric = metric(sort);
+        if (metric < 0) {
+            return new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int r = tree.compareNames(a, b);
+                    return descending ? -r : r;
+                }
+            };
+        }
+        return new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                boolean hasA = tree.hasMetric(a, metric), hasB = tree.hasMetric(b, metric);
+                if (!hasA || !hasB) {
+                    return hasA == hasB ? 0 : hasA ? -1 : 1;
+                }
+                int r = Double.compare(ratio(tree, a, metric), ratio(tree, b, metric));
+                return descending ? -r : r;
+            }
+        };
+    }
+
+    private static double ratio(CoverageTree tree, int node, int metric) {
+        long total = tree.getTotal(node, metric);
+        return total <= 0 ? 0 : (double) tree.getCovered(node, metric) / total;
+    }
+
+    /**
+     * Gets the number of children that match the filter.
+     */
+    public int getTotal() {
+        return ids.length;
+    }
+
+    /**
+     * Gets the index of the first row of the page, from 0.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the index after the last row of the page.
+     */
+    public int getEnd() {
+        return Math.min(start + count, ids.length);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Gets what comes before the names of the parameters of this breakdown.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public boolean isPaged() {
+        return start > 0 || getEnd() < ids.length;
+    }
+
+    /**
+     * Gets the rows of the page as HTML, for the breakdown tables.
+     *
+     * @see #writeRows(Appendable)
+     */
+    public String printRows() {
+        StringBuilder buf = new StringBuilder(256 * (getEnd() - start));
+        try {
+            writeRows(buf);
+        } catch (IOException e) {
+            throw new AssertionError(e); // a StringBuilder doesn't throw
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Gets the query of this breakdown sorted by another column, or in the
+     * other order if it already is sorted by that column. The first page is shown.
+     */
+    public String getSortLink(String column) {
+        boolean desc = column.equals(sort) && !descending;
+        return query(column, desc, 0);
+    }
+
+    /**
+     * Gets the query of another page of this breakdown.
+     */
+    public String getPageLink(int start) {
+        return query(sort, descending, Math.max(0, start));
+    }
+
+    private String query(String sort, boolean descending, int start) {
+        StringBuilder b = new StringBuilder("?");
+        if (sort != null) {
+            b.append(prefix).append("sort=").append(sort).append('&');
+        }
+        if (descending) {
+            b.append(prefix).append("order=desc&");
+        }
+        if (filter != null) {
+            try {
+                b.append(prefix).append("filter=").append(URLEncoder.encode(filter, "UTF-8")).append('&');
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        if (count != DEFAULT_PAGE_SIZE) {
+            b.append(prefix).append("count=").append(count).append('&');
+        }
+        if (start > 0) {
+            b.append(prefix).append("start=").append(start).append('&');
+        }
+        b.setLength(b.length() - 1);
+        return b.length() > 0 ? b.toString() : "?";
+    }
+
+    /**
+     * Writes the page as HTML table rows, or as JSON, to a response. The
+     * number of matching children goes in the <tt>X-Total-Count</tt> header.
+     */
+    void serve(StaplerResponse rsp, boolean json) throws IOException {
+        rsp.setContentType(json ? "application/json;charset=UTF-8" : "text/html;charset=UTF-8");
+        rsp.setHeader("X-Total-Count", Integer.toString(getTotal()));
+        PrintWriter w = rsp.getWriter();
+        if (json) {
+            writeJSON(w);
+        } else {
+            writeRows(w);
+        }
+        w.flush();
+    }
+
+    /**
+     * Writes the rows of the page as HTML table rows. Packages and source files
+     * link to their page.
+     */
+    void writeRows(Appendable out) throws IOException {
+        for (int i = start; i < getEnd(); i++) {
+            int c = ids[i];
+            String name = tree.getName(c);
+            out.append("<tr><td class='nowrap'>");
+            byte kind = tree.getKind(c);
+            if (kind == CoverageTree.PACKAGE || kind == CoverageTree.FILE) {
+                out.append("<a href='");
+                escape(Util.rawEncode(name), out);
+                out.append("/'>");
+                escape(name, out);
+                out.append("</a>");
+            } else {
+                escape(name, out);
+            }
+            out.append("</td>\n");
+            for (int m = 0; m < 4; m++) {
+                if (tree.hasMetric(c, m)) {
+                    CoverageObject.printRatioCell(false, tree.getCovered(c, m), tree.getTotal(c, m), out);
+                }
+            }
+            out.append("</tr>\n");
+        }
+    }
+
+    /**
+     * Writes the page as JSON:
+     *
+     * <pre>
+     * {"total":1234,"start":0,"rows":[{"name":"org.acme","statement":{"covered":12,"total":40}}, ...]}
+     * </pre>
+     *
+     * A metric a child doesn't have is left out.
+     */
+    void writeJSON(Appendable out) throws IOException {
+        out.append("{\"total\":").append(Integer.toString(ids.length))
+                .append(",\"start\":").append(Integer.toString(start))
+                .append(",\"rows\":[");
+        // reused for every row
+        StringBuilder row = new StringBuilder(256);
+        for (int i = start; i < getEnd(); i++) {
+            int c = ids[i];
+            row.setLength(0);
+            row.append(i > start ? ",{\"name\":" : "{\"name\":");
+            Trend.appendString(row, tree.getName(c));
+            for (int m = 0; m < 4; m++) {
+                if (tree.hasMetric(c, m)) {
+                    row.append(",\"").append(METRICS[m]).append("\":{\"covered\":").append(tree.getCovered(c, m))
+                            .append(",\"total\":").append(tree.getTotal(c, m)).append('}');
+                }
+            }
+            out.append(row.append('}'));
+        }
+        out.append("]}");
+    }
+
+    private static void escape(String s, Appendable out) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<': out.append("&lt;"); break;
+            case '>': out.append("&gt;"); break;
+            case '&': out.append("&amp;"); break;
+            case '\'': out.append("&#39;"); break;
+            case '"': out.append("&quot;"); break;
+            default: out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package hudson.plugins.codecover;
+
+/**
+ * Coverage of a class.
+ */
+public final class ClassReport extends AbstractReport<ClassReport> {
+    ClassReport(CoverageReport report, CoverageTree tree, int node) {
+        super(report, tree, node);
+    }
+}
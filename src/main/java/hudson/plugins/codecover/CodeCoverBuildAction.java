@@ -15,13 +15,22 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,14 +45,34 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
 	
     public final AbstractBuild<?,?> owner;
 
-    private transient WeakReference<CoverageReport> report;
+    /**
+     * Coverage of the individual report files. Null unless the build was
+     * recorded before the {@link CoverageSnapshot} existed; the coverage
+     * fields are null too in that case, and come from the snapshot.
+     */
+    private List<ModuleCoverage> modules;
 
+    /**
+     * Opened on first use.
+     */
+    private transient volatile CoverageSnapshot snapshot;
+
+    /**
+     * Set if the build has no readable snapshot, so that it is not looked for again.
+     */
+    private transient volatile boolean noSnapshot;
 
     /**
      * The thresholds that applied when this build was built.
      */
     private final CodeCoverHealthReportThresholds thresholds;
 
+    /**
+     * The packages and source files that made the coverage drop since the
+     * previous build, worst first. Null if it didn't drop.
+     */
+    private List<CoverageRegression> regressions;
+
     public CodeCoverBuildAction(AbstractBuild<?,?> owner, Rule rule, Ratio statementCoverage, Ratio branchCoverage, Ratio loopCoverage, Ratio conditionCoverage, CodeCoverHealthReportThresholds thresholds) {
         this.owner = owner;
         this.statement = statementCoverage;
@@ -65,6 +94,81 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
         return "codecover";
     }
 
+    /**
+     * Gets the coverage snapshot of this build.
+     *
+     * @return null if the build was recorded before snapshots existed,
+     *      or if this action isn't attached to a build.
+     */
+    /*package*/ CoverageSnapshot getSnapshot() {
+        CoverageSnapshot s = snapshot;
+        if (s == null && !noSnapshot && owner != null) {
+            File file = CoverageSnapshot.getFile(owner);
+            try {
+                s = snapshot = CoverageSnapshot.open(file);
+            } catch (FileNotFoundException e) {
+                noSnapshot = true;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to open " + file, e);
+                noSnapshot = true;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Forgets the snapshot, so that the next use opens the file again
+     * after it was rewritten.
+     */
+    /*package*/ void resetSnapshot() {
+        snapshot = null;
+        noSnapshot = false;
+    }
+
+    /**
+     * Gets the snapshot the snapshot of this build is a delta against.
+     *
+     * @return null if the snapshot of this build is a keyframe, or if the
+     *      keyframe build is gone.
+     */
+    /*package*/ CoverageSnapshot getKeyframeSnapshot() {
+        CoverageSnapshot s = getSnapshot();
+        if (s == null || !s.isDelta()) {
+            return null;
+        }
+        AbstractBuild<?,?> b = owner.getParent().getBuildByNumber(s.getKeyframe());
+        CodeCoverBuildAction a = b != null ? b.getAction(CodeCoverBuildAction.class) : null;
+        return a != null ? a.getSnapshot() : null;
+    }
+
+    private Ratio fromSnapshot(Ratio field, int metric) {
+        if (field != null) {
+            return field;
+        }
+        CoverageSnapshot s = getSnapshot();
+        return s != null ? s.getRatio(metric) : null;
+    }
+
+    @Override
+    public Ratio getStatementCoverage() {
+        return fromSnapshot(statement, CoverageXmlParser.STATEMENT);
+    }
+
+    @Override
+    public Ratio getBranchCoverage() {
+        return fromSnapshot(branch, CoverageXmlParser.BRANCH);
+    }
+
+    @Override
+    public Ratio getLoopCoverage() {
+        return fromSnapshot(loop, CoverageXmlParser.LOOP);
+    }
+
+    @Override
+    public Ratio getConditionCoverage() {
+        return fromSnapshot(condition, CoverageXmlParser.CONDITION);
+    }
+
     /**
      * Get the coverage {@link hudson.model.HealthReport}.
      *
@@ -77,6 +181,10 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
             return null;
         }
         thresholds.ensureValid();
+        Ratio statement = getStatementCoverage();
+        Ratio branch = getBranchCoverage();
+        Ratio loop = getLoopCoverage();
+        Ratio condition = getConditionCoverage();
         int score = 100, percent;
         ArrayList<Localizable> reports = new ArrayList<Localizable>(5);
         if (statement != null && thresholds.getMaxStatement() > 0) {
@@ -130,6 +238,76 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
         return score;
     }
 
+    /**
+     * Gets the packages and source files that made the coverage drop since the
+     * previous build, worst first, metric by metric.
+     *
+     * @return empty if the coverage didn't drop.
+     * @see CoverageRegression
+     */
+    public List<CoverageRegression> getRegressions() {
+        if (regressions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(regressions);
+    }
+
+    /**
+     * Finds the packages and source files that made the coverage drop since a
+     * previous build, if it dropped at all.
+     *
+     * @return the number of regressions found.
+     */
+    /*package*/ int attributeRegressions(CodeCoverBuildAction previous) throws IOException {
+        Ratio[] before = previous.getRatios(), after = getRatios();
+        boolean dropped = false;
+        for (int m = 0; m < after.length; m++) {
+            dropped |= before[m] != null && after[m] != null && after[m].getPercentageFloat() < before[m].getPercentageFloat();
+        }
+        if (!dropped) {
+            return 0;
+        }
+        List<CoverageRegression> r = CoverageRegression.attribute(
+                CoverageDiff.compute(owner.getProject(), previous, this), before, after);
+        regressions = r.isEmpty() ? null : r;
+        return r.size();
+    }
+
+    private Ratio[] getRatios() {
+        return new Ratio[] { getStatementCoverage(), getBranchCoverage(), getLoopCoverage(), getConditionCoverage() };
+    }
+
+    /**
+     * Gets the coverage of every report file that contributed to this build.
+     *
+     * @return empty if the build was recorded before per-report coverage was kept.
+     */
+    public List<ModuleCoverage> getModules() {
+        if (modules != null) {
+            return Collections.unmodifiableList(modules);
+        }
+        CoverageSnapshot s = getSnapshot();
+        if (s != null) {
+            try {
+                return s.getModules();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read the modules of " + owner, e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets the coverage of every report file that contributed to this build, by name.
+     */
+    /*package*/ Map<String, ModuleCoverage> getModulesByName() {
+        Map<String, ModuleCoverage> r = new HashMap<String, ModuleCoverage>();
+        for (ModuleCoverage m : getModules()) {
+            r.put(m.getName(), m);
+        }
+        return r;
+    }
+
     public Object getTarget() {
         return getResult();
     }
@@ -157,19 +335,35 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
 
     /**
      * Obtains the detailed {@link CoverageReport} instance.
+     *
+     * @see CoverageReportCache
      */
-    public synchronized CoverageReport getResult() {
-
-        if(report!=null) {
-            final CoverageReport r = report.get();
-            if(r!=null)     return r;
+    public CoverageReport getResult() {
+        try {
+            return CoverageReportCache.INSTANCE.get(this);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load the coverage report of " + owner, e);
+            return new CoverageReport(this);
         }
+    }
 
-		// Generate the report
-		CoverageReport r = new CoverageReport(this);
+    @Override
+    CoverageHistory getHistory() {
+        return getHistory(owner);
+    }
 
-		report = new WeakReference<CoverageReport>(r);
-		return r;
+    /**
+     * Reads the coverage history of the job of the given build.
+     *
+     * @return null if it couldn't be read.
+     */
+    /*package*/ static CoverageHistory getHistory(AbstractBuild<?,?> build) {
+        try {
+            return CoverageHistory.of(build.getParent());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the coverage history of " + build.getParent(), e);
+            return null;
+        }
     }
 
     @Override
@@ -201,67 +395,207 @@ public final class CodeCoverBuildAction extends CoverageObject<CodeCoverBuildAct
      *      if failed to parse the file.
      */
     public static CodeCoverBuildAction load(AbstractBuild<?,?> owner, Rule rule, CodeCoverHealthReportThresholds thresholds, FilePath... files) throws IOException {
-        Ratio ratios[] = null;
+        List<Ratio[]> reports = new ArrayList<Ratio[]>(files.length);
         for (FilePath f: files ) {
             InputStream in = f.read();
             try {
-                ratios = loadRatios(in, ratios);
+                reports.add(loadTree(in).getTotals(0));
             } finally {
                 in.close();
             }
         }
+        Ratio[] ratios = CoverageAggregator.merge(reports);
         return new CodeCoverBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],thresholds);
     }
 
     public static CodeCoverBuildAction load(AbstractBuild<?,?> owner, Rule rule, CodeCoverHealthReportThresholds thresholds, InputStream... streams) throws IOException {
-        Ratio ratios[] = null;
+        List<Ratio[]> reports = new ArrayList<Ratio[]>(streams.length);
         for (InputStream in: streams) {
-          ratios = loadRatios(in, ratios);
+            reports.add(loadTree(in).getTotals(0));
         }
+        Ratio[] ratios = CoverageAggregator.merge(reports);
         return new CodeCoverBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],thresholds);
     }
 
-    private static Ratio[] loadRatios(InputStream in, Ratio[] r) throws IOException {
-	
-        if (r == null || r.length < 4) 
-            r = new Ratio[4];
-	
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-		
+    /**
+     * Constructs the object from a {@link CoverageSummary} computed where the reports are.
+     * The coverage is written to the {@link CoverageSnapshot} of the build rather
+     * than kept in the object, so that it is not serialized into <tt>build.xml</tt>.
+     *
+     * @param keyframeInterval
+     *      every how many builds the snapshot is written in full; the snapshots
+     *      in between are deltas against the last full one. 1 or less to
+     *      always write it in full.
+     */
+    public static CodeCoverBuildAction load(AbstractBuild<?,?> owner, Rule rule, CodeCoverHealthReportThresholds thresholds, CoverageSummary summary, CoverageTree tree, int keyframeInterval) throws IOException {
+        Ratio[] totals = { summary.getStatement(), summary.getBranch(), summary.getLoop(), summary.getCondition() };
+        File file = CoverageSnapshot.getFile(owner);
+
+        // a delta against the keyframe of the previous build, unless that is too far back
+        AbstractBuild<?,?> prev = owner.getPreviousBuild();
+        CodeCoverBuildAction prevAction = prev != null ? prev.getAction(CodeCoverBuildAction.class) : null;
+        CoverageSnapshot prevSnapshot = prevAction != null ? prevAction.getSnapshot() : null;
+        if (keyframeInterval > 1 && prevSnapshot != null && prevSnapshot.getDistance() + 1 < keyframeInterval) {
+            CoverageSnapshot keyframe = prevSnapshot.isDelta() ? prevAction.getKeyframeSnapshot() : prevSnapshot;
+            if (keyframe != null) {
+                int keyframeNumber = prevSnapshot.isDelta() ? prevSnapshot.getKeyframe() : prev.getNumber();
+                CoverageSnapshot.write(file, totals, summary.getModules(), tree, keyframe, keyframeNumber, prevSnapshot.getDistance() + 1);
+                return new CodeCoverBuildAction(owner,rule,null,null,null,null,thresholds);
+            }
+        }
+        CoverageSnapshot.write(file, totals, summary.getModules(), tree);
+        return new CodeCoverBuildAction(owner,rule,null,null,null,null,thresholds);
+    }
+
+    /**
+     * Rewrites the snapshots stored as deltas against the snapshot of a build
+     * that is about to be deleted, while it can still be read: the first of them
+     * becomes a keyframe, and the others deltas against it.
+     */
+    /*package*/ static void rewriteDeltasAgainst(AbstractBuild<?,?> build) throws IOException {
+        CodeCoverBuildAction action = build.getAction(CodeCoverBuildAction.class);
+        CoverageSnapshot keyframe = action != null ? action.getSnapshot() : null;
+        if (keyframe == null || keyframe.isDelta()) {
+            return;
+        }
         try {
-			String line = null;
-			while((line = reader.readLine()) != null) {
-				if(line.contains("&nbsp;/&nbsp;")) {
-					line = line.trim();
-					String[] parts = line.split("&nbsp;/&nbsp;");
-					int numerator = 0;
-					int denominator = 0;
-					try {
-						numerator = Integer.parseInt(parts[0]);
-						denominator = Integer.parseInt(parts[1]);
-					} catch (NumberFormatException e) {
-						numerator = -1;
-						denominator = -1;
-					}
-					if (r[0] == null) {
-						r[0] = new Ratio((float) numerator, (float) denominator);
-					} else if (r[1] == null) {
-						r[1] = new Ratio((float) numerator, (float) denominator);
-					} else if (r[2] == null) {
-						r[2] = new Ratio((float) numerator, (float) denominator);
-					} else if (r[3] == null) {
-						r[3] = new Ratio((float) numerator, (float) denominator);
-						break;
-					}
-				}
-			}
-			reader.close();
-		} finally {
-                reader.close();
+            rewriteDeltasAgainst(build, keyframe);
+        } finally {
+            action.resetSnapshot();
+            CoverageSnapshot.evict(CoverageSnapshot.getFile(build));
         }
-        return r;
+    }
+
+    private static void rewriteDeltasAgainst(AbstractBuild<?,?> build, CoverageSnapshot keyframe) throws IOException {
+        // the deltas against a keyframe are the builds right after it
+        List<CodeCoverBuildAction> deltas = new ArrayList<CodeCoverBuildAction>();
+        List<CoverageTree> trees = new ArrayList<CoverageTree>();
+        for (AbstractBuild<?,?> b = build.getNextBuild(); b != null; b = b.getNextBuild()) {
+            CodeCoverBuildAction a = b.getAction(CodeCoverBuildAction.class);
+            if (a == null) {
+                if (b.isBuilding()) {
+                    continue;
+                }
+                break;
+            }
+            CoverageSnapshot s = a.getSnapshot();
+            if (s == null || s.getKeyframe() != build.getNumber()) {
+                break;
+            }
+            deltas.add(a);
+            trees.add(s.getTree(keyframe));
+        }
+
+        CoverageSnapshot first = null;
+        for (int i = 0; i < deltas.size(); i++) {
+            CodeCoverBuildAction a = deltas.get(i);
+            CoverageSnapshot s = a.getSnapshot();
+            File file = CoverageSnapshot.getFile(a.owner);
+            if (first == null) {
+                CoverageSnapshot.write(file, s.getRatios(), s.getModules(), trees.get(i));
+            } else {
+                CoverageSnapshot.write(file, s.getRatios(), s.getModules(), trees.get(i), first, deltas.get(0).owner.getNumber(), i);
+            }
+            a.resetSnapshot();
+            CoverageReportCache.INSTANCE.invalidate(a);
+            if (first == null) {
+                first = a.getSnapshot();
+                if (first == null) {
+                    throw new IOException("Failed to open the rewritten " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the coverage tree of a single report. The HTML report only
+     * yields the project totals, so its tree is just the root.
+     */
+    /*package*/ static CoverageTree loadTree(InputStream in) throws IOException {
+        BufferedInputStream buf = new BufferedInputStream(in);
+        if (isXmlReport(buf)) {
+            return parseXmlReport(buf);
+        }
+        return CoverageTree.of(scanHtmlReport(Channels.newChannel(buf)));
+    }
+
+    /**
+     * Parses the coverage tree of a single report on the local file system.
+     * HTML reports are scanned straight from the file channel.
+     *
+     * @see #loadTree(InputStream)
+     */
+    /*package*/ static CoverageTree loadTree(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(SNIFF_LENGTH);
+            while (head.hasRemaining() && channel.read(head) > 0) {
+                // fill the buffer
+            }
+            channel.position(0);
+            if (isXmlReport(head.array(), head.position())) {
+                return parseXmlReport(new BufferedInputStream(in));
+            }
+            return CoverageTree.of(scanHtmlReport(channel));
+        } finally {
+            in.close();
+        }
+    }
 
+    private static CoverageTree parseXmlReport(InputStream in) throws IOException {
+        CoverageTree.Builder builder = new CoverageTree.Builder();
+        CoverageXmlParser.parse(in, builder);
+        return builder.build();
     }
 
+    /**
+     * Tells the native CodeCover XML report apart from the HTML report by
+     * looking at the beginning of the stream. The stream is reset afterwards.
+     */
+    static boolean isXmlReport(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[SNIFF_LENGTH];
+        in.mark(SNIFF_LENGTH);
+        int len = 0, n;
+        while (len < head.length && (n = in.read(head, len, head.length - len)) > 0) {
+            len += n;
+        }
+        in.reset();
+        return isXmlReport(head, len);
+    }
+
+    private static boolean isXmlReport(byte[] head, int len) throws IOException {
+        String s = new String(head, 0, len, "ISO-8859-1").toLowerCase(Locale.ENGLISH);
+        if (s.contains("<html") || s.contains("<!doctype html")) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '<') {
+                return true;
+            }
+            // skip whitespace and a UTF-8 byte order mark
+            if (!Character.isWhitespace(c) && c != '\u00ef' && c != '\u00bb' && c != '\u00bf') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scrapes the project totals from the CodeCover HTML report.
+     */
+    private static Ratio[] scanHtmlReport(ReadableByteChannel channel) throws IOException {
+        HtmlReportScanner scanner = new HtmlReportScanner();
+        Ratio[] r = scanner.scan(channel);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Scanned %d bytes of HTML report at %.1f MB/s",
+                    scanner.getBytesScanned(), scanner.getThroughput()));
+        }
+        return r;
+    }
+
+    private static final int SNIFF_LENGTH = 1024;
+
     private static final Logger logger = Logger.getLogger(CodeCoverBuildAction.class.getName());
 }
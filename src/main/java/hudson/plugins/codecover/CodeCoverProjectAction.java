@@ -7,7 +7,10 @@ import hudson.model.Result;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * Project view extension by CodeCover plugin.
@@ -51,4 +54,72 @@ public final class CodeCoverProjectAction implements Action {
        if (getLastResult() != null)
           getLastResult().doGraph(req,rsp);
     }
+
+    /**
+     * Serves the data of the trend graph of the last build.
+     *
+     * @see CoverageObject#doTrend(StaplerRequest, StaplerResponse)
+     */
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        CodeCoverBuildAction last = getLastResult();
+        if (last != null) {
+            last.doTrend(req, rsp);
+        } else {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Compares the coverage of two builds, given by their numbers in the <tt>from</tt>
+     * and <tt>to</tt> parameters: by default the last build and the one before it
+     * that recorded coverage. The diff is shown as a page, or served as JSON with
+     * <tt>format=json</tt>, where <tt>all=true</tt> also lists what didn't change.
+     * A parameter that isn't a number is answered with a 400, and a build that
+     * doesn't exist or didn't record coverage with a 404.
+     *
+     * @see CoverageDiff
+     */
+    public void doDiff(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        String toNumber = req.getParameter("to");
+        String fromNumber = req.getParameter("from");
+        CodeCoverBuildAction to;
+        CodeCoverBuildAction from;
+        try {
+            to = toNumber != null ? getResult(toNumber) : getLastResult();
+            from = fromNumber != null ? getResult(fromNumber) : to != null ? to.getPreviousResult() : null;
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (from == null || to == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        CoverageDiff diff = CoverageDiff.of(project, from, to);
+        if ("json".equals(req.getParameter("format"))) {
+            rsp.setContentType("application/json;charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            diff.writeJSON(w, "true".equals(req.getParameter("all")));
+            w.flush();
+        } else {
+            rsp.forward(diff, "index", req);
+        }
+    }
+
+    /**
+     * Gets the coverage of a build by its number.
+     *
+     * @return null if there is no such build or it didn't record coverage.
+     * @throws NumberFormatException if the number can't be parsed.
+     */
+    private CodeCoverBuildAction getResult(String number) {
+        int n;
+        try {
+            n = Integer.parseInt(number.trim());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Not a build number: " + number);
+        }
+        AbstractBuild<?,?> b = project.getBuildByNumber(n);
+        return b != null ? b.getAction(CodeCoverBuildAction.class) : null;
+    }
 }
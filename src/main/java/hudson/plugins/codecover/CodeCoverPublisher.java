@@ -4,25 +4,36 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.NullStream;
 
 import net.sf.json.JSONObject;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@link Publisher} that captures CodeCover coverage reports.
@@ -46,53 +57,299 @@ public class CodeCoverPublisher extends Recorder {
      * {@link hudson.model.HealthReport} thresholds to apply.
      */
     public CodeCoverHealthReportThresholds healthReports = new CodeCoverHealthReportThresholds();
+
+    /**
+     * If true, the reports are located, parsed and aggregated on the agent
+     * and only a {@link CoverageSummary} is sent back, with the compressed trees
+     * of the reports that were parsed. The raw reports are not copied
+     * into the build folder in that case, so they can't be downloaded from the
+     * build, and the archived sources are shown without their line coverage.
+     */
+    public boolean parseOnAgent;
+
+    /**
+     * Comma separated directories that are not searched for reports.
+     * If null, {@link ReportLocator#DEFAULT_EXCLUDES} applies.
+     */
+    public String excludes;
+
+    /**
+     * Maximum number of reports to record, or 0 for no limit.
+     * The search stops at the limit, so which reports are kept then
+     * depends on the order in which the file system lists them.
+     */
+    public int maxReports;
+
+    /**
+     * Comma separated source directories, relative to the workspace, whose
+     * files are archived for the source view. If null, no source is archived.
+     *
+     * @see SourceArchive
+     */
+    public String sourceDirectories;
+
+    public String getExcludes() {
+        return excludes != null ? excludes : ReportLocator.DEFAULT_EXCLUDES;
+    }
     
     /**
      * look for codecover reports based in the configured parameter includes.
-     * 'includes' is 
-     *   - an Ant-style pattern
-     *   - a list of files and folders separated by the characters ;:,  
+     *
+     * @see ReportLocator
      */
     protected static FilePath[] locateCoverageReports(FilePath workspace, String includes) throws IOException, InterruptedException {
+        return locateCoverageReports(workspace, includes, ReportLocator.DEFAULT_EXCLUDES, 0);
+    }
 
-    	// First use ant-style pattern
-    	try {
-        	FilePath[] ret = workspace.list(includes);
-            if (ret.length > 0) { 
-            	return ret;
-            }
-        } catch (Exception e) {
-        }
-
-        // If it fails, do a legacy search
-        ArrayList<FilePath> files = new ArrayList<FilePath>();
-		String parts[] = includes.split("\\s*[;:,]+\\s*");
-		for (String path : parts) {
-			FilePath src = workspace.child(path);
-			if (src.exists()) {
-				if (src.isDirectory()) {
-					files.addAll(Arrays.asList(src.list("**/coverage*.xml")));
-				} else {
-					files.add(src);
-				}
-			}
-		}
-		return files.toArray(new FilePath[files.size()]);
-	}
+    /**
+     * look for codecover reports in a single round trip to the machine that holds the workspace.
+     *
+     * @see ReportLocator
+     */
+    protected static FilePath[] locateCoverageReports(FilePath workspace, String includes, String excludes, int maxReports) throws IOException, InterruptedException {
+        String[] paths = workspace.act(new ReportLocator(includes, excludes, maxReports));
+        FilePath[] files = new FilePath[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            files[i] = workspace.child(paths[i]);
+        }
+        return files;
+    }
 	
     /**
-     * save codecover reports from the workspace to build folder  
+     * save codecover reports from the workspace to build folder, and parse them
+     * on the way: every report is read at most once, the same stream feeding
+     * both the copy and the parser. The reports are processed in parallel.
+     *
+     * <p>
+     * The copies go to the job's {@link ReportStore}, so a report that was
+     * already archived by an earlier build is neither transferred nor stored again.
+     * The caller holds the store, see {@link ReportStore#acquire()}.
      */
-	protected static void saveCoverageReports(FilePath folder, FilePath[] files) throws IOException, InterruptedException {
+	protected static CoverageSummary saveCoverageReports(FilePath workspace, ReportStore store, File folder, FilePath[] files, Map<String, ModuleCoverage> previous) throws IOException, InterruptedException {
 		folder.mkdirs();
+		List<ArchivingSource> sources = new ArrayList<ArchivingSource>(files.length);
 		for (int i = 0; i < files.length; i++) {
 			String name = "coverage" + (i > 0 ? i : "") + ".xml";
 			FilePath src = files[i];
-			FilePath dst = folder.child(name);
-			src.copyTo(dst);
+			sources.add(new ArchivingSource(src, store, folder, name, moduleName(workspace.getRemote(), src.getRemote())));
 		}
+		return CoverageAggregator.aggregate(sources, previous);
 	}
 
+    /**
+     * Gets the path of a report relative to the workspace.
+     */
+    static String moduleName(String workspace, String remote) {
+        if (!remote.startsWith(workspace)) {
+            return remote;
+        }
+        String name = remote.substring(workspace.length());
+        while (name.startsWith("/") || name.startsWith("\\")) {
+            name = name.substring(1);
+        }
+        return name.replace('\\', '/');
+    }
+
+    /**
+     * A report that is archived in the {@link ReportStore} while it is parsed.
+     *
+     * <p>
+     * The digest computed on the agent only tells whether the report may be
+     * in the store already. What is read from the agent is stored under the
+     * digest of the bytes that actually came in, and the module records that one.
+     */
+    private static final class ArchivingSource implements CoverageAggregator.Source {
+        private final FilePath src;
+        private final ReportStore store;
+        private final File folder;
+        private final String name;
+        private final String module;
+        private String digest;
+
+        ArchivingSource(FilePath src, ReportStore store, File folder, String name, String module) {
+            this.src = src;
+            this.store = store;
+            this.folder = folder;
+            this.name = name;
+            this.module = module;
+        }
+
+        public String getRemote() {
+            return src.getRemote();
+        }
+
+        public String getModuleName() {
+            return module;
+        }
+
+        public String digest() throws IOException, InterruptedException {
+            // computed where the report is, only the digest comes back
+            digest = src.digest();
+            return digest;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public boolean skip() throws IOException, InterruptedException {
+            if (!store.contains(digest)) {
+                String expected = digest;
+                copyAndParse(false);
+                if (!digest.equals(expected)) {
+                    // changed meanwhile: parsed from the copy just stored
+                    return false;
+                }
+            }
+            store.link(digest, folder, name);
+            return true;
+        }
+
+        public CoverageTree parse() throws IOException, InterruptedException {
+            CoverageTree tree;
+            if (store.contains(digest)) {
+                // archived by an earlier build: parse the local copy
+                InputStream in = store.read(digest);
+                try {
+                    tree = CodeCoverBuildAction.loadTree(in);
+                } finally {
+                    in.close();
+                }
+            } else {
+                tree = copyAndParse(true);
+            }
+            store.link(digest, folder, name);
+            return tree;
+        }
+
+        /**
+         * Copies the report to the store, parsing it on the way if asked to,
+         * and records the digest of what was copied.
+         */
+        private CoverageTree copyAndParse(boolean parse) throws IOException, InterruptedException {
+            InputStream in = src.read();
+            try {
+                ReportStore.Pending blob = store.create();
+                try {
+                    InputStream tee = new TeeInputStream(in, blob.getOutputStream());
+                    CoverageTree tree = null;
+                    if (parse) {
+                        // the parser may stop early and close what it reads;
+                        // the rest of the report still has to reach the copy
+                        tree = CodeCoverBuildAction.loadTree(new CloseShieldInputStream(tee));
+                    }
+                    IOUtils.copy(tee, new NullStream());
+                    digest = blob.commit();
+                    return tree;
+                } finally {
+                    blob.abort();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * A report on the local file system, parsed in place.
+     */
+    private static final class LocalSource implements CoverageAggregator.Source {
+        private final File file;
+        private final String module;
+        private String digest;
+
+        LocalSource(File file, String module) {
+            this.file = file;
+            this.module = module;
+        }
+
+        public String getRemote() {
+            return file.getPath();
+        }
+
+        public String getModuleName() {
+            return module;
+        }
+
+        public String digest() throws IOException {
+            digest = Util.getDigestOf(file);
+            return digest;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public boolean skip() {
+            return true;
+        }
+
+        public CoverageTree parse() throws IOException {
+            return CodeCoverBuildAction.loadTree(file);
+        }
+    }
+
+    /**
+     * What {@link ParseReportsCallable} sends back.
+     */
+    private static final class ParsedReports implements Serializable {
+        private final CoverageSummary summary;
+        /**
+         * The gzipped tree of each report, in the order of the summary;
+         * <code>null</code> for the reports that were not parsed again.
+         */
+        private final byte[][] trees;
+
+        ParsedReports(CoverageSummary summary, byte[][] trees) {
+            this.summary = summary;
+            this.trees = trees;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Locates and parses the reports on the machine that holds the workspace,
+     * so that only the {@link CoverageSummary} and the compressed trees of the
+     * reports that were parsed have to be sent over the channel. The master
+     * stores the trees it receives in the {@link ReportStore}; the agent never
+     * writes to the master. The reports themselves are not archived.
+     */
+    private static final class ParseReportsCallable implements FilePath.FileCallable<ParsedReports> {
+        private final ReportLocator locator;
+        private final HashMap<String, ModuleCoverage> previous;
+
+        ParseReportsCallable(ReportLocator locator, Map<String, ModuleCoverage> previous) {
+            this.locator = locator;
+            this.previous = new HashMap<String, ModuleCoverage>(previous);
+        }
+
+        public ParsedReports invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            String[] paths = locator.invoke(workspace, channel);
+            List<LocalSource> sources = new ArrayList<LocalSource>(paths.length);
+            for (String path : paths) {
+                File f = new File(path);
+                if (!f.isAbsolute()) {
+                    f = new File(workspace, path);
+                }
+                sources.add(new LocalSource(f, moduleName(workspace.getPath(), f.getPath())));
+            }
+            CoverageSummary summary = CoverageAggregator.aggregate(sources, previous);
+            CoverageTree[] trees = summary.getTrees();
+            byte[][] compressed = new byte[trees.length][];
+            for (int i = 0; i < trees.length; i++) {
+                if (trees[i] != null) {
+                    compressed[i] = ReportStore.compress(trees[i]);
+                    // not needed any more
+                    trees[i] = null;
+                }
+            }
+            return new ParsedReports(summary, compressed);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
         EnvVars env = build.getEnvironment(listener);
         env.overrideAll(build.getBuildVariables());
@@ -101,34 +358,91 @@ public class CodeCoverPublisher extends Recorder {
         
         final PrintStream logger = listener.getLogger();
 
-        FilePath[] reports;
+        String pattern;
         if (includes == null || includes.trim().length() == 0) {
             logger.println("CodeCover: looking for coverage reports in the entire workspace: " + build.getWorkspace().getRemote());
-            reports = locateCoverageReports(build.getWorkspace(), "report.html");
+            pattern = "report.html";
         } else {
             logger.println("CodeCover: looking for coverage reports in the provided path: " + includes );
-            reports = locateCoverageReports(build.getWorkspace(), includes);
+            pattern = includes;
         }
-        
-        if (reports.length == 0) {
-            if(build.getResult().isWorseThan(Result.UNSTABLE))
-                return true;
-            
-            logger.println("CodeCover: no coverage files found in workspace. Was any report generated?");
-            build.setResult(Result.FAILURE);
-            return true;
-        } else {
-        	String found = "";
-        	for (FilePath f: reports) 
-        		found += "\n          " + f.getRemote();
-            logger.println("CodeCover: found " + reports.length  + " report files: " + found );
+
+        // reports that didn't change since the previous build are not parsed again,
+        // provided that their tree is still at hand
+        ReportStore store = ReportStore.of(build.getProject());
+        CodeCoverBuildAction previousAction = CodeCoverBuildAction.getPreviousResult(build);
+        final CodeCoverBuildAction action;
+        final CoverageSummary summary;
+        final CoverageTree tree;
+        // what is found in the store stays there until it is linked and read
+        store.acquire();
+        try {
+            Map<String, ModuleCoverage> previous = new HashMap<String, ModuleCoverage>();
+            if (previousAction != null) {
+                for (ModuleCoverage m : previousAction.getModules()) {
+                    if (ReportStore.isDigest(m.getDigest()) && hasTree(store, m.getDigest(), parseOnAgent)) {
+                        previous.put(m.getName(), m);
+                    }
+                }
+            }
+
+            if (parseOnAgent) {
+                ParsedReports parsed = build.getWorkspace().act(new ParseReportsCallable(new ReportLocator(pattern, getExcludes(), maxReports), previous));
+                summary = parsed.summary;
+                if (!reportsFound(build, logger, summary.getReports())) {
+                    return true;
+                }
+                if (parsed.trees == null || parsed.trees.length != summary.getModules().size()) {
+                    throw new IOException("The agent sent " + (parsed.trees != null ? parsed.trees.length : 0)
+                            + " coverage trees for " + summary.getModules().size() + " reports");
+                }
+                for (int i = 0; i < parsed.trees.length; i++) {
+                    // only builds that parse on agents as well ever read them
+                    if (parsed.trees[i] != null) {
+                        store.writeAgentTree(summary.getModules().get(i).getDigest(), parsed.trees[i]);
+                    }
+                }
+                logger.println("CodeCover: parsed the reports on the agent; the report files are not archived");
+            } else {
+                FilePath[] reports = locateCoverageReports(build.getWorkspace(), pattern, getExcludes(), maxReports);
+                String[] names = new String[reports.length];
+                for (int i = 0; i < reports.length; i++) {
+                    names[i] = reports[i].getRemote();
+                }
+                if (!reportsFound(build, logger, names)) {
+                    return true;
+                }
+
+                File codecoverfolder = getCodeCoverReport(build);
+                summary = saveCoverageReports(build.getWorkspace(), store, codecoverfolder, reports, previous);
+                logger.println("CodeCover: stored " + reports.length + " report files in the build folder: "+ codecoverfolder);
+            }
+            if (summary.getReused() > 0) {
+                logger.println("CodeCover: reused the results of " + summary.getReused() + " unchanged report files from build #" + previousAction.getBuild().getNumber());
+            }
+            tree = mergeCoverageTrees(store, summary, parseOnAgent);
+        } finally {
+            store.release();
+        }
+        action = CodeCoverBuildAction.load(build, rule, healthReports, summary, tree,
+                ((DescriptorImpl) DESCRIPTOR).getKeyframeInterval());
+
+        if (Util.fixEmptyAndTrim(sourceDirectories) != null) {
+            int archived = SourceArchive.archive(build, env.expand(sourceDirectories), tree, summary.getModules().size());
+            logger.println("CodeCover: archived " + archived + " source files");
+        }
+
+        if (previousAction != null) {
+            try {
+                int regressions = action.attributeRegressions(previousAction);
+                if (regressions > 0) {
+                    logger.println("CodeCover: found " + regressions + " packages and source files that made the coverage drop since build #" + previousAction.getBuild().getNumber());
+                }
+            } catch (IOException e) {
+                // the coverage is still recorded
+                e.printStackTrace(listener.error("CodeCover: failed to compare the coverage with build #" + previousAction.getBuild().getNumber()));
+            }
         }
-        
-        FilePath codecoverfolder = new FilePath(getCodeCoverReport(build));
-        saveCoverageReports(codecoverfolder, reports);
-        logger.println("CodeCover: stored " + reports.length + " report files in the build folder: "+ codecoverfolder);
-        
-        final CodeCoverBuildAction action = CodeCoverBuildAction.load(build, rule, healthReports, reports);
         
         logger.println("CodeCover: " + action.getBuildHealth().getDescription());
 
@@ -146,6 +460,62 @@ public class CodeCoverPublisher extends Recorder {
         return true;
     }
 
+    /**
+     * Tells whether the store has a tree for the given digest that a build may
+     * reuse. Trees sent by agents are only reused by builds that parse on agents.
+     */
+    private static boolean hasTree(ReportStore store, String digest, boolean onAgent) throws IOException {
+        return store.containsTree(digest) || (onAgent && store.containsAgentTree(digest));
+    }
+
+    /**
+     * Merges the trees of all reports into the tree of the build. The trees of
+     * reports that were not parsed again come from the {@link ReportStore},
+     * where the trees of new reports are added. When the reports were parsed
+     * on the agent, the caller has already stored the trees the agent sent,
+     * and no tree is parsed here. The caller holds the store.
+     */
+    static CoverageTree mergeCoverageTrees(ReportStore store, CoverageSummary summary, boolean onAgent) throws IOException {
+        List<ModuleCoverage> modules = summary.getModules();
+        CoverageTree[] parsed = summary.getTrees();
+        List<CoverageTree> trees = new ArrayList<CoverageTree>(modules.size());
+        for (int i = 0; i < modules.size(); i++) {
+            String digest = modules.get(i).getDigest();
+            if (parsed != null && parsed[i] != null) {
+                trees.add(parsed[i]);
+                if (!store.containsTree(digest)) {
+                    store.writeTree(digest, parsed[i]);
+                }
+            } else if (onAgent && store.containsAgentTree(digest)) {
+                trees.add(store.readAgentTree(digest));
+            } else {
+                trees.add(store.readTree(digest));
+            }
+        }
+        return CoverageTree.merge(trees);
+    }
+
+    /**
+     * Logs the located reports, or fails the build if there are none.
+     *
+     * @return false if no report was found.
+     */
+    private static boolean reportsFound(AbstractBuild<?,?> build, PrintStream logger, String[] reports) {
+        if (reports.length == 0) {
+            if(build.getResult().isWorseThan(Result.UNSTABLE))
+                return false;
+            
+            logger.println("CodeCover: no coverage files found in workspace. Was any report generated?");
+            build.setResult(Result.FAILURE);
+            return false;
+        }
+        String found = "";
+        for (String f: reports) 
+            found += "\n          " + f;
+        logger.println("CodeCover: found " + reports.length  + " report files: " + found );
+        return true;
+    }
+
     @Override
     public Action getProjectAction(AbstractProject<?, ?> project) {
         return new CodeCoverProjectAction(project);
@@ -171,8 +541,38 @@ public class CodeCoverPublisher extends Recorder {
     public static final BuildStepDescriptor<Publisher> DESCRIPTOR = new DescriptorImpl();
 
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+        /**
+         * Memory budget of the {@link CoverageReportCache}, in MB.
+         */
+        private int reportCacheSize = CoverageReportCache.DEFAULT_BUDGET;
+
+        /**
+         * Every how many builds the coverage snapshot is stored in full, the
+         * builds in between only storing what changed; 1 to always store it in full.
+         */
+        private int keyframeInterval = 1;
+
+        /**
+         * Number of builds of a job that keep their detailed coverage, or 0 for all.
+         *
+         * @see CoverageRetention
+         */
+        private int detailBuilds;
+
+        /**
+         * Age in days beyond which the coverage history only keeps one build a day, or 0 for never.
+         */
+        private int dailyHistoryAfter;
+
+        /**
+         * Age in days beyond which the coverage history only keeps one build a week, or 0 for never.
+         */
+        private int weeklyHistoryAfter;
+
         public DescriptorImpl() {
             super(CodeCoverPublisher.class);
+            load();
+            CoverageReportCache.INSTANCE.setBudget(reportCacheSize * 1024L * 1024L);
         }
 
         public String getDisplayName() {
@@ -183,10 +583,93 @@ public class CodeCoverPublisher extends Recorder {
             return true;
         }
 
+        public String getDefaultExcludes() {
+            return ReportLocator.DEFAULT_EXCLUDES;
+        }
+
+        public int getReportCacheSize() {
+            return reportCacheSize;
+        }
+
+        public int getKeyframeInterval() {
+            return Math.max(1, keyframeInterval);
+        }
+
+        public int getDetailBuilds() {
+            return detailBuilds;
+        }
+
+        public int getDailyHistoryAfter() {
+            return dailyHistoryAfter;
+        }
+
+        public int getWeeklyHistoryAfter() {
+            return weeklyHistoryAfter;
+        }
+
+        public int getCachedReports() {
+            return CoverageReportCache.INSTANCE.getSize();
+        }
+
+        /**
+         * Estimated memory used by the cached reports, in MB.
+         */
+        public String getReportCacheUsage() {
+            return String.format("%.1f", CoverageReportCache.INSTANCE.getWeight() / (1024.0 * 1024.0));
+        }
+
+        public long getReportCacheHits() {
+            return CoverageReportCache.INSTANCE.getHits();
+        }
+
+        public long getReportCacheMisses() {
+            return CoverageReportCache.INSTANCE.getMisses();
+        }
+
+        public long getReportCacheEvictions() {
+            return CoverageReportCache.INSTANCE.getEvictions();
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            try {
+                reportCacheSize = Math.max(0, Integer.parseInt(req.getParameter("codecoverReportCacheSize").trim()));
+            } catch (RuntimeException e) {
+                reportCacheSize = CoverageReportCache.DEFAULT_BUDGET;
+            }
+            CoverageReportCache.INSTANCE.setBudget(reportCacheSize * 1024L * 1024L);
+            try {
+                keyframeInterval = Math.max(1, Integer.parseInt(req.getParameter("codecoverKeyframeInterval").trim()));
+            } catch (RuntimeException e) {
+                keyframeInterval = 1;
+            }
+            detailBuilds = parseCount(req.getParameter("codecoverDetailBuilds"));
+            dailyHistoryAfter = parseCount(req.getParameter("codecoverDailyHistoryAfter"));
+            weeklyHistoryAfter = parseCount(req.getParameter("codecoverWeeklyHistoryAfter"));
+            save();
+            return true;
+        }
+
+        /**
+         * Parses a non-negative number, 0 standing for none.
+         */
+        private static int parseCount(String value) {
+            try {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
         @Override
         public Publisher newInstance(StaplerRequest req, JSONObject json) throws FormException {
             CodeCoverPublisher pub = new CodeCoverPublisher();
             req.bindParameters(pub, "codecover.");
+            try {
+                pub.maxReports = Math.max(0, Integer.parseInt(req.getParameter("codecoverMaxReports").trim()));
+            } catch (RuntimeException e) {
+                pub.maxReports = 0;
+            }
             req.bindParameters(pub.healthReports, "codecoverHealthReports.");
 			//set max defaults
             if ("".equals(req.getParameter("codecoverHealthReports.maxStatement"))) {
@@ -0,0 +1,185 @@
+package hudson.plugins.codecover;
+
+import hudson.util.IOException2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses many report files in parallel and merges their counters.
+ *
+ * <p>
+ * The reports of a build are parsed by a bounded pool of threads of its own,
+ * so that reading the reports from a slow agent doesn't hold up the reports
+ * of other builds. The parses still running are interrupted when one fails or
+ * the build is aborted. Merging always happens in the order of the given
+ * sources, so the result does not depend on which report finished first.
+ *
+ * <p>
+ * A report whose digest is the same as in the previous build is not parsed
+ * again; the result recorded for it by the previous build is reused.
+ */
+final class CoverageAggregator {
+
+    /**
+     * A report file to be parsed.
+     */
+    interface Source {
+        /**
+         * Full path of the report, as displayed in the build log.
+         */
+        String getRemote();
+
+        /**
+         * Path of the report relative to the workspace, used to name the module.
+         */
+        String getModuleName();
+
+        /**
+         * Computes the MD5 digest of the report contents.
+         */
+        String digest() throws IOException, InterruptedException;
+
+        /**
+         * Gets the digest of the contents that were last parsed or stored,
+         * which is the one returned by {@link #digest()} unless the report
+         * changed in between.
+         */
+        String getDigest();
+
+        /**
+         * Parses the coverage tree of the report.
+         *
+         * @see CodeCoverBuildAction#loadTree(java.io.InputStream)
+         */
+        CoverageTree parse() throws IOException, InterruptedException;
+
+        /**
+         * Called instead of {@link #parse()} when the previous result is reused.
+         *
+         * @return false if the report turned out to have changed since its
+         *      digest was computed, in which case it is parsed after all.
+         */
+        boolean skip() throws IOException, InterruptedException;
+    }
+
+    private CoverageAggregator() {
+    }
+
+    /**
+     * Parses all the sources and merges their coverage.
+     *
+     * @param previous
+     *      the modules recorded by the previous build, by name. May be empty.
+     */
+    static CoverageSummary aggregate(final List<? extends Source> sources, final Map<String, ModuleCoverage> previous) throws IOException, InterruptedException {
+        int n = sources.size();
+        final ModuleCoverage[] results = new ModuleCoverage[n];
+        final CoverageTree[] trees = new CoverageTree[n];
+        if (n == 1) {
+            process(sources, previous, results, trees, 0);
+        } else if (n > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(n, PARALLELISM), THREAD_FACTORY);
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(n);
+            try {
+                for (int i = 0; i < n; i++) {
+                    final int index = i;
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws IOException, InterruptedException {
+                            process(sources, previous, results, trees, index);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        throw new IOException2(cause);
+                    }
+                }
+            } finally {
+                // no-op once all are done; otherwise a parse failed or the build was aborted
+                for (Future<Void> f : futures) {
+                    f.cancel(true);
+                }
+                executor.shutdown();
+            }
+        }
+
+        String[] reports = new String[n];
+        List<Ratio[]> ratios = new ArrayList<Ratio[]>(n);
+        int reused = 0;
+        for (int i = 0; i < n; i++) {
+            reports[i] = sources.get(i).getRemote();
+            ratios.add(results[i].getRatios());
+            if (results[i] == previous.get(results[i].getName())) {
+                reused++;
+            }
+        }
+        return new CoverageSummary(reports, Arrays.asList(results), trees, merge(ratios), reused);
+    }
+
+    /**
+     * Parses a single report, unless it is unchanged since the previous build.
+     * The tree of a report that was not parsed is left <code>null</code>.
+     */
+    private static void process(List<? extends Source> sources, Map<String, ModuleCoverage> previous, ModuleCoverage[] results, CoverageTree[] trees, int i) throws IOException, InterruptedException {
+        Source source = sources.get(i);
+        String name = source.getModuleName();
+        String digest = source.digest();
+        ModuleCoverage last = previous.get(name);
+        if (last != null && digest.equals(last.getDigest()) && source.skip()) {
+            results[i] = last;
+            return;
+        }
+        trees[i] = source.parse();
+        results[i] = new ModuleCoverage(name, source.getDigest(), trees[i].getTotals(0));
+    }
+
+    /**
+     * Sums up the counters of several reports, in list order.
+     *
+     * @return
+     *      statement, branch, loop and condition coverage; a metric is
+     *      <code>null</code> only if none of the reports has it.
+     */
+    static Ratio[] merge(List<Ratio[]> reports) {
+        CoverageCounts sum = new CoverageCounts();
+        for (Ratio[] report : reports) {
+            sum.add(report);
+        }
+        return sum.toRatios();
+    }
+
+    /**
+     * Maximum number of reports of a build parsed at the same time.
+     */
+    static final int PARALLELISM = Math.max(1, Integer.getInteger(CoverageAggregator.class.getName() + ".parallelism",
+            Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CodeCover report parser #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+}
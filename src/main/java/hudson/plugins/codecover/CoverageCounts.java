@@ -0,0 +1,69 @@
+package hudson.plugins.codecover;
+
+import java.io.Serializable;
+
+/**
+ * Exact statement, branch, loop and condition counters, packed into a single
+ * array, to sum up coverage without creating a {@link Ratio} per item.
+ *
+ * <p>
+ * Not thread-safe.
+ */
+final class CoverageCounts implements Serializable {
+    /**
+     * Covered and total count of every metric, in metric order.
+     */
+    private final long[] counts = new long[8];
+
+    /**
+     * Bit <tt>m</tt> is set once metric <tt>m</tt> has been added.
+     */
+    private int metrics;
+
+    void add(int metric, long covered, long total) {
+        counts[metric * 2] += covered;
+        counts[metric * 2 + 1] += total;
+        metrics |= 1 << metric;
+    }
+
+    /**
+     * Adds statement, branch, loop and condition coverage, skipping the missing ones.
+     */
+    void add(Ratio[] ratios) {
+        for (int m = 0; m < 4; m++) {
+            Ratio r = ratios[m];
+            if (r != null && r.isInitialized()) {
+                add(m, r.getCovered(), r.getTotal());
+            }
+        }
+    }
+
+    boolean has(int metric) {
+        return (metrics & (1 << metric)) != 0;
+    }
+
+    long getCovered(int metric) {
+        return counts[metric * 2];
+    }
+
+    long getTotal(int metric) {
+        return counts[metric * 2 + 1];
+    }
+
+    /**
+     * @return
+     *      statement, branch, loop and condition coverage; a metric that
+     *      was never added is <code>null</code>.
+     */
+    Ratio[] toRatios() {
+        Ratio[] r = new Ratio[4];
+        for (int m = 0; m < r.length; m++) {
+            if (has(m)) {
+                r[m] = new Ratio(getCovered(m), getTotal(m));
+            }
+        }
+        return r;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
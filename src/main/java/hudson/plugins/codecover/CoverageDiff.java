@@ -0,0 +1,465 @@
+package hudson.plugins.codecover;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The change of coverage between two builds of a job, package by package and
+ * source file by source file.
+ *
+ * <p>
+ * Both trees keep the children of every node sorted by kind and name, as
+ * {@link CoverageTree#merge(List)} writes them, so they are compared in a single
+ * merge-join over the ids of the children: a node is either in both builds, only
+ * in the older one, or only in the newer one, and no map is ever built. The
+ * children of a package are compared in the same way once the segment of the
+ * package is loaded in both builds. A diff that is viewed is computed once for a
+ * pair of builds and kept by a cache, up to a memory cap beyond which the least
+ * recently viewed diffs are dropped; the diffs of a job are dropped when its
+ * coverage changes.
+ */
+public final class CoverageDiff {
+
+    /**
+     * Memory cap of the cache, in MB.
+     */
+    static final int CACHE_SIZE = Integer.getInteger(CoverageDiff.class.getName() + ".cacheSize", 8);
+
+    private static final long CACHE_BUDGET = CACHE_SIZE * 1024L * 1024L;
+
+    /**
+     * Diffs by job and builds, least recently used first. Guarded by itself.
+     */
+    private static final Map<String, CoverageDiff> CACHE = new LinkedHashMap<String, CoverageDiff>(16, 0.75f, true);
+
+    /**
+     * Estimated heap used by the diffs in {@link #CACHE}. Guarded by {@link #CACHE}.
+     */
+    private static long cacheWeight;
+
+    private static final String[] METRICS = { "statement", "branch", "loop", "condition" };
+
+    /**
+     * A package or a source file.
+     */
+    public static final class Row {
+        private final byte kind;
+        private final String name;
+        /**
+         * Covered and total items of each metric, null if the node is not in that build.
+         */
+        private final long[] before;
+        private final long[] after;
+        private final byte beforeMetrics;
+        private final byte afterMetrics;
+
+        Row(byte kind, String name, CoverageTree a, int na, CoverageTree b, int nb) {
+            this.kind = kind;
+            this.name = name;
+            this.before = a != null ? counts(a, na) : null;
+            this.after = b != null ? counts(b, nb) : null;
+            this.beforeMetrics = a != null ? metrics(a, na) : 0;
+            this.afterMetrics = b != null ? metrics(b, nb) : 0;
+        }
+
+        private static long[] counts(CoverageTree t, int node) {
+            long[] c = new long[8];
+            for (int m = 0; m < 4; m++) {
+                c[m * 2] = t.getCovered(node, m);
+                c[m * 2 + 1] = t.getTotal(node, m);
+            }
+            return c;
+        }
+
+        private static byte metrics(CoverageTree t, int node) {
+            byte r = 0;
+            for (int m = 0; m < 4; m++) {
+                if (t.hasMetric(node, m)) {
+                    r |= 1 << m;
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Estimates the heap used by this row, in bytes.
+         */
+        long getMemorySize() {
+            return 32 + 40 + name.length() * 2L + (before != null ? 80 : 0) + (after != null ? 80 : 0);
+        }
+
+        public boolean isPackage() {
+            return kind == CoverageTree.PACKAGE;
+        }
+
+        /**
+         * Gets the name of the package, or the path of the source file, such as <tt>org.acme/Foo.java</tt>.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAdded() {
+            return before == null;
+        }
+
+        public boolean isRemoved() {
+            return after == null;
+        }
+
+        public boolean isChanged() {
+            return before == null || after == null || beforeMetrics != afterMetrics || !Arrays.equals(before, after);
+        }
+
+        /**
+         * Gets the coverage of a metric in the older build.
+         *
+         * @return null if the node or the metric is not in that build.
+         */
+        public Ratio getBefore(int metric) {
+            return ratio(before, beforeMetrics, metric);
+        }
+
+        /**
+         * Gets the coverage of a metric in the newer build.
+         *
+         * @return null if the node or the metric is not in that build.
+         */
+        public Ratio getAfter(int metric) {
+            return ratio(after, afterMetrics, metric);
+        }
+
+        private static Ratio ratio(long[] counts, byte metrics, int metric) {
+            return counts != null && (metrics & (1 << metric)) != 0
+                    ? new Ratio(counts[metric * 2], counts[metric * 2 + 1]) : null;
+        }
+
+        /**
+         * Gets the change of the percentage of a metric, in points.
+         *
+         * @return NaN if either build lacks the metric.
+         */
+        public float getDelta(int metric) {
+            if (before == null || after == null || (beforeMetrics & afterMetrics & (1 << metric)) == 0) {
+                return Float.NaN;
+            }
+            return CoverageObject.percentage(after[metric * 2], after[metric * 2 + 1])
+                    - CoverageObject.percentage(before[metric * 2], before[metric * 2 + 1]);
+        }
+
+        /**
+         * Gets the change of a metric for the view, such as <tt>+1.5</tt>.
+         *
+         * @return empty if either build lacks the metric.
+         */
+        public String getDeltaText(int metric) {
+            float d = getDelta(metric);
+            return Float.isNaN(d) ? "" : String.format("%+.1f", d);
+        }
+
+        /**
+         * Used in the view to print out four table columns with the coverage
+         * of the newer build and its change.
+         */
+        public String printFourDeltaColumns() {
+            StringBuilder buf = new StringBuilder(1600);
+            try {
+                for (int m = 0; m < 4; m++) {
+                    Ratio after = getAfter(m);
+                    float delta = getDelta(m);
+                    buf.append("<td class='nowrap'>");
+                    if (after != null) {
+                        CoverageObject.printRatioTable(after.getCovered(), after.getTotal(), buf);
+                    }
+                    if (delta != 0 && !Float.isNaN(delta)) {
+                        buf.append(delta < 0 ? "<span class='decrease'>" : "<span class='increase'>")
+                                .append(getDeltaText(m)).append("</span>");
+                    }
+                    buf.append("</td>\n");
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e); // a StringBuilder doesn't throw
+            }
+            return buf.toString();
+        }
+    }
+
+    private final AbstractProject<?,?> project;
+    private final int from;
+    private final int to;
+    private final List<Row> rows = new ArrayList<Row>();
+
+    CoverageDiff(AbstractProject<?,?> project, int from, int to) {
+        this.project = project;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Gets the diff between two builds of a job, computing it if it isn't cached.
+     */
+    static CoverageDiff of(AbstractProject<?,?> project, CodeCoverBuildAction from, CodeCoverBuildAction to) throws IOException {
+        String key = project.getFullName() + '|' + from.getBuild().getNumber() + '|' + to.getBuild().getNumber();
+        synchronized (CACHE) {
+            CoverageDiff d = CACHE.get(key);
+            if (d != null) {
+                return d;
+            }
+        }
+        CoverageDiff d = compute(project, from, to);
+        put(key, d);
+        return d;
+    }
+
+    /**
+     * Computes the diff between two builds of a job, without caching it,
+     * as when a build is published and its diff is unlikely to be viewed.
+     */
+    static CoverageDiff compute(AbstractProject<?,?> project, CodeCoverBuildAction from, CodeCoverBuildAction to) throws IOException {
+        CoverageDiff d = new CoverageDiff(project, from.getBuild().getNumber(), to.getBuild().getNumber());
+        d.compute(from.getResult(), to.getResult());
+        return d;
+    }
+
+    private static void put(String key, CoverageDiff d) {
+        long w = d.getMemorySize();
+        synchronized (CACHE) {
+            if (w > CACHE_BUDGET) {
+                return;
+            }
+            CoverageDiff old = CACHE.put(key, d);
+            if (old != null) {
+                cacheWeight -= old.getMemorySize();
+            }
+            cacheWeight += w;
+            for (Iterator<CoverageDiff> it = CACHE.values().iterator(); cacheWeight > CACHE_BUDGET && it.hasNext(); ) {
+                cacheWeight -= it.next().getMemorySize();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the diffs of a job, whose coverage changed.
+     */
+    static void invalidate(Job<?,?> job) {
+        String prefix = job.getFullName() + '|';
+        synchronized (CACHE) {
+            for (Iterator<Map.Entry<String, CoverageDiff>> it = CACHE.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, CoverageDiff> e = it.next();
+                if (e.getKey().startsWith(prefix)) {
+                    cacheWeight -= e.getValue().getMemorySize();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap used by this diff, in bytes.
+     */
+    long getMemorySize() {
+        long r = 64 + rows.size() * 4L;
+        for (Row row : rows) {
+            r += row.getMemorySize();
+        }
+        return r;
+    }
+
+    private void compute(CoverageReport a, CoverageReport b) throws IOException {
+        if (a == null || b == null) {
+            throw new IOException("The coverage of build #" + (a == null ? from : to) + " could not be loaded");
+        }
+        compute(a.getTree(), a, b.getTree(), b);
+    }
+
+    /**
+     * Compares the trees of two builds.
+     *
+     * @param a
+     *      the report the segments of <tt>ta</tt> are loaded from, null if <tt>ta</tt> is whole.
+     */
+    void compute(CoverageTree ta, CoverageReport a, CoverageTree tb, CoverageReport b) {
+        int[] ca = children(ta, 0), cb = children(tb, 0);
+        int i = 0, j = 0;
+        while (i < ca.length || j < cb.length) {
+            int cmp = i == ca.length ? 1 : j == cb.length ? -1 : compare(ta, ca[i], tb, cb[j]);
+            int na = cmp <= 0 ? ca[i++] : -1;
+            int nb = cmp >= 0 ? cb[j++] : -1;
+            CoverageTree t = na >= 0 ? ta : tb;
+            int n = na >= 0 ? na : nb;
+            byte kind = t.getKind(n);
+            String name = t.getName(n);
+            if (kind == CoverageTree.FILE) {
+                // in no package
+                rows.add(new Row(kind, name, na >= 0 ? ta : null, na, nb >= 0 ? tb : null, nb));
+            } else if (kind == CoverageTree.PACKAGE) {
+                rows.add(new Row(kind, name, na >= 0 ? ta : null, na, nb >= 0 ? tb : null, nb));
+                joinFiles(name, segment(ta, a, na), segment(tb, b, nb));
+            }
+        }
+    }
+
+    /**
+     * Gets the tree holding the children of a child of the root; its root is the child.
+     */
+    private static CoverageTree segment(CoverageTree tree, CoverageReport report, int child) {
+        if (child < 0) {
+            return null;
+        }
+        CoverageTree s = report != null ? report.getSegment(child) : null;
+        return s != null ? s : tree.subtree(child);
+    }
+
+    /**
+     * Compares the source files of a package in both builds.
+     *
+     * @param ta
+     *      the package in the older build, its root being the package; null if it isn't there.
+     */
+    private void joinFiles(String pkg, CoverageTree ta, CoverageTree tb) {
+        int[] ca = ta != null ? children(ta, 0) : new int[0];
+        int[] cb = tb != null ? children(tb, 0) : new int[0];
+        int i = 0, j = 0;
+        while (i < ca.length || j < cb.length) {
+            int cmp = i == ca.length ? 1 : j == cb.length ? -1 : compare(ta, ca[i], tb, cb[j]);
+            int na = cmp <= 0 ? ca[i++] : -1;
+            int nb = cmp >= 0 ? cb[j++] : -1;
+            CoverageTree t = na >= 0 ? ta : tb;
+            int n = na >= 0 ? na : nb;
+            if (t.getKind(n) == CoverageTree.FILE) {
+                rows.add(new Row(CoverageTree.FILE, pkg + '/' + t.getName(n), na >= 0 ? ta : null, na, nb >= 0 ? tb : null, nb));
+            }
+        }
+    }
+
+    /**
+     * Gets the ids of the children of a node, in the order of {@link #compare}.
+     */
+    private static int[] children(CoverageTree t, int node) {
+        int n = 0;
+        for (int c = t.getFirstChild(node); c >= 0; c = t.getNextSibling(c)) {
+            n++;
+        }
+        int[] r = new int[n];
+        n = 0;
+        for (int c = t.getFirstChild(node); c >= 0; c = t.getNextSibling(c)) {
+            r[n++] = c;
+        }
+        return r;
+    }
+
+    private static int compare(CoverageTree ta, int a, CoverageTree tb, int b) {
+        int r = ta.getKind(a) - tb.getKind(b);
+        return r != 0 ? r : ta.compareNames(a, tb, b);
+    }
+
+    public AbstractProject<?,?> getProject() {
+        return project;
+    }
+
+    /**
+     * Gets the number of the older build.
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the number of the newer build.
+     */
+    public int getTo() {
+        return to;
+    }
+
+    public AbstractBuild<?,?> getFromBuild() {
+        return project.getBuildByNumber(from);
+    }
+
+    public AbstractBuild<?,?> getToBuild() {
+        return project.getBuildByNumber(to);
+    }
+
+    /**
+     * Gets the packages, each followed by its source files.
+     */
+    public List<Row> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Gets the rows whose coverage changed.
+     */
+    public List<Row> getChangedRows() {
+        List<Row> r = new ArrayList<Row>();
+        for (Row row : rows) {
+            if (row.isChanged()) {
+                r.add(row);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Writes the diff as JSON:
+     *
+     * <pre>
+     * {"from":12,"to":15,"rows":[{"kind":"package","name":"org.acme","status":"changed",
+     *   "statement":{"before":{"covered":10,"total":20},"after":{"covered":15,"total":20},"delta":25.0}, ...}, ...]}
+     * </pre>
+     *
+     * The status is <tt>added</tt>, <tt>removed</tt>, <tt>changed</tt> or <tt>unchanged</tt>.
+     * A metric missing from a build is left out of it.
+     *
+     * @param all
+     *      whether the rows that didn't change are written too.
+     */
+    void writeJSON(Appendable out, boolean all) throws IOException {
+        out.append("{\"from\":").append(Integer.toString(from)).append(",\"to\":").append(Integer.toString(to))
+                .append(",\"rows\":[");
+        // reused for every row
+        StringBuilder b = new StringBuilder(256);
+        boolean first = true;
+        for (Row row : rows) {
+            if (!all && !row.isChanged()) {
+                continue;
+            }
+            b.setLength(0);
+            b.append(first ? "{\"kind\":\"" : ",{\"kind\":\"").append(row.isPackage() ? "package" : "file").append("\",\"name\":");
+            Trend.appendString(b, row.getName());
+            b.append(",\"status\":\"").append(row.isAdded() ? "added" : row.isRemoved() ? "removed" : row.isChanged() ? "changed" : "unchanged").append('"');
+            for (int m = 0; m < 4; m++) {
+                Ratio before = row.getBefore(m), after = row.getAfter(m);
+                if (before == null && after == null) {
+                    continue;
+                }
+                b.append(",\"").append(METRICS[m]).append("\":{");
+                if (before != null) {
+                    b.append("\"before\":{\"covered\":").append(before.getCovered()).append(",\"total\":").append(before.getTotal()).append('}');
+                }
+                if (after != null) {
+                    b.append(before != null ? "," : "").append("\"after\":{\"covered\":").append(after.getCovered())
+                            .append(",\"total\":").append(after.getTotal()).append('}');
+                }
+                float delta = row.getDelta(m);
+                if (!Float.isNaN(delta)) {
+                    b.append(",\"delta\":").append(Math.round(delta * 100) / 100.0);
+                }
+                b.append('}');
+            }
+            out.append(b.append('}'));
+            first = false;
+        }
+        out.append("]}");
+    }
+}
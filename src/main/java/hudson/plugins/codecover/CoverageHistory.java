@@ -0,0 +1,622 @@
+package hudson.plugins.codecover;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage totals of all the builds of a job, so that trends can be drawn
+ * without loading the builds.
+ *
+ * <p>
+ * The history is kept in <tt>codecover-history.idx</tt> in the job folder:
+ * an append-only file of fixed-width records, added as builds complete.
+ * A deleted build is recorded by appending a record without coverage and
+ * with the result {@link #DELETED}. The file is read in a single read,
+ * later records of the same build number replacing earlier ones.
+ *
+ * <pre>
+ * header: int magic "CCHI", int version
+ * record: int number, long timestamp, byte result, byte metrics bits,
+ *         2 bytes padding, long[8] covered and total count of the four metrics
+ * </pre>
+ *
+ * <p>
+ * The records of old builds may be thinned out by {@link #downsample(Job, long, long)},
+ * which only keeps the last build of each day or week beyond given ages
+ * that didn't fail.
+ *
+ * <p>
+ * Instances are read-only views of the file at the time it was read,
+ * sorted by build number. The last one read of each job is kept, and reused
+ * as long as the length and the modification time of the file are the same,
+ * so that the trends and the dashboards don't read the file on every request.
+ *
+ * <p>
+ * Other plugins, and the dashboard portlets, obtain the history of a job with
+ * {@link #get(Job)} and read it through the public accessors.
+ */
+public final class CoverageHistory {
+
+    private static final int MAGIC = 0x43434849; // "CCHI"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER = 8;
+
+    static final int RECORD = 4 + 8 + 1 + 1 + 2 + 8 * 8;
+
+    /**
+     * Result of the record of a deleted build.
+     */
+    static final byte DELETED = -1;
+
+    private static final Result[] RESULTS = { Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED };
+
+    /**
+     * Maximum number of jobs whose history is kept in memory.
+     */
+    static final int CACHE_SIZE = Integer.getInteger(CoverageHistory.class.getName() + ".cacheSize", 256);
+
+    /**
+     * The last history read of each file, least recently used first. Guarded by itself.
+     */
+    private static final Map<File, Cached> cache = new LinkedHashMap<File, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Cached> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final class Cached {
+        final long length;
+        final long lastModified;
+        final CoverageHistory history;
+
+        Cached(long length, long lastModified, CoverageHistory history) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Held while a history file is written, and while a history is rebuilt so
+     * that it is only rebuilt once; a file is mapped to one of them by its
+     * path, so that rebuilding the history of a large job doesn't hold up the
+     * builds of the others.
+     */
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    private static Object getLock(File file) {
+        return LOCKS[(file.hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    private final int size;
+    private final int[] number;
+    private final long[] timestamp;
+    private final byte[] result;
+    private final byte[] metrics;
+    private final long[] counts;
+
+    private CoverageHistory(int size, int[] number, long[] timestamp, byte[] result, byte[] metrics, long[] counts) {
+        this.size = size;
+        this.number = number;
+        this.timestamp = timestamp;
+        this.result = result;
+        this.metrics = metrics;
+        this.counts = counts;
+    }
+
+    static File getFile(Job<?,?> job) {
+        return new File(job.getRootDir(), "codecover-history.idx");
+    }
+
+    /**
+     * Reads the history of a job. The first time, the history is built from
+     * the builds the job already has.
+     */
+    static CoverageHistory of(Job<?,?> job) throws IOException {
+        File file = getFile(job);
+        if (!file.exists()) {
+            rebuild(job, file, null);
+        }
+        return load(file);
+    }
+
+    /**
+     * Reads the history of a job that records coverage, without building it
+     * for a job that never did.
+     *
+     * @return null if the job has no coverage, or if its history couldn't be read.
+     */
+    public static CoverageHistory get(Job<?,?> job) {
+        File file = getFile(job);
+        if (!file.exists() && job.getAction(CodeCoverProjectAction.class) == null) {
+            return null;
+        }
+        try {
+            return of(job);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the coverage history of " + job, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a history file, unless it is unchanged since it was last read.
+     */
+    static CoverageHistory load(File file) throws IOException {
+        // taken before reading, so that a record appended meanwhile is read again next time
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Cached c;
+        synchronized (cache) {
+            c = cache.get(file);
+        }
+        if (c != null && c.length == length && c.lastModified == lastModified) {
+            return c.history;
+        }
+        CoverageHistory history = read(file);
+        synchronized (cache) {
+            cache.put(file, new Cached(length, lastModified, history));
+        }
+        return history;
+    }
+
+    static CoverageHistory read(File file) throws IOException {
+        ByteBuffer buf;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                // read it all
+            }
+            buf.flip();
+        } finally {
+            in.close();
+        }
+        if (buf.remaining() < HEADER || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a coverage history: " + file);
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported coverage history version " + version + ": " + file);
+        }
+
+        // a record being appended right now is ignored
+        int records = (buf.remaining() - HEADER) / RECORD;
+        // the build number and the index of every record, so that the records
+        // of a build are together, the last one last
+        long[] keys = new long[records];
+        for (int i = 0; i < records; i++) {
+            keys[i] = (long) buf.getInt(HEADER + i * RECORD) << 32 | i;
+        }
+        Arrays.sort(keys);
+        // the position of the last record of every build that wasn't deleted
+        int[] latest = new int[records];
+        int size = 0;
+        for (int i = 0; i < records; i++) {
+            if (i + 1 < records && keys[i + 1] >>> 32 == keys[i] >>> 32) {
+                continue;
+            }
+            int pos = HEADER + (int) keys[i] * RECORD;
+            if (buf.get(pos + 12) != DELETED) {
+                latest[size++] = pos;
+            }
+        }
+
+        int[] number = new int[size];
+        long[] timestamp = new long[size];
+        byte[] result = new byte[size];
+        byte[] metrics = new byte[size];
+        long[] counts = new long[size * 8];
+        for (int i = 0; i < size; i++) {
+            int pos = latest[i];
+            number[i] = buf.getInt(pos);
+            timestamp[i] = buf.getLong(pos + 4);
+            result[i] = buf.get(pos + 12);
+            metrics[i] = buf.get(pos + 13);
+            for (int c = 0; c < 8; c++) {
+                counts[i * 8 + c] = buf.getLong(pos + 16 + c * 8);
+            }
+        }
+        return new CoverageHistory(size, number, timestamp, result, metrics, counts);
+    }
+
+    /**
+     * Appends the record of a build.
+     */
+    static void append(AbstractBuild<?,?> build, CodeCoverBuildAction action) throws IOException {
+        Ratio[] ratios = {
+            action.getStatementCoverage(), action.getBranchCoverage(),
+            action.getLoopCoverage(), action.getConditionCoverage()
+        };
+        append(getFile(build.getParent()), build.getNumber(), build.getTimeInMillis(), build.getResult(), ratios);
+    }
+
+    /**
+     * Appends the record of a build to a history file, creating it if needed.
+     *
+     * @param ratios
+     *      the coverage of the four metrics, null or uninitialized for a metric the build doesn't have.
+     */
+    static void append(File file, int number, long timestamp, Result result, Ratio[] ratios) throws IOException {
+        append(file, record(number, timestamp, result, ratios));
+    }
+
+    /**
+     * Records that a build was deleted.
+     */
+    static void appendDeleted(Run<?,?> build) throws IOException {
+        appendDeleted(getFile(build.getParent()), build.getNumber(), build.getTimeInMillis());
+    }
+
+    /**
+     * Records that a build was deleted in a history file, if there is one.
+     */
+    static void appendDeleted(File file, int number, long timestamp) throws IOException {
+        if (file.exists()) {
+            ByteBuffer r = record(number, timestamp, null, new Ratio[4]);
+            r.put(12, DELETED);
+            append(file, r);
+        }
+    }
+
+    private static ByteBuffer record(int number, long timestamp, Result result, Ratio[] ratios) {
+        ByteBuffer r = ByteBuffer.allocate(RECORD);
+        r.putInt(number);
+        r.putLong(timestamp);
+        r.put((byte) (result != null ? result.ordinal : Result.SUCCESS.ordinal));
+        int bits = 0;
+        for (int m = 0; m < 4; m++) {
+            if (ratios[m] != null && ratios[m].isInitialized()) {
+                bits |= 1 << m;
+            }
+        }
+        r.put((byte) bits);
+        r.putShort((short) 0);
+        for (int m = 0; m < 4; m++) {
+            boolean present = (bits & (1 << m)) != 0;
+            r.putLong(present ? ratios[m].getCovered() : 0);
+            r.putLong(present ? ratios[m].getTotal() : 0);
+        }
+        r.flip();
+        return r;
+    }
+
+    private static void append(File file, ByteBuffer record) throws IOException {
+        synchronized (getLock(file)) {
+            boolean created = !file.exists();
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                FileChannel channel = out.getChannel();
+                if (created) {
+                    writeHeader(channel);
+                }
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Builds the history from the completed builds of a job, oldest first.
+     *
+     * @param completing
+     *      a build that is completing, to be recorded although it is still building.
+     */
+    private static void rebuild(Job<?,?> job, File file, Run<?,?> completing) throws IOException {
+        synchronized (getLock(file)) {
+            if (file.exists()) {
+                return;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel channel = out.getChannel();
+                writeHeader(channel);
+                ByteBuffer[] records = new ByteBuffer[0];
+                int count = 0;
+                for (Run<?,?> b = job.getLastBuild(); b != null; b = b.getPreviousBuild()) {
+                    CodeCoverBuildAction action = b.getAction(CodeCoverBuildAction.class);
+                    if (action == null || (b.isBuilding() && b != completing)) {
+                        continue;
+                    }
+                    Ratio[] ratios = {
+                        action.getStatementCoverage(), action.getBranchCoverage(),
+                        action.getLoopCoverage(), action.getConditionCoverage()
+                    };
+                    if (count == records.length) {
+                        records = Arrays.copyOf(records, Math.max(16, count * 2));
+                    }
+                    records[count++] = record(b.getNumber(), b.getTimeInMillis(), b.getResult(), ratios);
+                }
+                for (int i = count - 1; i >= 0; i--) {
+                    while (records[i].hasRemaining()) {
+                        channel.write(records[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Thins out the history of old builds: of the builds started before
+     * <tt>weeklyBefore</tt> only the last one of each week is kept, and of the
+     * builds started before <tt>dailyBefore</tt> the last one of each day.
+     * Failed builds are passed over, unless all the builds of the period failed,
+     * as the trends don't show them. The last record is always kept.
+     *
+     * @param dailyBefore
+     *      a time in milliseconds, or 0 not to keep daily records only.
+     * @param weeklyBefore
+     *      a time in milliseconds, or 0 not to keep weekly records only.
+     * @return the number of records removed.
+     */
+    static int downsample(Job<?,?> job, long dailyBefore, long weeklyBefore) throws IOException {
+        return downsample(getFile(job), dailyBefore, weeklyBefore);
+    }
+
+    /**
+     * Thins out a history file.
+     *
+     * @see #downsample(Job, long, long)
+     */
+    static int downsample(File file, long dailyBefore, long weeklyBefore) throws IOException {
+        synchronized (getLock(file)) {
+            if (!file.exists()) {
+                return 0;
+            }
+            CoverageHistory h = read(file);
+            boolean[] keep = new boolean[h.size];
+            for (int first = 0; first < h.size; ) {
+                long period = h.getPeriod(first, dailyBefore, weeklyBefore);
+                int last = first;
+                while (period != 0 && last + 1 < h.size
+                        && period == h.getPeriod(last + 1, dailyBefore, weeklyBefore)
+                        && h.timestamp[first] / period == h.timestamp[last + 1] / period) {
+                    last++;
+                }
+                // the trends leave failed builds out
+                int i = last;
+                while (i > first && h.getResult(i) == Result.FAILURE) {
+                    i--;
+                }
+                keep[h.getResult(i) == Result.FAILURE ? last : i] = true;
+                first = last + 1;
+            }
+            if (h.size > 0) {
+                keep[h.size - 1] = true;
+            }
+            int kept = 0;
+            for (boolean k : keep) {
+                if (k) {
+                    kept++;
+                }
+            }
+            if (kept == h.size) {
+                return 0;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel channel = out.getChannel();
+                writeHeader(channel);
+                ByteBuffer r = ByteBuffer.allocate(RECORD);
+                for (int i = 0; i < h.size; i++) {
+                    if (!keep[i]) {
+                        continue;
+                    }
+                    r.clear();
+                    r.putInt(h.number[i]);
+                    r.putLong(h.timestamp[i]);
+                    r.put(h.result[i]);
+                    r.put(h.metrics[i]);
+                    r.putShort((short) 0);
+                    for (int c = 0; c < 8; c++) {
+                        r.putLong(h.counts[i * 8 + c]);
+                    }
+                    r.flip();
+                    while (r.hasRemaining()) {
+                        channel.write(r);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+            return h.size - kept;
+        }
+    }
+
+    /**
+     * Gets the length of the period a record is rolled up into, 0 if it is kept as is.
+     */
+    private long getPeriod(int i, long dailyBefore, long weeklyBefore) {
+        if (timestamp[i] < weeklyBefore) {
+            return 7 * DAY;
+        }
+        if (timestamp[i] < dailyBefore) {
+            return DAY;
+        }
+        return 0;
+    }
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumber(int i) {
+        return number[i];
+    }
+
+    /**
+     * Gets the time the build started, in milliseconds. Records are in the
+     * order of their build numbers, and so of their timestamps too.
+     */
+    public long getTimestamp(int i) {
+        return timestamp[i];
+    }
+
+    Result getResult(int i) {
+        int r = result[i];
+        return r >= 0 && r < RESULTS.length ? RESULTS[r] : Result.FAILURE;
+    }
+
+    boolean hasMetric(int i, int metric) {
+        return (metrics[i] & (1 << metric)) != 0;
+    }
+
+    long getCovered(int i, int metric) {
+        return counts[i * 8 + metric * 2];
+    }
+
+    long getTotal(int i, int metric) {
+        return counts[i * 8 + metric * 2 + 1];
+    }
+
+    /**
+     * @return null if the build has no such metric.
+     */
+    public Ratio getRatio(int i, int metric) {
+        return hasMetric(i, metric) ? new Ratio(getCovered(i, metric), getTotal(i, metric)) : null;
+    }
+
+    /**
+     * Gets the number of records of the given build and the builds before it.
+     */
+    int upperBound(int buildNumber) {
+        int i = Arrays.binarySearch(number, 0, size, buildNumber);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+
+    /**
+     * Gets the index of the first record whose build started at or after a
+     * time, or the size of the history if there is none.
+     */
+    public int firstSince(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp[mid] >= time) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the record of a build.
+     *
+     * @return -1 if the build has no record.
+     */
+    int indexOf(int buildNumber) {
+        int i = Arrays.binarySearch(number, 0, size, buildNumber);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * Keeps the history of every job up to date.
+     */
+    @Extension
+    public static final class Listener extends RunListener<AbstractBuild> {
+        public Listener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            CodeCoverBuildAction action = build.getAction(CodeCoverBuildAction.class);
+            if (action == null) {
+                return;
+            }
+            GraphCache.INSTANCE.invalidate(build.getParent());
+            try {
+                if (getFile(build.getParent()).exists()) {
+                    append(build, action);
+                } else {
+                    // picks up this build too
+                    rebuild(build.getParent(), getFile(build.getParent()), build);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to record the coverage history of " + build, e);
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            GraphCache.INSTANCE.invalidate(build.getParent());
+            CoverageDiff.invalidate(build.getParent());
+            CoverageReportCache.INSTANCE.invalidate(build);
+            // the reports of the build are collected on the next retention run
+            ReportStore.of(build.getParent()).markDirty();
+            try {
+                // the build folder is only removed after the listeners
+                CodeCoverBuildAction.rewriteDeltasAgainst(build);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to rewrite the coverage snapshots stored against " + build, e);
+            }
+            try {
+                appendDeleted(build);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to record the deletion of " + build, e);
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(CoverageHistory.class.getName());
+}
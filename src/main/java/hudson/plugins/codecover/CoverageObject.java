@@ -7,10 +7,10 @@ import hudson.util.ChartUtil;
 import hudson.util.ColorPalette;
 import hudson.util.DataSetBuilder;
 import hudson.util.ShiftedCategoryAxis;
-import hudson.util.ChartUtil.NumberOnlyBuildLabel;
 import hudson.util.Graph;
 
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.CategoryAxis;
 import org.jfree.chart.axis.CategoryLabelPositions;
@@ -30,8 +30,7 @@ import org.kohsuke.stapler.export.ExportedBean;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.nio.charset.Charset;
 import java.util.Calendar;
 
 /**
@@ -96,90 +95,246 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
     @Exported
     public abstract SELF getPreviousResult();
 
+    /**
+     * Gets the history the trend of this object can be drawn from.
+     *
+     * @return
+     *      null if the trend has to be collected by walking {@link #getPreviousResult()}.
+     */
+    CoverageHistory getHistory() {
+        return null;
+    }
+
     /**
      * Used in the view to print out four table columns with the coverage info.
      */
     public String printFourCoverageColumns() {
-        StringBuilder buf = new StringBuilder();
-        printRatioCell(isFailed(), statement, buf);
-        printRatioCell(isFailed(), branch, buf);
-        printRatioCell(isFailed(), loop, buf);
-        printRatioCell(isFailed(), condition, buf);
+        StringBuilder buf = new StringBuilder(1600);
+        printRatioCell(isFailed(), getStatementCoverage(), buf);
+        printRatioCell(isFailed(), getBranchCoverage(), buf);
+        printRatioCell(isFailed(), getLoopCoverage(), buf);
+        printRatioCell(isFailed(), getConditionCoverage(), buf);
         return buf.toString();
     }
 
     public boolean hasConditionCoverage() {
-        return condition.isInitialized();
+        return getConditionCoverage().isInitialized();
     }
 
     public boolean hasStatementCoverage() {
-        return statement.isInitialized();
+        return getStatementCoverage().isInitialized();
     }
 
-    
-    static NumberFormat dataFormat = new DecimalFormat("000.00");
-    static NumberFormat percentFormat = new DecimalFormat("0.0");
-    static NumberFormat intFormat = new DecimalFormat("0");
-    
 	protected static void printRatioCell(boolean failed, Ratio ratio, StringBuilder buf) {
 		if (ratio != null && ratio.isInitialized()) {
-			String className = "nowrap" + (failed ? " red" : "");
-			buf.append("<td class='").append(className).append("'");
-			buf.append(" data='").append(dataFormat.format(ratio.getPercentageFloat()));
-			buf.append("'>\n");
-			printRatioTable(ratio, buf);
-			buf.append("</td>\n");
+			try {
+				printRatioCell(failed, ratio.getCovered(), ratio.getTotal(), buf);
+			} catch (IOException e) {
+				throw new AssertionError(e); // a StringBuilder doesn't throw
+			}
 		}
 	}
-	
+
 	protected static void printRatioTable(Ratio ratio, StringBuilder buf){
-		String data = dataFormat.format(ratio.getPercentageFloat());
-		String percent = percentFormat.format(ratio.getPercentageFloat());
-		String numerator = intFormat.format(ratio.getNumerator());
-		String denominator = intFormat.format(ratio.getDenominator());
-		buf.append("<table class='percentgraph' cellpadding='0px' cellspacing='0px'><tr class='percentgraph'>")
-				.append("<td width='64px' class='data'>").append(percent).append("%</td>")
+		try {
+			printRatioTable(ratio.getCovered(), ratio.getTotal(), buf);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Prints a cell for a ratio straight to the response, or any other output.
+	 * Unlike {@link java.text.DecimalFormat}, the formatting is thread safe and
+	 * allocates nothing.
+	 */
+	static void printRatioCell(boolean failed, long covered, long total, Appendable out) throws IOException {
+		float percentage = percentage(covered, total);
+		out.append(failed ? "<td class='nowrap red' data='" : "<td class='nowrap' data='");
+		printFixed(percentage, 3, 2, out);
+		out.append("'>\n");
+		printRatioTable(covered, total, out);
+		out.append("</td>\n");
+	}
+
+	static void printRatioTable(long covered, long total, Appendable out) throws IOException {
+		float percentage = percentage(covered, total);
+		out.append("<table class='percentgraph' cellpadding='0px' cellspacing='0px'><tr class='percentgraph'>")
+				.append("<td width='64px' class='data'>");
+		printFixed(percentage, 1, 1, out);
+		out.append("%</td>")
 				.append("<td class='percentgraph'>")
-				.append("<div class='percentgraph'><div class='greenbar' style='width: ").append(ratio.getPercentageFloat()).append("px;'>")
-				.append("<span class='text'>").append(numerator).append("/").append(denominator)
-				.append("</span></div></div></td></tr></table>") ;
+				.append("<div class='percentgraph'><div class='greenbar' style='width: ");
+		printFixed(percentage, 1, 1, out);
+		out.append("px;'>")
+				.append("<span class='text'>");
+		printLong(covered, out);
+		out.append('/');
+		printLong(total, out);
+		out.append("</span></div></div></td></tr></table>") ;
+	}
+
+	/**
+	 * Same as {@link Ratio#getPercentageFloat()}.
+	 */
+	static float percentage(long covered, long total) {
+		return total<=0? 0: (float) (100.0*covered/total);
+	}
+
+	/**
+	 * Prints a non-negative number like a <tt>DecimalFormat</tt> would, with
+	 * at least <tt>intDigits</tt> digits before the point and exactly
+	 * <tt>fractionDigits</tt> after it.
+	 */
+	static void printFixed(float value, int intDigits, int fractionDigits, Appendable out) throws IOException {
+		long scale = 1;
+		for (int i = 0; i < fractionDigits; i++) {
+			scale *= 10;
+		}
+		// rounded half to even, as DecimalFormat does
+		long scaled = (long) Math.rint(value * (double) scale);
+		long integral = scaled / scale;
+		for (long limit = 10, i = 1; i < intDigits; i++, limit *= 10) {
+			if (integral < limit) {
+				out.append('0');
+			}
+		}
+		printLong(integral, out);
+		out.append('.');
+		long fraction = scaled % scale;
+		for (long digit = scale / 10; digit > 0; digit /= 10) {
+			out.append((char) ('0' + fraction / digit % 10));
+		}
+	}
+
+	private static void printLong(long value, Appendable out) throws IOException {
+		if (value < 0) {
+			out.append('-');
+			value = -value;
+		}
+		long digit = 1;
+		while (value / digit >= 10) {
+			digit *= 10;
+		}
+		for (; digit > 0; digit /= 10) {
+			out.append((char) ('0' + value / digit % 10));
+		}
 	}
 
     /**
      * Generates the graph that shows the coverage trend up to this report.
+     * The image is served from the {@link GraphCache} when it was drawn before.
+     * It is a PNG, or an SVG with <tt>format=svg</tt> or if AWT is not available.
+     *
+     * @see Trend.Window
      */
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        if(ChartUtil.awtProblemCause != null) {
-            // not available. send out error message
-            rsp.sendRedirect2(req.getContextPath()+"/images/headless.png");
-            return;
-        }
-
         AbstractBuild<?,?> build = getBuild();
         Calendar t = build.getTimestamp();
 
         String w = Util.fixEmptyAndTrim(req.getParameter("width"));
         String h = Util.fixEmptyAndTrim(req.getParameter("height"));
-        int width = (w != null) ? Integer.valueOf(w) : 500;
-        int height = (h != null) ? Integer.valueOf(h) : 200;
+        final int width = (w != null) ? Integer.valueOf(w) : 500;
+        final int height = (h != null) ? Integer.valueOf(h) : 200;
+        final Trend.Window window = Trend.Window.of(req, width);
+
+        if ("svg".equals(req.getParameter("format")) || ChartUtil.awtProblemCause != null) {
+            String key = req.getRequestURI() + '|' + build.getNumber() + '|' + width + 'x' + height + '|' + window + "|svg";
+            GraphCache.INSTANCE.serve(req, rsp, build.getParent(), key, "image/svg+xml;charset=UTF-8", new GraphCache.Renderer() {
+                public byte[] render() {
+                    return Trend.of(CoverageObject.this, window).downsample(window.maxPoints).toSvg(width, height).getBytes(UTF8);
+                }
+            });
+            return;
+        }
 
-        new GraphImpl(this, t, width, height) {
+        final GraphImpl graph = new GraphImpl(this, t, width, height) {
 
             @Override
-            protected DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj) {
-                DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-                for (CoverageObject<SELF> a = obj; a != null; a = a.getPreviousResult()) {
-                    NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(a.getBuild());
-                    dsb.add(a.statement.getPercentageFloat(), Messages.CoverageObject_Legend_Statement(), label);
-                    dsb.add(a.loop.getPercentageFloat(), Messages.CoverageObject_Legend_Loop(), label);
-                    dsb.add(a.branch.getPercentageFloat(), Messages.CoverageObject_Legend_Branch(), label);
-                    dsb.add(a.condition.getPercentageFloat(), Messages.CoverageObject_Legend_Condition(), label);
+            protected DataSetBuilder<String, BuildLabel> createDataSet(CoverageObject<SELF> obj) {
+                DataSetBuilder<String, BuildLabel> dsb = new DataSetBuilder<String, BuildLabel>();
+                for (Trend.Point p : Trend.of(obj, window).downsample(window.maxPoints).getPoints()) {
+                    BuildLabel label = new BuildLabel(p.number, p.label);
+                    add(dsb, p, CoverageXmlParser.STATEMENT, Messages.CoverageObject_Legend_Statement(), label);
+                    add(dsb, p, CoverageXmlParser.LOOP, Messages.CoverageObject_Legend_Loop(), label);
+                    add(dsb, p, CoverageXmlParser.BRANCH, Messages.CoverageObject_Legend_Branch(), label);
+                    add(dsb, p, CoverageXmlParser.CONDITION, Messages.CoverageObject_Legend_Condition(), label);
                 }
-
                 return dsb;
             }
-        }.doPng(req, rsp);
+        };
+        // the URL tells which package, source file, class or method the graph is of
+        String key = req.getRequestURI() + '|' + build.getNumber() + '|' + width + 'x' + height + '|' + window;
+        GraphCache.INSTANCE.serve(req, rsp, build.getParent(), key, "image/png", new GraphCache.Renderer() {
+            public byte[] render() throws IOException {
+                return ChartUtilities.encodeAsPNG(graph.createGraph().createBufferedImage(width, height));
+            }
+        });
+    }
+
+    /**
+     * Serves the data of the trend graph as JSON, for the browser to draw it.
+     * It takes the same parameters as {@link #doGraph(StaplerRequest, StaplerResponse)},
+     * and lists the builds and the percentage of every metric column by column:
+     *
+     * <pre>
+     * {"numbers":[1,2],"labels":["#1","#2"],"timestamps":[...],
+     *  "series":[{"name":"statement","legend":"Statement","values":[12.5,null]}, ...]}
+     * </pre>
+     *
+     * A metric that no build has is left out, a build that lacks a metric has a null value.
+     */
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?,?> build = getBuild();
+        String w = Util.fixEmptyAndTrim(req.getParameter("width"));
+        int width = (w != null) ? Integer.valueOf(w) : 500;
+        final Trend.Window window = Trend.Window.of(req, width);
+        String key = req.getRequestURI() + '|' + build.getNumber() + '|' + window;
+        GraphCache.INSTANCE.serve(req, rsp, build.getParent(), key, "application/json;charset=UTF-8", new GraphCache.Renderer() {
+            public byte[] render() {
+                return Trend.of(CoverageObject.this, window).downsample(window.maxPoints).toJSON().getBytes(UTF8);
+            }
+        });
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static void add(DataSetBuilder<String, BuildLabel> dsb, Trend.Point p, int metric, String legend, BuildLabel label) {
+        if (p.hasMetric(metric)) {
+            dsb.add(p.values[metric], legend, label);
+        }
+    }
+
+    /**
+     * Category of the trend graph, which doesn't need the build to be loaded.
+     */
+    static final class BuildLabel implements Comparable<BuildLabel> {
+        final int number;
+        private final String text;
+
+        BuildLabel(int number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+
+        public int compareTo(BuildLabel that) {
+            return this.number - that.number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildLabel && ((BuildLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
     }
 
     public Api getApi() {
@@ -195,7 +350,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
             this.obj = obj;
         }
 
-        protected abstract DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj);
+        protected abstract DataSetBuilder<String, BuildLabel> createDataSet(CoverageObject<SELF> obj);
 
         protected JFreeChart createGraph() {
             final CategoryDataset dataset = createDataSet(obj).build();
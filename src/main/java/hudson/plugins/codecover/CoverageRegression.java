@@ -0,0 +1,170 @@
+package hudson.plugins.codecover;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A package or source file that made the coverage of a build drop, found when
+ * the build is published and kept by its {@link CodeCoverBuildAction}.
+ *
+ * <p>
+ * The drop of the project coverage of a metric is exactly the sum, over the
+ * source files, of <tt>(&Delta;covered - P0 &times; &Delta;total) / T1</tt>,
+ * where <tt>P0</tt> is the project ratio of the previous build and <tt>T1</tt>
+ * the project total of this build. That term is the contribution of a file, in
+ * percentage points; the contribution of a package is the sum over its files.
+ * Only the worst contributions are kept, with a heap of bounded size.
+ */
+public final class CoverageRegression implements Serializable {
+
+    /**
+     * Number of packages and of source files kept for each metric.
+     */
+    static final int SIZE = Integer.getInteger(CoverageRegression.class.getName() + ".size", 10);
+
+    private final int metric;
+    private final boolean pkg;
+    private final String name;
+    private final float contribution;
+
+    /**
+     * Percentages in the previous build and in this one, NaN where the node didn't have the metric.
+     */
+    private final float before;
+    private final float after;
+
+    CoverageRegression(int metric, boolean pkg, String name, float contribution, float before, float after) {
+        this.metric = metric;
+        this.pkg = pkg;
+        this.name = name;
+        this.contribution = contribution;
+        this.before = before;
+        this.after = after;
+    }
+
+    public int getMetric() {
+        return metric;
+    }
+
+    public String getMetricName() {
+        return Trend.getLegend(metric);
+    }
+
+    public boolean isPackage() {
+        return pkg;
+    }
+
+    /**
+     * Gets the name of the package, or the path of the source file, such as <tt>org.acme/Foo.java</tt>.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the share of the drop of the project coverage, in percentage points; negative.
+     */
+    public float getContribution() {
+        return contribution;
+    }
+
+    public float getBefore() {
+        return before;
+    }
+
+    public float getAfter() {
+        return after;
+    }
+
+    /**
+     * Gets the coverage of the node in both builds for the view, such as <tt>75.0% -&gt; 60.0%</tt>.
+     */
+    public String getChangeText() {
+        return format(before) + " \u2192 " + format(after);
+    }
+
+    public String getContributionText() {
+        return String.format("%+.2f", contribution);
+    }
+
+    private static String format(float p) {
+        return Float.isNaN(p) ? "-" : String.format("%.1f%%", p);
+    }
+
+    /**
+     * Worst first.
+     */
+    private static final Comparator<CoverageRegression> WORST_FIRST = new Comparator<CoverageRegression>() {
+        public int compare(CoverageRegression a, CoverageRegression b) {
+            return Float.compare(a.contribution, b.contribution);
+        }
+    };
+
+    /**
+     * Finds the packages and source files that contributed most to the drop of
+     * every metric whose project coverage dropped between two builds.
+     *
+     * @param diff
+     *      the diff between the two builds.
+     * @param before
+     *      the project coverage of the previous build, by metric.
+     * @param after
+     *      the project coverage of this build, by metric.
+     * @return the worst {@link #SIZE} packages and files of each metric, worst first,
+     *      metric by metric; empty if the coverage didn't drop.
+     */
+    static List<CoverageRegression> attribute(CoverageDiff diff, Ratio[] before, Ratio[] after) {
+        List<CoverageRegression> r = new ArrayList<CoverageRegression>();
+        for (int m = 0; m < 4; m++) {
+            if (before[m] == null || after[m] == null || !before[m].isInitialized() || !after[m].isInitialized()
+                    || after[m].getTotal() <= 0 || after[m].getPercentageFloat() >= before[m].getPercentageFloat()) {
+                continue;
+            }
+            double p0 = before[m].getTotal() > 0 ? (double) before[m].getCovered() / before[m].getTotal() : 0;
+            double t1 = after[m].getTotal();
+
+            // the least bad of those kept is at the head, to be dropped first
+            PriorityQueue<CoverageRegression> packages = new PriorityQueue<CoverageRegression>(SIZE + 1, Collections.reverseOrder(WORST_FIRST));
+            PriorityQueue<CoverageRegression> files = new PriorityQueue<CoverageRegression>(SIZE + 1, Collections.reverseOrder(WORST_FIRST));
+            for (CoverageDiff.Row row : diff.getRows()) {
+                if (!row.isChanged()) {
+                    continue;
+                }
+                Ratio b = row.getBefore(m), a = row.getAfter(m);
+                if (a == null && b == null) {
+                    continue;
+                }
+                long dc = (a != null ? a.getCovered() : 0) - (b != null ? b.getCovered() : 0);
+                long dt = (a != null ? a.getTotal() : 0) - (b != null ? b.getTotal() : 0);
+                float contribution = (float) ((dc - p0 * dt) / t1 * 100);
+                if (contribution >= 0) {
+                    continue;
+                }
+                PriorityQueue<CoverageRegression> heap = row.isPackage() ? packages : files;
+                if (heap.size() == SIZE && contribution >= heap.peek().contribution) {
+                    continue;
+                }
+                heap.add(new CoverageRegression(m, row.isPackage(), row.getName(), contribution,
+                        b != null ? b.getPercentageFloat() : Float.NaN, a != null ? a.getPercentageFloat() : Float.NaN));
+                if (heap.size() > SIZE) {
+                    heap.poll();
+                }
+            }
+            addWorstFirst(r, packages);
+            addWorstFirst(r, files);
+        }
+        return r;
+    }
+
+    private static void addWorstFirst(List<CoverageRegression> r, PriorityQueue<CoverageRegression> heap) {
+        List<CoverageRegression> l = new ArrayList<CoverageRegression>(heap);
+        Collections.sort(l, WORST_FIRST);
+        r.addAll(l);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
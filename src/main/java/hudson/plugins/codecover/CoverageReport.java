@@ -3,34 +3,61 @@ package hudson.plugins.codecover;
 import hudson.model.AbstractBuild;
 import hudson.util.IOException2;
 import org.apache.commons.digester.Digester;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.xml.sax.SAXException;
 
+import javax.servlet.http.HttpServletResponse;
+
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Root object of the coverage report.
  * 
  * @author Kohsuke Kawaguchi
  */
-public final class CoverageReport extends CoverageObject<CoverageReport> {
+public final class CoverageReport extends AbstractReport<CoverageReport> {
     private final CodeCoverBuildAction action;
 	
 	private String name;
+
+    /**
+     * The top of the tree, or the whole tree if it isn't segmented.
+     * Loaded on first use.
+     */
+    private CoverageTree tree;
+
+    /**
+     * The segments loaded so far, by child of the root; null if the tree isn't segmented.
+     */
+    private CoverageTree[] segments;
 	
 	public CoverageReport(CodeCoverBuildAction action) {
+        super(null, null, 0);
         this.action = action;
-		this.statement = action.statement;
-		this.branch = action.branch;
-		this.loop = action.loop;
-		this.condition = action.condition;
+		this.statement = action.getStatementCoverage();
+		this.branch = action.getBranchCoverage();
+		this.loop = action.getLoopCoverage();
+		this.condition = action.getConditionCoverage();
 		
         setName("CodeCover");
     }
 	
+    @Override
+    CoverageReport getReport() {
+        return this;
+    }
+
+    @Override
     public String getName() {
         return name;
     }
@@ -39,10 +66,183 @@ public final class CoverageReport extends CoverageObject<CoverageReport> {
         this.name = name;
     }
 
+    @Override
     public String getDisplayName() {
         return name;
     }
 
+    /**
+     * Gets the top of the package / source file / class / method tree of this
+     * build: the root and its children. The subtrees of the children are
+     * loaded by {@link #getSegment(int)}.
+     * Builds recorded before the tree was kept only have the totals.
+     */
+    @Override
+    public synchronized CoverageTree getTree() {
+        if (tree == null) {
+            CoverageSnapshot snapshot = action.getSnapshot();
+            if (snapshot != null) {
+                try {
+                    tree = snapshot.getTopTree();
+                    int n = snapshot.getSegmentCount();
+                    if (n > 0) {
+                        segments = new CoverageTree[n];
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to load the coverage tree of " + action.owner, e);
+                }
+            }
+            if (tree == null) {
+                tree = CoverageTree.of(new Ratio[]{ statement, branch, loop, condition });
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Gets the subtree of a child of the root, loading it on first use.
+     *
+     * @param child
+     *      the id of the child in {@link #getTree()}.
+     * @return
+     *      null if the node isn't a child of the root.
+     */
+    CoverageTree getSegment(int child) {
+        CoverageTree top = getTree();
+        synchronized (this) {
+            if (segments == null || top.getParent(child) != 0) {
+                return null;
+            }
+            // the children of the root are numbered from 1 in the top of the tree
+            CoverageTree s = segments[child - 1];
+            if (s == null) {
+                try {
+                    s = segments[child - 1] = action.getSnapshot().getSegment(child - 1, action.getKeyframeSnapshot());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to load the coverage of " + top.getName(child) + " in " + action.owner, e);
+                    s = segments[child - 1] = CoverageTree.of(top.getTotals(child));
+                }
+                CoverageReportCache.INSTANCE.grow(action, s.getMemorySize());
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Creates the view of a node of the tree.
+     *
+     * @param t
+     *      the top of the tree or a segment.
+     */
+    AbstractReport<?> createNode(CoverageTree t, int id) {
+        if (id == 0 && t == getTree()) {
+            return this;
+        }
+        switch (t.getKind(id)) {
+        case CoverageTree.PACKAGE:
+            return new PackageReport(this, t, id);
+        case CoverageTree.FILE:
+            return new SourceFileReport(this, t, id);
+        case CoverageTree.CLASS:
+            return new ClassReport(this, t, id);
+        default:
+            return new MethodReport(this, t, id);
+        }
+    }
+
+    /**
+     * Finds a node by the names from the root, loading only the segment it is in.
+     *
+     * @return null if this build has no such node.
+     */
+    AbstractReport<?> findNode(List<String> path) {
+        CoverageTree t = getTree();
+        int n = 0;
+        for (String name : path) {
+            if (n != 0 && t == getTree()) {
+                CoverageTree segment = getSegment(n);
+                if (segment != null) {
+                    t = segment;
+                    n = 0;
+                }
+            }
+            n = t.findChild(n, name);
+            if (n < 0) {
+                return null;
+            }
+        }
+        return createNode(t, n);
+    }
+
+    /**
+     * Gets the coverage of every report file that contributed to this build.
+     */
+    public List<ModuleCoverage> getModules() {
+        return action.getModules();
+    }
+
+    /**
+     * Gets the packages and source files that made the coverage drop since the previous build.
+     */
+    public List<CoverageRegression> getRegressions() {
+        return action.getRegressions();
+    }
+
+    /**
+     * Gets the name under which the report of the given module was archived.
+     *
+     * @return null if the reports of this build were not archived.
+     */
+    public String getArchivedReportName(int index) {
+        String name = "coverage" + (index > 0 ? index : "") + ".xml";
+        File folder = CodeCoverPublisher.getCodeCoverReport(action.owner);
+        for (String suffix : new String[]{ "", ".gz", ".ref" }) {
+            if (new File(folder, name + suffix).isFile()) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Serves an archived report, e.g. <tt>archive/coverage1.xml</tt>,
+     * decompressing it while it is sent.
+     * <p>
+     * The report comes from the workspace, so whoever controls the build
+     * controls its content: it is always sent as plain text, never as a
+     * page the browser would run scripts of in Jenkins' origin.
+     */
+    public void doArchive(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String name = req.getRestOfPath();
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        if (!name.matches("coverage[0-9]*\\.xml")) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        InputStream in;
+        try {
+            in = ReportStore.open(action.owner.getParent(), CodeCoverPublisher.getCodeCoverReport(action.owner), name);
+        } catch (FileNotFoundException e) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try {
+            rsp.setContentType("text/plain");
+            rsp.setHeader("X-Content-Type-Options", "nosniff");
+            rsp.setHeader("Content-Security-Policy", "sandbox; default-src 'none'");
+            IOUtils.copy(in, rsp.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    CoverageHistory getHistory() {
+        return CodeCoverBuildAction.getHistory(action.owner);
+    }
+
     @Override
     public CoverageReport getPreviousResult() {
         CodeCoverBuildAction prev = action.getPreviousResult();
@@ -57,4 +257,5 @@ public final class CoverageReport extends CoverageObject<CoverageReport> {
         return action.owner;
     }
 
+    private static final Logger logger = Logger.getLogger(CoverageReport.class.getName());
 }
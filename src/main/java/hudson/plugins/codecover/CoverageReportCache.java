@@ -0,0 +1,279 @@
+package hudson.plugins.codecover;
+
+import hudson.model.Run;
+import hudson.util.IOException2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Controller-wide cache of the {@link CoverageReport}s of recently viewed builds.
+ *
+ * <p>
+ * The cache holds reports up to a memory budget, estimated from the size of
+ * their coverage trees, and evicts the least recently used ones beyond it.
+ * Looking up a cached report takes no lock. A report that several threads
+ * ask for at the same time is loaded once, the other threads waiting for
+ * that load.
+ */
+final class CoverageReportCache {
+
+    /**
+     * Default memory budget, in MB.
+     */
+    static final int DEFAULT_BUDGET = Integer.getInteger(CoverageReportCache.class.getName() + ".budget", 64);
+
+    static final CoverageReportCache INSTANCE = new CoverageReportCache(DEFAULT_BUDGET * 1024L * 1024L);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long budget;
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * Logical clock of the accesses, for the LRU order.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Only taken to evict.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    CoverageReportCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the report of a build, loading it if it isn't cached.
+     */
+    CoverageReport get(final CodeCoverBuildAction action) throws IOException {
+        return get(key(action.owner), new Callable<CoverageReport>() {
+            public CoverageReport call() {
+                return new CoverageReport(action);
+            }
+        });
+    }
+
+    /**
+     * Gets the report cached under a key, loading it if it isn't cached.
+     */
+    CoverageReport get(String key, Callable<CoverageReport> loader) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null) {
+            Entry created = new Entry(loader);
+            // so that evicting right after the load doesn't take the entry for the least recently used
+            created.lastAccess = clock.incrementAndGet();
+            e = entries.putIfAbsent(key, created);
+            if (e == null) {
+                misses.incrementAndGet();
+                e = created;
+                e.load.run();
+                evictIfNeeded();
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        e.lastAccess = clock.incrementAndGet();
+
+        try {
+            return e.load.get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException2("Interrupted while loading the coverage report of " + key, x);
+        } catch (ExecutionException x) {
+            // don't keep the failure
+            if (entries.remove(key, e)) {
+                weight.addAndGet(-e.release());
+            }
+            throw new IOException2("Failed to load the coverage report of " + key, x.getCause());
+        }
+    }
+
+    /**
+     * Accounts for more memory used by the cached report of a build, such as
+     * the parts of its tree loaded since.
+     */
+    void grow(CodeCoverBuildAction action, long bytes) {
+        grow(key(action.owner), bytes);
+    }
+
+    void grow(String key, long bytes) {
+        Entry e = entries.get(key);
+        if (e != null && e.grow(bytes)) {
+            weight.addAndGet(bytes);
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Drops the cached report of a build.
+     */
+    void invalidate(CodeCoverBuildAction action) {
+        invalidate(action.owner);
+    }
+
+    /**
+     * Drops the cached report of a build, such as one being deleted, so that
+     * it doesn't keep the build in memory.
+     */
+    void invalidate(Run<?,?> build) {
+        invalidate(key(build));
+    }
+
+    void invalidate(String key) {
+        Entry e = entries.get(key);
+        if (e != null && entries.remove(key, e)) {
+            weight.addAndGet(-e.release());
+        }
+    }
+
+    /**
+     * Identifies a build by the full name of its job and its number, which
+     * unlike the build object stay the same when the build is reloaded.
+     */
+    private static String key(Run<?,?> build) {
+        return build.getParent().getFullName() + '#' + build.getNumber();
+    }
+
+    /**
+     * Sets the memory budget, in bytes, evicting reports as needed.
+     */
+    void setBudget(long budget) {
+        this.budget = budget;
+        evictIfNeeded();
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    private void evictIfNeeded() {
+        if (weight.get() <= budget || !evictionLock.tryLock()) {
+            // whoever holds the lock is evicting already
+            return;
+        }
+        try {
+            // the access times keep changing, so sort a copy of them
+            List<Candidate> lru = new ArrayList<Candidate>(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                lru.add(new Candidate(e.getKey(), e.getValue()));
+            }
+            Collections.sort(lru);
+            for (Candidate c : lru) {
+                if (weight.get() <= budget) {
+                    break;
+                }
+                if (c.entry.load.isDone() && entries.remove(c.key, c.entry)) {
+                    weight.addAndGet(-c.entry.release());
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * An entry that may be evicted, least recently used first.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        final String key;
+        final Entry entry;
+        final long lastAccess;
+
+        Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+
+        public int compareTo(Candidate that) {
+            return lastAccess < that.lastAccess ? -1 : lastAccess == that.lastAccess ? 0 : 1;
+        }
+    }
+
+    int getSize() {
+        return entries.size();
+    }
+
+    long getWeight() {
+        return weight.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A cached report, or one being loaded.
+     */
+    private final class Entry {
+        final FutureTask<CoverageReport> load;
+        /**
+         * Estimated memory use, set once loaded; guarded by this entry.
+         */
+        private long weight;
+        private boolean released;
+        volatile long lastAccess;
+
+        Entry(final Callable<CoverageReport> loader) {
+            load = new FutureTask<CoverageReport>(new Callable<CoverageReport>() {
+                public CoverageReport call() throws Exception {
+                    CoverageReport r = loader.call();
+                    // accounted before the entry can be evicted, which it can't while loading
+                    long bytes = r.getTree().getMemorySize();
+                    if (grow(bytes)) {
+                        CoverageReportCache.this.weight.addAndGet(bytes);
+                    }
+                    return r;
+                }
+            });
+        }
+
+        /**
+         * @return false if the entry has already left the cache.
+         */
+        synchronized boolean grow(long bytes) {
+            if (released) {
+                return false;
+            }
+            weight += bytes;
+            return true;
+        }
+
+        /**
+         * Marks the entry as removed from the cache.
+         *
+         * @return the memory it accounted for.
+         */
+        synchronized long release() {
+            released = true;
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package hudson.plugins.codecover;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the coverage data kept by every job, according to the settings of
+ * {@link CodeCoverPublisher.DescriptorImpl}.
+ *
+ * <ul>
+ * <li>Only the last builds keep their detailed coverage: the tree in their
+ *     {@link CoverageSnapshot}, their archived reports and sources. Older builds keep
+ *     their totals, except for the keyframes the deltas of the last builds
+ *     are stored against.
+ * <li>The {@link ReportStore} of the job drops the reports and trees that no
+ *     build with detailed coverage refers to any more. This is done whatever
+ *     the settings, whenever detail was dropped or the store is dirty.
+ * <li>The {@link CoverageHistory} of old builds is thinned out to one build
+ *     per day, and further back one build per week.
+ * </ul>
+ *
+ * Every job remembers up to which build its detail was dropped, in
+ * <tt>codecover-retention</tt>, so that only the builds after it are loaded.
+ */
+@Extension
+public final class CoverageRetention extends AsyncPeriodicWork {
+
+    /**
+     * Reports stored less than that long ago are never collected, as the
+     * build storing them may not have recorded them yet.
+     */
+    static final long GRACE_PERIOD = DAY;
+
+    public CoverageRetention() {
+        super("CodeCover coverage retention");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return Long.getLong(CoverageRetention.class.getName() + ".recurrencePeriod", HOUR * 6);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        CodeCoverPublisher.DescriptorImpl d = (CodeCoverPublisher.DescriptorImpl) CodeCoverPublisher.DESCRIPTOR;
+        for (AbstractProject<?,?> job : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!CoverageHistory.getFile(job).exists()) {
+                // never recorded any coverage
+                continue;
+            }
+            try {
+                if (d.getDetailBuilds() > 0) {
+                    dropDetail(job, d.getDetailBuilds(), listener);
+                } else if (ReportStore.of(job).isDirty()) {
+                    // all the builds keep their detail, only collect what deleted builds referred to
+                    dropDetail(job, Integer.MAX_VALUE, listener);
+                }
+                if (d.getDailyHistoryAfter() == 0 && d.getWeeklyHistoryAfter() == 0) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                int removed = CoverageHistory.downsample(job,
+                        d.getDailyHistoryAfter() > 0 ? now - d.getDailyHistoryAfter() * DAY : 0,
+                        d.getWeeklyHistoryAfter() > 0 ? now - d.getWeeklyHistoryAfter() * DAY : 0);
+                if (removed > 0) {
+                    GraphCache.INSTANCE.invalidate(job);
+                    listener.getLogger().println("Rolled up " + removed + " coverage history records of " + job.getFullName());
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to apply the coverage retention to " + job.getFullName(), e);
+            }
+        }
+    }
+
+    /**
+     * A build of a job, as the retention walks them.
+     */
+    interface RetainedBuild {
+        int getNumber();
+
+        boolean isBuilding();
+
+        /**
+         * Tells whether the build recorded coverage.
+         */
+        boolean hasCoverage();
+
+        /**
+         * Gets the number of the build whose snapshot the snapshot of this build
+         * is a delta against, or 0 if it is a keyframe or there is no snapshot.
+         */
+        int getKeyframe();
+
+        List<ModuleCoverage> getModules();
+
+        /**
+         * Reduces the coverage of the build to its totals.
+         *
+         * @return false if there was nothing to drop.
+         */
+        boolean dropDetail() throws IOException;
+
+        RetainedBuild getPrevious();
+    }
+
+    /**
+     * What {@link #dropDetail(File, ReportStore, RetainedBuild, int, long)} did.
+     */
+    static final class Outcome {
+        /**
+         * The number of builds whose detail was dropped.
+         */
+        final int dropped;
+        /**
+         * The number of files deleted from the store.
+         */
+        final int collected;
+
+        Outcome(int dropped, int collected) {
+            this.dropped = dropped;
+            this.collected = collected;
+        }
+    }
+
+    private void dropDetail(AbstractProject<?,?> job, int keep, TaskListener listener) throws IOException {
+        AbstractBuild<?,?> last = job.getLastBuild();
+        Outcome r = dropDetail(getMarkFile(job), ReportStore.of(job), last != null ? new JobBuild(last) : null,
+                keep, System.currentTimeMillis());
+        if (r.dropped > 0) {
+            CoverageDiff.invalidate(job);
+            GraphCache.INSTANCE.invalidate(job);
+        }
+        if (r.dropped > 0 || r.collected > 0) {
+            listener.getLogger().println("Dropped the detailed coverage of " + r.dropped + " builds and "
+                    + r.collected + " stored reports of " + job.getFullName());
+        }
+    }
+
+    /**
+     * Drops the detailed coverage of the builds of a job but the last <tt>keep</tt>
+     * ones that recorded coverage. The builds are walked from the newest one back to
+     * the mark, rather than the records of the history, which may have been
+     * rolled up. Then collects the reports none of the remaining builds refer to.
+     *
+     * @param newest
+     *      the last build of the job, null if there is none.
+     * @param now
+     *      the current time, which the grace period of the store is counted from.
+     */
+    static Outcome dropDetail(File mark, ReportStore store, RetainedBuild newest, int keep, long now) throws IOException {
+        int done = readMark(mark);
+        store.markClean();
+
+        // what the builds that keep their detail refer to
+        Set<Integer> keyframes = new HashSet<Integer>();
+        Set<String> digests = new HashSet<String>();
+        int kept = 0;
+        int dropped = 0;
+        // the oldest build that keeps its detail; the builds before it have none left
+        int oldest = 0;
+        for (RetainedBuild b = newest; b != null && b.getNumber() > done; b = b.getPrevious()) {
+            if (b.isBuilding()) {
+                oldest = b.getNumber();
+                continue;
+            }
+            if (!b.hasCoverage()) {
+                continue;
+            }
+            if (kept < keep || keyframes.contains(b.getNumber())) {
+                // a keyframe is looked at again once the deltas against it are gone
+                if (kept < keep) {
+                    kept++;
+                    if (b.getKeyframe() > 0) {
+                        keyframes.add(b.getKeyframe());
+                    }
+                }
+                oldest = b.getNumber();
+                // keyframes included, as they keep their archived reports too
+                for (ModuleCoverage m : b.getModules()) {
+                    if (m.getDigest() != null) {
+                        digests.add(m.getDigest());
+                    }
+                }
+            } else if (b.dropDetail()) {
+                dropped++;
+            }
+        }
+        if (oldest - 1 > done) {
+            writeMark(mark, oldest - 1);
+        }
+
+        int collected = store.collectGarbage(digests, now - GRACE_PERIOD);
+        return new Outcome(dropped, collected);
+    }
+
+    /**
+     * A build of a job, read as it is walked.
+     */
+    private static final class JobBuild implements RetainedBuild {
+        private final AbstractBuild<?,?> build;
+        private final CodeCoverBuildAction action;
+
+        JobBuild(AbstractBuild<?,?> build) {
+            this.build = build;
+            this.action = build.getAction(CodeCoverBuildAction.class);
+        }
+
+        public int getNumber() {
+            return build.getNumber();
+        }
+
+        public boolean isBuilding() {
+            return build.isBuilding();
+        }
+
+        public boolean hasCoverage() {
+            return action != null;
+        }
+
+        public int getKeyframe() {
+            CoverageSnapshot s = action.getSnapshot();
+            return s != null && s.isDelta() ? s.getKeyframe() : 0;
+        }
+
+        public List<ModuleCoverage> getModules() {
+            return action.getModules();
+        }
+
+        public boolean dropDetail() throws IOException {
+            Ratio[] totals = {
+                action.getStatementCoverage(), action.getBranchCoverage(),
+                action.getLoopCoverage(), action.getConditionCoverage()
+            };
+            boolean dropped = CoverageRetention.dropDetail(CodeCoverPublisher.getCodeCoverReport(build),
+                    action.getSnapshot(), totals, action.getModules());
+            if (dropped) {
+                action.resetSnapshot();
+                CoverageReportCache.INSTANCE.invalidate(action);
+            }
+            return dropped;
+        }
+
+        public RetainedBuild getPrevious() {
+            AbstractBuild<?,?> b = build.getPreviousBuild();
+            return b != null ? new JobBuild(b) : null;
+        }
+    }
+
+    /**
+     * Reduces the coverage recorded in the <tt>codecover</tt> folder of a build
+     * to its totals: the snapshot is rewritten without its tree, and the archived
+     * reports and sources are deleted.
+     *
+     * @param snapshot
+     *      the snapshot of the build, null if it has none.
+     * @return false if there was nothing to drop.
+     */
+    static boolean dropDetail(File folder, CoverageSnapshot snapshot, Ratio[] totals, List<ModuleCoverage> modules) throws IOException {
+        boolean dropped = false;
+        if (snapshot != null && snapshot.hasDetail()) {
+            CoverageSnapshot.write(CoverageSnapshot.getFile(folder), totals, modules, CoverageTree.of(totals));
+            dropped = true;
+        }
+        File[] archived = folder.listFiles();
+        if (archived != null) {
+            for (File f : archived) {
+                if (f.getName().matches("coverage[0-9]*\\.xml(\\.gz|\\.ref)?") && f.delete()) {
+                    dropped = true;
+                } else if (f.isDirectory() && f.getName().matches("sources|source-lines|source-index")) {
+                    Util.deleteRecursive(f);
+                    dropped = true;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Gets the file remembering up to which build the detail of a job was dropped.
+     */
+    static File getMarkFile(Job<?,?> job) {
+        return new File(job.getRootDir(), "codecover-retention");
+    }
+
+    private static int readMark(File mark) throws IOException {
+        try {
+            Reader r = new FileReader(mark);
+            try {
+                StringBuilder b = new StringBuilder();
+                int c;
+                while ((c = r.read()) >= 0) {
+                    b.append((char) c);
+                }
+                return Integer.parseInt(b.toString().trim());
+            } finally {
+                r.close();
+            }
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeMark(File mark, int number) throws IOException {
+        Writer w = new FileWriter(mark);
+        try {
+            w.write(Integer.toString(number));
+        } finally {
+            w.close();
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(CoverageRetention.class.getName());
+}
@@ -0,0 +1,555 @@
+package hudson.plugins.codecover;
+
+import hudson.model.AbstractBuild;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the coverage recorded by a build, stored as
+ * <tt>codecover/coverage.snapshot</tt> in the build folder.
+ *
+ * <p>
+ * The snapshot replaces the coverage fields that used to be written into
+ * <tt>build.xml</tt>. Only its fixed size header is read when it is opened,
+ * which is all that reading the totals of a build, as the trend graphs and
+ * portlets do, needs. Every other section is read and decoded only when asked
+ * for, with a positional read of its own. No file handle or mapping is kept
+ * between reads, so that the file can be replaced or deleted at any time,
+ * on Windows too; reading a section of a file that was replaced since it was
+ * opened fails, rather than mixing up both files. A file is told apart from
+ * the one it replaced by its length, its modification time and, where the
+ * file system has one, its file key, as a rewrite may well keep the length.
+ *
+ * <p>
+ * The coverage tree is split into segments: the top of the tree holds the
+ * root and its children, usually the packages, and each child has its own
+ * segment with its subtree. Showing a package thus decodes only that package.
+ *
+ * <p>
+ * Consecutive builds usually change only a few files, so a snapshot may be a
+ * delta against an earlier snapshot of the job, its keyframe, which has all
+ * its segments in full. The segment of a delta holds the top of the subtree,
+ * i.e. the package and its files, and the subtree of each file that differs
+ * from the keyframe; the other files are taken from the keyframe. Decoded
+ * keyframe segments are kept in a small LRU cache, as the deltas between two
+ * keyframes all refer to the same one.
+ *
+ * <pre>
+ * int    magic "CCSN"
+ * int    version
+ * int    metrics present in the totals, one bit per metric
+ * long[] covered and total count of the four metrics
+ * int    number of modules
+ * int    offset of the top of the tree
+ * int    number of segments, one per child of the root
+ * int    offset of the segment table
+ * int    number of the keyframe build, 0 if this snapshot is a keyframe
+ * int    number of deltas since the keyframe, this one included
+ * modules: name, digest ("" if unknown), metrics bits, long[8] counters
+ * top:     as written by {@link CoverageTree#write(OutputStream)}
+ * segment table: long offset and int length of each segment
+ * segments: as written by {@link CoverageTree#write(OutputStream)}
+ * delta segments: int length and the top of the subtree, then for each file
+ *                 a boolean telling whether it differs from the keyframe,
+ *                 if so followed by int length and the subtree of the file
+ * </pre>
+ *
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+final class CoverageSnapshot {
+
+    private static final int MAGIC = 0x4343534e; // "CCSN"
+
+    private static final int VERSION = 1;
+
+    /**
+     * Offset of the totals.
+     */
+    private static final int TOTALS = 8;
+
+    /**
+     * Offset of the number of modules, followed by the offset of the tree.
+     */
+    private static final int MODULES = TOTALS + 4 + 8 * 8;
+
+    /**
+     * Offset of the number of segments, followed by the offset of their table.
+     */
+    private static final int SEGMENTS = MODULES + 4 + 4;
+
+    /**
+     * Offset of the number of the keyframe build, followed by the distance to it.
+     */
+    private static final int KEYFRAME = SEGMENTS + 4 + 4;
+
+    /**
+     * Size of the fixed part.
+     */
+    private static final int HEADER = KEYFRAME + 4 + 4;
+
+    private static final int SEGMENT_ENTRY = 8 + 4;
+
+    /**
+     * Number of decoded keyframe segments kept in memory.
+     */
+    private static final int KEYFRAME_CACHE_SIZE = Integer.getInteger(CoverageSnapshot.class.getName() + ".keyframeCacheSize", 64);
+
+    /**
+     * Decoded keyframe segments, by file and segment name, least recently used first.
+     */
+    private static final Map<String, CoverageTree> keyframes = new LinkedHashMap<String, CoverageTree>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CoverageTree> eldest) {
+            return size() > KEYFRAME_CACHE_SIZE;
+        }
+    };
+
+    private final File file;
+
+    /**
+     * The header, the offsets in which are those of the file.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The length of the file when it was opened.
+     */
+    private final long length;
+
+    /**
+     * What told the file apart when it was opened, see {@link #identify(File)}.
+     */
+    private final List<Object> identity;
+
+    private CoverageSnapshot(File file, ByteBuffer buffer, long length, List<Object> identity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.length = length;
+        this.identity = identity;
+    }
+
+    /**
+     * Gets the snapshot file of a build.
+     */
+    static File getFile(AbstractBuild<?,?> build) {
+        return getFile(CodeCoverPublisher.getCodeCoverReport(build));
+    }
+
+    /**
+     * @param folder
+     *      the <tt>codecover</tt> folder of a build.
+     */
+    static File getFile(File folder) {
+        return new File(folder, "coverage.snapshot");
+    }
+
+    /**
+     * Opens a snapshot, reading its header.
+     */
+    static CoverageSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // taken once the file is open, so that it is the file being read
+            List<Object> identity = identify(file);
+            long length = raf.length();
+            if (length < HEADER) {
+                throw new IOException("Not a coverage snapshot: " + file);
+            }
+            byte[] header = new byte[HEADER];
+            raf.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a coverage snapshot: " + file);
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported coverage snapshot version " + version + ": " + file);
+            }
+            return new CoverageSnapshot(file, buffer, length, identity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Gets what tells a file apart from another file that replaced it:
+     * its length, its modification time and its file key, if any.
+     */
+    private static List<Object> identify(File file) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return Arrays.asList(a.size(), a.lastModifiedTime(), a.fileKey());
+    }
+
+    /**
+     * Reads a section of the file.
+     */
+    private ByteBuffer read(long position, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() != length || !identify(file).equals(identity)) {
+                throw new IOException(file + " was replaced since it was opened");
+            }
+            if (position < HEADER || size < 0 || position + size > length) {
+                throw new IOException("Corrupt coverage snapshot: " + file);
+            }
+            byte[] b = new byte[(int) size];
+            raf.seek(position);
+            raf.readFully(b);
+            return ByteBuffer.wrap(b);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static InputStream stream(ByteBuffer b, int position) throws IOException {
+        if (position < 0 || position > b.capacity()) {
+            throw new IOException("Corrupt coverage snapshot section");
+        }
+        return new ByteArrayInputStream(b.array(), position, b.capacity() - position);
+    }
+
+    /**
+     * Drops the decoded segments of a keyframe, which is about to be replaced or deleted.
+     */
+    static void evict(File file) {
+        String prefix = file.getPath() + '\0';
+        synchronized (keyframes) {
+            for (Iterator<String> it = keyframes.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot with all its segments in full, i.e. a keyframe.
+     * The file is replaced atomically.
+     */
+    static void write(File file, Ratio[] totals, List<ModuleCoverage> modules, CoverageTree tree) throws IOException {
+        write(file, totals, modules, tree, null, 0, 0);
+    }
+
+    /**
+     * Writes a snapshot. The file is replaced atomically.
+     *
+     * @param keyframe
+     *      the keyframe to write a delta against, null to write a keyframe.
+     * @param keyframeNumber
+     *      the number of the build of the keyframe.
+     * @param distance
+     *      the number of deltas since the keyframe, this one included.
+     */
+    static void write(File file, Ratio[] totals, List<ModuleCoverage> modules, CoverageTree tree,
+                      CoverageSnapshot keyframe, int keyframeNumber, int distance) throws IOException {
+        if (keyframe != null && keyframe.isDelta()) {
+            throw new IllegalArgumentException("Not a keyframe: " + keyframe.file);
+        }
+        ByteArrayOutputStream moduleBytes = new ByteArrayOutputStream();
+        DataOutputStream m = new DataOutputStream(moduleBytes);
+        for (ModuleCoverage module : modules) {
+            m.writeUTF(module.getName());
+            m.writeUTF(module.getDigest() != null ? module.getDigest() : "");
+            writeCounts(m, module.getRatios());
+        }
+        m.flush();
+
+        // the segments go after their table, whose size is known
+        int segmentCount = 0;
+        ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream t = new DataOutputStream(table);
+        List<CoverageTree> segments = new ArrayList<CoverageTree>();
+        for (int c = tree.getFirstChild(0); c >= 0; c = tree.getNextSibling(c)) {
+            segments.add(tree.subtree(c));
+        }
+        ByteArrayOutputStream top = new ByteArrayOutputStream();
+        tree.top().write(top);
+        long segmentStart = HEADER + moduleBytes.size() + top.size() + (long) segments.size() * SEGMENT_ENTRY;
+        for (CoverageTree segment : segments) {
+            int before = segmentBytes.size();
+            if (keyframe != null) {
+                writeDelta(new DataOutputStream(segmentBytes), segment, keyframe.getKeyframeSegment(segment.getName(0)));
+            } else {
+                segment.write(segmentBytes);
+            }
+            t.writeLong(segmentStart + before);
+            t.writeInt(segmentBytes.size() - before);
+            segmentCount++;
+        }
+        t.flush();
+
+        file.getParentFile().mkdirs();
+        File tmp = File.createTempFile("coverage", ".tmp", file.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeCounts(out, totals);
+                out.writeInt(modules.size());
+                out.writeInt(HEADER + moduleBytes.size());
+                out.writeInt(segmentCount);
+                out.writeInt(HEADER + moduleBytes.size() + top.size());
+                out.writeInt(keyframe != null ? keyframeNumber : 0);
+                out.writeInt(keyframe != null ? distance : 0);
+                moduleBytes.writeTo(out);
+                top.writeTo(out);
+                table.writeTo(out);
+                segmentBytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        evict(file);
+    }
+
+    /**
+     * Writes a segment as a delta against the segment of the same name in the keyframe.
+     *
+     * @param base
+     *      null if the keyframe has no such segment.
+     */
+    private static void writeDelta(DataOutputStream out, CoverageTree segment, CoverageTree base) throws IOException {
+        writeTree(out, segment.top());
+        for (int c = segment.getFirstChild(0); c >= 0; c = segment.getNextSibling(c)) {
+            int b = base != null ? base.findChild(0, segment.getName(c)) : -1;
+            boolean changed = b < 0 || !segment.subtreeEquals(c, base, b);
+            out.writeBoolean(changed);
+            if (changed) {
+                writeTree(out, segment.subtree(c));
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeTree(DataOutputStream out, CoverageTree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tree.write(bytes);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static void writeCounts(DataOutputStream out, Ratio[] ratios) throws IOException {
+        int metrics = 0;
+        for (int i = 0; i < 4; i++) {
+            if (ratios[i] != null && ratios[i].isInitialized()) {
+                metrics |= 1 << i;
+            }
+        }
+        out.writeInt(metrics);
+        for (int i = 0; i < 4; i++) {
+            boolean present = (metrics & (1 << i)) != 0;
+            out.writeLong(present ? ratios[i].getCovered() : 0);
+            out.writeLong(present ? ratios[i].getTotal() : 0);
+        }
+    }
+
+    private static Ratio[] readCounts(ByteBuffer b, int pos) {
+        int metrics = b.getInt(pos);
+        Ratio[] r = new Ratio[4];
+        for (int i = 0; i < 4; i++) {
+            if ((metrics & (1 << i)) != 0) {
+                r[i] = new Ratio(b.getLong(pos + 4 + i * 16), b.getLong(pos + 12 + i * 16));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Gets the coverage of a metric.
+     *
+     * @return null if no report had that metric.
+     */
+    Ratio getRatio(int metric) {
+        int metrics = buffer.getInt(TOTALS);
+        if ((metrics & (1 << metric)) == 0) {
+            return null;
+        }
+        return new Ratio(buffer.getLong(TOTALS + 4 + metric * 16), buffer.getLong(TOTALS + 12 + metric * 16));
+    }
+
+    List<ModuleCoverage> getModules() throws IOException {
+        int n = buffer.getInt(MODULES);
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        int top = buffer.getInt(MODULES + 4);
+        DataInputStream in = new DataInputStream(stream(read(HEADER, top - HEADER), 0));
+        ByteBuffer counts = ByteBuffer.allocate(4 + 8 * 8);
+        List<ModuleCoverage> r = new ArrayList<ModuleCoverage>(n);
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            String digest = in.readUTF();
+            in.readFully(counts.array());
+            r.add(new ModuleCoverage(name, digest.length() > 0 ? digest : null, readCounts(counts, 0)));
+        }
+        return r;
+    }
+
+    /**
+     * Gets the top of the tree: the root and its children.
+     */
+    CoverageTree getTopTree() throws IOException {
+        int top = buffer.getInt(MODULES + 4);
+        return CoverageTree.read(stream(read(top, buffer.getInt(SEGMENTS + 4) - top), 0));
+    }
+
+    /**
+     * Gets the number of segments, one per child of the root.
+     */
+    int getSegmentCount() {
+        return buffer.getInt(SEGMENTS);
+    }
+
+    /**
+     * Tells whether this snapshot has more than the totals of the build.
+     */
+    boolean hasDetail() {
+        return getSegmentCount() > 0;
+    }
+
+    /**
+     * Tells whether this snapshot is a delta against a keyframe.
+     */
+    boolean isDelta() {
+        return getKeyframe() != 0;
+    }
+
+    /**
+     * Gets the number of the build whose snapshot this one is a delta against.
+     *
+     * @return 0 if this snapshot is a keyframe.
+     */
+    int getKeyframe() {
+        return buffer.getInt(KEYFRAME);
+    }
+
+    /**
+     * Gets the number of deltas since the keyframe, this one included.
+     */
+    int getDistance() {
+        return buffer.getInt(KEYFRAME + 4);
+    }
+
+    /**
+     * Gets the subtree of the i-th child of the root of a keyframe.
+     */
+    CoverageTree getSegment(int i) throws IOException {
+        return getSegment(i, null);
+    }
+
+    /**
+     * Gets the subtree of the i-th child of the root.
+     *
+     * @param keyframe
+     *      the snapshot of {@link #getKeyframe()} if this snapshot is a delta.
+     */
+    CoverageTree getSegment(int i, CoverageSnapshot keyframe) throws IOException {
+        if (i < 0 || i >= getSegmentCount()) {
+            throw new IndexOutOfBoundsException("No segment " + i);
+        }
+        ByteBuffer entry = read(buffer.getInt(SEGMENTS + 4) + (long) i * SEGMENT_ENTRY, SEGMENT_ENTRY);
+        ByteBuffer segment = read(entry.getLong(0), entry.getInt(8));
+        if (!isDelta()) {
+            return CoverageTree.read(stream(segment, 0));
+        }
+        if (keyframe == null) {
+            throw new IOException("The keyframe of " + file + ", build #" + getKeyframe() + ", is missing");
+        }
+
+        CoverageTree top = CoverageTree.read(stream(segment, 4));
+        int pos = 4 + segment.getInt(0);
+        CoverageTree base = null;
+        List<CoverageTree> files = new ArrayList<CoverageTree>();
+        for (int c = top.getFirstChild(0); c >= 0; c = top.getNextSibling(c)) {
+            boolean changed = segment.get(pos++) != 0;
+            if (changed) {
+                files.add(CoverageTree.read(stream(segment, pos + 4)));
+                pos += 4 + segment.getInt(pos);
+            } else {
+                if (base == null) {
+                    base = keyframe.getKeyframeSegment(top.getName(0));
+                }
+                int b = base != null ? base.findChild(0, top.getName(c)) : -1;
+                if (b < 0) {
+                    throw new IOException("The keyframe of " + file + " has no " + top.getName(c));
+                }
+                files.add(base.subtree(b));
+            }
+        }
+        return CoverageTree.join(top, files);
+    }
+
+    /**
+     * Gets the whole tree, with all its segments.
+     *
+     * @param keyframe
+     *      the snapshot of {@link #getKeyframe()} if this snapshot is a delta.
+     */
+    CoverageTree getTree(CoverageSnapshot keyframe) throws IOException {
+        int n = getSegmentCount();
+        List<CoverageTree> segments = new ArrayList<CoverageTree>(n);
+        for (int i = 0; i < n; i++) {
+            segments.add(getSegment(i, keyframe));
+        }
+        return CoverageTree.join(getTopTree(), segments);
+    }
+
+    /**
+     * Gets the coverage of the four metrics, null for those no report had.
+     */
+    Ratio[] getRatios() {
+        return readCounts(buffer, TOTALS);
+    }
+
+    /**
+     * Gets a segment of this keyframe by name, through the cache of decoded keyframe segments.
+     *
+     * @return null if there is no such segment.
+     */
+    private CoverageTree getKeyframeSegment(String name) throws IOException {
+        String key = file.getPath() + '\0' + name;
+        synchronized (keyframes) {
+            CoverageTree segment = keyframes.get(key);
+            if (segment != null) {
+                return segment;
+            }
+        }
+        // the children of the root are numbered from 1 in the top of the tree
+        int child = getTopTree().findChild(0, name);
+        if (child < 0) {
+            return null;
+        }
+        CoverageTree segment = getSegment(child - 1);
+        synchronized (keyframes) {
+            keyframes.put(key, segment);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,87 @@
+package hudson.plugins.codecover;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Compact result of parsing the coverage reports of a build.
+ *
+ * <p>
+ * This is what travels back from the agent when the reports are parsed
+ * where they were generated, instead of the reports themselves. The trees of
+ * the reports don't travel with it, but separately and compressed, to be
+ * written to the {@link ReportStore} of the job by the master.
+ */
+public final class CoverageSummary implements Serializable {
+    /**
+     * Remote paths of the report files that were parsed.
+     */
+    private final String[] reports;
+
+    /**
+     * Coverage of each report, in the same order as {@link #reports}.
+     */
+    private final List<ModuleCoverage> modules;
+
+    /**
+     * Coverage tree of each report, in the same order as {@link #reports};
+     * <code>null</code> for the reports that were not parsed again.
+     * Not sent over the channel.
+     */
+    private final transient CoverageTree[] trees;
+
+    /**
+     * Statement, branch, loop and condition coverage, in that order.
+     */
+    private final Ratio[] ratios;
+
+    /**
+     * Number of reports whose previous result was reused instead of parsing them again.
+     */
+    private final int reused;
+
+    public CoverageSummary(String[] reports, List<ModuleCoverage> modules, CoverageTree[] trees, Ratio[] ratios, int reused) {
+        this.reports = reports;
+        this.modules = modules;
+        this.trees = trees;
+        this.ratios = ratios;
+        this.reused = reused;
+    }
+
+    public String[] getReports() {
+        return reports;
+    }
+
+    public List<ModuleCoverage> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return null once the summary has been sent over the channel.
+     */
+    public CoverageTree[] getTrees() {
+        return trees;
+    }
+
+    public int getReused() {
+        return reused;
+    }
+
+    public Ratio getStatement() {
+        return ratios[CoverageXmlParser.STATEMENT];
+    }
+
+    public Ratio getBranch() {
+        return ratios[CoverageXmlParser.BRANCH];
+    }
+
+    public Ratio getLoop() {
+        return ratios[CoverageXmlParser.LOOP];
+    }
+
+    public Ratio getCondition() {
+        return ratios[CoverageXmlParser.CONDITION];
+    }
+
+    private static final long serialVersionUID = 5L;
+}
@@ -0,0 +1,658 @@
+package hudson.plugins.codecover;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Package / source file / class / method coverage of a build.
+ *
+ * <p>
+ * The tree is stored as flat parallel primitive arrays indexed by node id,
+ * rather than as one object per node. Nodes are numbered in pre-order, so
+ * the descendants of node <tt>i</tt> are exactly the nodes
+ * <tt>i+1 .. end[i]-1</tt>; its first child is <tt>i+1</tt> and the sibling
+ * after child <tt>c</tt> is <tt>end[c]</tt>. Node 0 is the root. Siblings are
+ * sorted by kind and name, so two trees can be walked side by side.
+ *
+ * <p>
+ * Instances are immutable once built.
+ */
+public final class CoverageTree implements Serializable {
+
+    public static final byte ROOT = 0;
+    public static final byte PACKAGE = 1;
+    public static final byte FILE = 2;
+    public static final byte CLASS = 3;
+    public static final byte METHOD = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int size;
+    private final byte[] kind;
+    private final int[] parent;
+    private final int[] end;
+    /**
+     * Bit <tt>m</tt> is set if the node has counters for metric <tt>m</tt>.
+     */
+    private final byte[] metrics;
+    /**
+     * Exact covered and total count of the metrics a node has, in metric order.
+     * Node <tt>i</tt> uses <tt>counts[countStart[i] .. countStart[i+1]-1]</tt>,
+     * two entries per bit set in <tt>metrics[i]</tt>.
+     */
+    private final long[] counts;
+    private final int[] countStart;
+    /**
+     * Node <tt>i</tt> is named by <tt>names[nameStart[i] .. nameStart[i+1]-1]</tt>, in UTF-8.
+     */
+    private final int[] nameStart;
+    private final byte[] names;
+
+    private CoverageTree(int size, byte[] kind, int[] parent, int[] end, byte[] metrics, long[] counts, int[] countStart, int[] nameStart, byte[] names) {
+        this.size = size;
+        this.kind = kind;
+        this.parent = parent;
+        this.end = end;
+        this.metrics = metrics;
+        this.counts = counts;
+        this.countStart = countStart;
+        this.nameStart = nameStart;
+        this.names = names;
+    }
+
+    /**
+     * Creates a tree that only has a root, holding the given totals.
+     */
+    public static CoverageTree of(Ratio[] totals) {
+        Appender a = new Appender();
+        a.add(ROOT, -1, new byte[0]);
+        for (int m = 0; m < 4; m++) {
+            if (totals[m] != null && totals[m].isInitialized()) {
+                a.addCounts(0, m, totals[m].getCovered(), totals[m].getTotal());
+            }
+        }
+        a.end[0] = 1;
+        return a.toTree();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Estimates the heap used by this tree, in bytes.
+     */
+    public long getMemorySize() {
+        return 128L + size * (1 + 4 + 4 + 1 + 4 + 4) + counts.length * 8L + names.length;
+    }
+
+    public byte getKind(int node) {
+        return kind[node];
+    }
+
+    public String getName(int node) {
+        return new String(names, nameStart[node], nameStart[node + 1] - nameStart[node], UTF8);
+    }
+
+    /**
+     * @return -1 for the root.
+     */
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @return -1 if the node has no children.
+     */
+    public int getFirstChild(int node) {
+        return node + 1 < end[node] ? node + 1 : -1;
+    }
+
+    /**
+     * @return -1 if the child is the last one of its parent.
+     */
+    public int getNextSibling(int node) {
+        int p = parent[node];
+        return p >= 0 && end[node] < end[p] ? end[node] : -1;
+    }
+
+    public boolean hasChildren(int node) {
+        return node + 1 < end[node];
+    }
+
+    public boolean hasMetric(int node, int metric) {
+        return (metrics[node] & (1 << metric)) != 0;
+    }
+
+    public long getCovered(int node, int metric) {
+        int i = countIndex(node, metric);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    public long getTotal(int node, int metric) {
+        int i = countIndex(node, metric);
+        return i < 0 ? 0 : counts[i + 1];
+    }
+
+    /**
+     * Index of the covered count of a metric in {@link #counts}, or -1 if the node has no such metric.
+     */
+    private int countIndex(int node, int metric) {
+        int bit = 1 << metric;
+        if ((metrics[node] & bit) == 0) {
+            return -1;
+        }
+        return countStart[node] + 2 * Integer.bitCount(metrics[node] & (bit - 1));
+    }
+
+    /**
+     * Gets the coverage of a node, or an uninitialized {@link Ratio} if the node has no such metric.
+     */
+    public Ratio getRatio(int node, int metric) {
+        if (!hasMetric(node, metric)) {
+            return new Ratio();
+        }
+        return new Ratio(getCovered(node, metric), getTotal(node, metric));
+    }
+
+    /**
+     * Gets statement, branch, loop and condition coverage of a node;
+     * a metric the node doesn't have is <code>null</code>.
+     */
+    public Ratio[] getTotals(int node) {
+        Ratio[] r = new Ratio[4];
+        for (int m = 0; m < r.length; m++) {
+            if (hasMetric(node, m)) {
+                r[m] = getRatio(node, m);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Finds a child by name.
+     *
+     * @return -1 if there's no such child.
+     */
+    public int findChild(int node, String name) {
+        byte[] key = name.getBytes(UTF8);
+        for (int c = getFirstChild(node); c >= 0; c = getNextSibling(c)) {
+            if (nameEquals(c, key)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the node with the same path (names from the root) as the node of another tree.
+     *
+     * @return -1 if this tree has no such node.
+     */
+    public int find(CoverageTree other, int otherNode) {
+        if (otherNode == 0) {
+            return 0;
+        }
+        int p = find(other, other.getParent(otherNode));
+        return p < 0 ? -1 : findChild(p, other.getName(otherNode));
+    }
+
+    /**
+     * Compares the names of two nodes in Unicode order, without decoding them.
+     */
+    public int compareNames(int a, int b) {
+        return compareNames(a, this, b);
+    }
+
+    /**
+     * Compares the name of a node with the name of a node of another tree.
+     *
+     * @see #compareNames(int, int)
+     */
+    public int compareNames(int node, CoverageTree other, int otherNode) {
+        int i = nameStart[node], iEnd = nameStart[node + 1];
+        int j = other.nameStart[otherNode], jEnd = other.nameStart[otherNode + 1];
+        for (; i < iEnd && j < jEnd; i++, j++) {
+            if (names[i] != other.names[j]) {
+                // UTF-8 preserves the order of code points when compared unsigned
+                return (names[i] & 0xFF) - (other.names[j] & 0xFF);
+            }
+        }
+        return (iEnd - i) - (jEnd - j);
+    }
+
+    private boolean nameEquals(int node, byte[] key) {
+        int start = nameStart[node];
+        int len = nameStart[node + 1] - start;
+        if (len != key.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (names[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the trees of several reports: nodes with the same path are
+     * combined and their counters summed up.
+     */
+    public static CoverageTree merge(List<CoverageTree> trees) {
+        int n = trees.size();
+        if (n == 0) {
+            return of(new Ratio[4]);
+        }
+        int[] roots = new int[n];
+        Appender out = new Appender();
+        mergeGroup(out, trees, range(n), roots, -1);
+        return out.toTree();
+    }
+
+    /**
+     * Appends the combination of the given nodes, then their merged children.
+     */
+    private static void mergeGroup(Appender out, List<CoverageTree> trees, int[] treeIdx, int[] nodeIdx, int parent) {
+        CoverageTree first = trees.get(treeIdx[0]);
+        int id = out.add(first.kind[nodeIdx[0]], parent, first.nameBytes(nodeIdx[0]));
+        List<Ref> children = new ArrayList<Ref>();
+        for (int i = 0; i < treeIdx.length; i++) {
+            CoverageTree t = trees.get(treeIdx[i]);
+            int node = nodeIdx[i];
+            for (int m = 0; m < 4; m++) {
+                if (t.hasMetric(node, m)) {
+                    out.addCounts(id, m, t.getCovered(node, m), t.getTotal(node, m));
+                }
+            }
+            for (int c = t.getFirstChild(node); c >= 0; c = t.getNextSibling(c)) {
+                children.add(new Ref(treeIdx[i], t, c));
+            }
+        }
+        Collections.sort(children, Ref.ORDER);
+
+        int from = 0;
+        while (from < children.size()) {
+            Ref head = children.get(from);
+            int to = from + 1;
+            while (to < children.size() && Ref.ORDER.compare(head, children.get(to)) == 0) {
+                to++;
+            }
+            int[] ts = new int[to - from];
+            int[] ns = new int[to - from];
+            for (int i = from; i < to; i++) {
+                ts[i - from] = children.get(i).tree;
+                ns[i - from] = children.get(i).node;
+            }
+            mergeGroup(out, trees, ts, ns, id);
+            from = to;
+        }
+        out.end[id] = out.size;
+    }
+
+    private byte[] nameBytes(int node) {
+        return Arrays.copyOfRange(names, nameStart[node], nameStart[node + 1]);
+    }
+
+    private static int[] range(int n) {
+        int[] r = new int[n];
+        for (int i = 0; i < n; i++) {
+            r[i] = i;
+        }
+        return r;
+    }
+
+    /**
+     * A node of one of the trees being merged.
+     */
+    private static final class Ref {
+        final int tree;
+        final CoverageTree t;
+        final int node;
+
+        Ref(int tree, CoverageTree t, int node) {
+            this.tree = tree;
+            this.t = t;
+            this.node = node;
+        }
+
+        /**
+         * The order of siblings in a merged tree: by kind, then by
+         * {@link CoverageTree#compareNames(int, CoverageTree, int)}, which
+         * readers of the tree rely on to merge-join it with another.
+         */
+        static final Comparator<Ref> ORDER = new Comparator<Ref>() {
+            public int compare(Ref a, Ref b) {
+                int ka = a.t.kind[a.node], kb = b.t.kind[b.node];
+                if (ka != kb) {
+                    return ka - kb;
+                }
+                return a.t.compareNames(a.node, b.t, b.node);
+            }
+        };
+    }
+
+    /**
+     * Copies the root and its children, without their descendants.
+     */
+    public CoverageTree top() {
+        Appender out = new Appender();
+        copyNode(out, 0, -1);
+        for (int c = getFirstChild(0); c >= 0; c = getNextSibling(c)) {
+            int id = copyNode(out, c, 0);
+            out.end[id] = id + 1;
+        }
+        out.end[0] = out.size;
+        return out.toTree();
+    }
+
+    /**
+     * Copies the subtree of a node, which becomes the root of the copy.
+     */
+    public CoverageTree subtree(int node) {
+        Appender out = new Appender();
+        for (int i = node; i < end[node]; i++) {
+            int id = copyNode(out, i, i == node ? -1 : parent[i] - node);
+            out.end[id] = end[i] - node;
+        }
+        return out.toTree();
+    }
+
+    /**
+     * Builds a tree from the root of <tt>top</tt> and the given subtrees, which
+     * become the children of the root in that order. The counters of the root
+     * are those of <tt>top</tt>.
+     */
+    public static CoverageTree join(CoverageTree top, List<CoverageTree> children) {
+        Appender out = new Appender();
+        top.copyNode(out, 0, -1);
+        for (CoverageTree child : children) {
+            int base = out.size;
+            for (int i = 0; i < child.size; i++) {
+                int id = child.copyNode(out, i, i == 0 ? 0 : base + child.parent[i]);
+                out.end[id] = base + child.end[i];
+            }
+        }
+        out.end[0] = out.size;
+        return out.toTree();
+    }
+
+    /**
+     * Tells whether the subtree of a node is the same as the subtree of a node
+     * of another tree: same shape, names and counters.
+     */
+    public boolean subtreeEquals(int node, CoverageTree other, int otherNode) {
+        int n = end[node] - node;
+        if (n != other.end[otherNode] - otherNode) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            int a = node + i, b = otherNode + i;
+            if (kind[a] != other.kind[b] || metrics[a] != other.metrics[b]
+                    || end[a] - node != other.end[b] - otherNode
+                    || (i > 0 && parent[a] - node != other.parent[b] - otherNode)
+                    || !nameEquals(a, other.nameBytes(b))) {
+                return false;
+            }
+            for (int c = countStart[a], d = other.countStart[b]; c < countStart[a + 1]; c++, d++) {
+                if (counts[c] != other.counts[d]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int copyNode(Appender out, int node, int newParent) {
+        int id = out.add(kind[node], newParent, nameBytes(node));
+        for (int m = 0; m < 4; m++) {
+            if (hasMetric(node, m)) {
+                out.addCounts(id, m, getCovered(node, m), getTotal(node, m));
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Writes the tree in a compact binary form.
+     */
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.write(kind, 0, size);
+        out.write(metrics, 0, size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(parent[i]);
+            out.writeInt(end[i]);
+        }
+        for (int i = 0; i < countStart[size]; i++) {
+            out.writeLong(counts[i]);
+        }
+        for (int i = 0; i <= size; i++) {
+            out.writeInt(nameStart[i]);
+        }
+        out.write(names, 0, nameStart[size]);
+        out.flush();
+    }
+
+    /**
+     * Reads a tree written by {@link #write(OutputStream)}.
+     *
+     * <p>
+     * Trees may come from agents, so the stream is not trusted: arrays only
+     * grow as far as the stream actually fills them, and a tree whose nodes
+     * don't nest, or whose names are out of range, is rejected.
+     */
+    public static CoverageTree read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a coverage tree");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported coverage tree version " + version);
+        }
+        int size = in.readInt();
+        if (size < 1) {
+            throw new IOException("Invalid coverage tree size " + size);
+        }
+        // once they are read, the stream held at least that many nodes
+        byte[] kind = readFully(in, size);
+        byte[] metrics = readFully(in, size);
+        int[] parent = new int[size];
+        int[] end = new int[size];
+        int[] countStart = new int[size + 1];
+        int[] nameStart = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            parent[i] = in.readInt();
+            end[i] = in.readInt();
+            countStart[i + 1] = countStart[i] + 2 * Integer.bitCount(metrics[i] & 0xff);
+            int p = parent[i];
+            if (i == 0 ? p != -1 : p < 0 || p >= i || i >= end[p] || end[i] > end[p]) {
+                throw new IOException("Invalid parent " + p + " of coverage tree node " + i);
+            }
+            if (end[i] <= i || end[i] > size) {
+                throw new IOException("Invalid end " + end[i] + " of coverage tree node " + i);
+            }
+        }
+        long[] counts = new long[countStart[size]];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readLong();
+        }
+        for (int i = 0; i <= size; i++) {
+            nameStart[i] = in.readInt();
+            if (i == 0 ? nameStart[i] != 0 : nameStart[i] < nameStart[i - 1]) {
+                throw new IOException("Invalid name of coverage tree node " + i);
+            }
+        }
+        byte[] names = readFully(in, nameStart[size]);
+        return new CoverageTree(size, kind, parent, end, metrics, counts, countStart, nameStart, names);
+    }
+
+    /**
+     * Reads the given number of bytes, allocating no more than was read so far
+     * plus a chunk, so that a corrupt length fails at the end of the stream
+     * rather than when it is allocated.
+     */
+    private static byte[] readFully(DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[Math.min(length, READ_CHUNK)];
+        int read = 0;
+        while (true) {
+            in.readFully(b, read, b.length - read);
+            read = b.length;
+            if (read == length) {
+                return b;
+            }
+            b = Arrays.copyOf(b, (int) Math.min(length, 2L * read));
+        }
+    }
+
+    private static final int READ_CHUNK = 64 * 1024;
+
+    /**
+     * Builds the tree of a single report from the events of {@link CoverageXmlParser}.
+     * The <tt>all</tt> item is the root. If the report has several outermost
+     * items, the root counters are their sum.
+     */
+    static final class Builder implements CoverageXmlParser.Handler {
+        private final Appender out = new Appender();
+        private int[] stack = new int[16];
+        private int depth;
+
+        Builder() {
+            out.add(ROOT, -1, new byte[0]);
+        }
+
+        public void startItem(String tag, String name) {
+            int id;
+            if (tag.equals("all")) {
+                // not a node of its own
+                id = stack[depth];
+            } else {
+                id = out.add(kindOf(tag), stack[depth], (name != null ? name : "").getBytes(UTF8));
+            }
+            if (++depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth] = id;
+        }
+
+        public void coverage(int metric, long covered, long total) {
+            int node = stack[depth];
+            out.addCounts(node, metric, covered, total);
+            if (depth == 1 && node != 0) {
+                out.addCounts(0, metric, covered, total);
+            }
+        }
+
+        public void endItem() {
+            out.end[stack[depth]] = out.size;
+            depth--;
+        }
+
+        /**
+         * Finishes the tree. Siblings are sorted and duplicates combined.
+         */
+        CoverageTree build() {
+            out.end[0] = out.size;
+            return merge(Collections.singletonList(out.toTree()));
+        }
+
+        private static byte kindOf(String tag) {
+            if (tag.equals("package")) return PACKAGE;
+            if (tag.equals("srcfile")) return FILE;
+            if (tag.equals("class")) return CLASS;
+            return METHOD;
+        }
+    }
+
+    /**
+     * Growable arrays a tree is appended to, in pre-order.
+     * Counters are kept for all 4 metrics of every node while the tree is built,
+     * since they may be added to any node in any order, and packed by {@link #toTree()}.
+     */
+    private static final class Appender {
+        int size;
+        byte[] kind = new byte[64];
+        int[] parent = new int[64];
+        int[] end = new int[64];
+        byte[] metrics = new byte[64];
+        long[] counts = new long[64 * 8];
+        int[] nameStart = new int[65];
+        byte[] names = new byte[1024];
+
+        int add(byte k, int p, byte[] name) {
+            if (size == kind.length) {
+                int cap = size * 2;
+                kind = Arrays.copyOf(kind, cap);
+                parent = Arrays.copyOf(parent, cap);
+                end = Arrays.copyOf(end, cap);
+                metrics = Arrays.copyOf(metrics, cap);
+                counts = Arrays.copyOf(counts, cap * 8);
+                nameStart = Arrays.copyOf(nameStart, cap + 1);
+            }
+            int start = nameStart[size];
+            if (start + name.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, start + name.length));
+            }
+            System.arraycopy(name, 0, names, start, name.length);
+
+            int id = size++;
+            kind[id] = k;
+            parent[id] = p;
+            end[id] = size;
+            nameStart[size] = start + name.length;
+            return id;
+        }
+
+        void addCounts(int node, int metric, long covered, long total) {
+            metrics[node] |= 1 << metric;
+            counts[node * 8 + metric * 2] += covered;
+            counts[node * 8 + metric * 2 + 1] += total;
+        }
+
+        CoverageTree toTree() {
+            int[] countStart = new int[size + 1];
+            for (int i = 0; i < size; i++) {
+                countStart[i + 1] = countStart[i] + 2 * Integer.bitCount(metrics[i] & 0xff);
+            }
+            long[] packed = new long[countStart[size]];
+            for (int i = 0; i < size; i++) {
+                int j = countStart[i];
+                for (int m = 0; m < 4; m++) {
+                    if ((metrics[i] & (1 << m)) != 0) {
+                        packed[j++] = counts[i * 8 + m * 2];
+                        packed[j++] = counts[i * 8 + m * 2 + 1];
+                    }
+                }
+            }
+            return new CoverageTree(size,
+                    Arrays.copyOf(kind, size), Arrays.copyOf(parent, size), Arrays.copyOf(end, size),
+                    Arrays.copyOf(metrics, size), packed, countStart,
+                    Arrays.copyOf(nameStart, size + 1), Arrays.copyOf(names, nameStart[size]));
+        }
+    }
+
+    private static final int MAGIC = 0x43435452; // "CCTR"
+
+    /**
+     * Version of the binary form, written after {@link #MAGIC}.
+     */
+    private static final int VERSION = 2;
+
+    private static final long serialVersionUID = 2L;
+}
@@ -0,0 +1,262 @@
+package hudson.plugins.codecover;
+
+import hudson.util.IOException2;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser for the CodeCover XML report.
+ *
+ * <p>
+ * The report is read with a StAX pull parser in a single pass, so memory use
+ * does not depend on the size of the report. No DOM is ever built; instead
+ * every coverage item is reported to a {@link Handler} as it is encountered.
+ * The expected layout is:
+ *
+ * <pre>
+ * &lt;report>
+ *   &lt;data>
+ *     &lt;all name="all classes">
+ *       &lt;coverage type="statement, %" value="52% (52/100)"/>
+ *       &lt;coverage type="branch, %" value="..."/>
+ *       &lt;coverage type="loop, %" value="..."/>
+ *       &lt;coverage type="condition, %" value="..."/>
+ *       &lt;package name="org.example">
+ *         &lt;coverage .../>
+ *         &lt;srcfile name="Foo.java">
+ *           &lt;line number="12" value="50% (1/2)"/>
+ *           &lt;class name="Foo">
+ *             &lt;method name="bar()">...&lt;/method>
+ *           &lt;/class>
+ *         &lt;/srcfile>
+ *       &lt;/package>
+ *     &lt;/all>
+ *   &lt;/data>
+ * &lt;/report>
+ * </pre>
+ *
+ * Unknown elements and coverage types are skipped. The <tt>line</tt> records
+ * are optional, as the stock report templates don't write them, and are only
+ * read by {@link #parseLines} to annotate the archived sources.
+ */
+public final class CoverageXmlParser {
+
+    public static final int STATEMENT = 0;
+    public static final int BRANCH = 1;
+    public static final int LOOP = 2;
+    public static final int CONDITION = 3;
+
+    /**
+     * Receives the coverage items of a report, in document order.
+     */
+    public interface Handler {
+        /**
+         * Called when a coverage item starts.
+         *
+         * @param kind
+         *      one of "all", "package", "srcfile", "class" or "method".
+         */
+        void startItem(String kind, String name);
+
+        /**
+         * Called for every recognized coverage counter of the innermost open item.
+         *
+         * @param metric
+         *      one of {@link #STATEMENT}, {@link #BRANCH}, {@link #LOOP} or {@link #CONDITION}.
+         */
+        void coverage(int metric, long covered, long total);
+
+        /**
+         * Called when the item opened by the matching {@link #startItem} ends.
+         */
+        void endItem();
+    }
+
+    /**
+     * Receives the <tt>line</tt> records of a report, in document order.
+     */
+    public interface LineHandler {
+        /**
+         * Called for every line record with a valid number and value. The
+         * names are the same instances for all the lines of a file.
+         *
+         * @param packageName
+         *      the package of the file, or "" if it is in no package.
+         * @param line
+         *      the line number, from 1.
+         */
+        void line(String packageName, String fileName, int line, long covered, long total);
+    }
+
+    private CoverageXmlParser() {
+    }
+
+    /**
+     * Parses the report, reporting its items to the given handler.
+     * The stream is not closed.
+     *
+     * @throws IOException
+     *      if the stream is not a well-formed report.
+     */
+    public static void parse(InputStream in, Handler handler) throws IOException {
+        XMLStreamReader r;
+        try {
+            r = FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to open the CodeCover XML report", e);
+        }
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String tag = r.getLocalName();
+                    if (isItem(tag)) {
+                        handler.startItem(tag, r.getAttributeValue(null, "name"));
+                    } else if (tag.equals("coverage")) {
+                        int metric = parseMetric(r.getAttributeValue(null, "type"));
+                        String value = r.getAttributeValue(null, "value");
+                        if (metric >= 0 && value != null) {
+                            long[] counts = parseCounts(value);
+                            if (counts != null) {
+                                handler.coverage(metric, counts[0], counts[1]);
+                            }
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (isItem(r.getLocalName())) {
+                        handler.endItem();
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to parse the CodeCover XML report", e);
+        } finally {
+            try {
+                r.close();
+            } catch (XMLStreamException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Reports the <tt>line</tt> records of every source file, skipping the rest
+     * of the report. The stream is not closed.
+     */
+    public static void parseLines(InputStream in, LineHandler handler) throws IOException {
+        XMLStreamReader r;
+        try {
+            r = FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to open the CodeCover XML report", e);
+        }
+        try {
+            String pkg = "";
+            String file = null;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String tag = r.getLocalName();
+                    if (tag.equals("package")) {
+                        pkg = String.valueOf(r.getAttributeValue(null, "name"));
+                    } else if (tag.equals("srcfile")) {
+                        file = r.getAttributeValue(null, "name");
+                    } else if (file != null && tag.equals("line")) {
+                        long[] counts = parseCounts(String.valueOf(r.getAttributeValue(null, "value")));
+                        int line;
+                        try {
+                            line = Integer.parseInt(String.valueOf(r.getAttributeValue(null, "number")).trim());
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        if (counts != null && line > 0) {
+                            handler.line(pkg, file, line, counts[0], counts[1]);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String tag = r.getLocalName();
+                    if (tag.equals("package")) {
+                        pkg = "";
+                    } else if (tag.equals("srcfile")) {
+                        file = null;
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to parse the CodeCover XML report", e);
+        } finally {
+            try {
+                r.close();
+            } catch (XMLStreamException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private static boolean isItem(String tag) {
+        return tag.equals("all") || tag.equals("package") || tag.equals("srcfile")
+            || tag.equals("class") || tag.equals("method");
+    }
+
+    /**
+     * Maps the type attribute, e.g. "statement, %", to a metric index.
+     *
+     * @return -1 if the type is not one of the four CodeCover metrics.
+     */
+    static int parseMetric(String type) {
+        if (type == null) {
+            return -1;
+        }
+        int idx = type.indexOf(',');
+        String name = (idx >= 0 ? type.substring(0, idx) : type).trim();
+        if (name.equalsIgnoreCase("statement")) return STATEMENT;
+        if (name.equalsIgnoreCase("branch")) return BRANCH;
+        if (name.equalsIgnoreCase("loop")) return LOOP;
+        if (name.equalsIgnoreCase("condition")) return CONDITION;
+        return -1;
+    }
+
+    /**
+     * Parses the value attribute format "52% (52/100)" into {covered, total}.
+     *
+     * @return null if the value doesn't have the expected format.
+     */
+    static long[] parseCounts(String v) {
+        int open = v.indexOf('(');
+        int slash = v.indexOf('/', open + 1);
+        int close = v.indexOf(')', slash + 1);
+        if (open < 0 || slash < 0 || close < 0) {
+            return null;
+        }
+        try {
+            return new long[]{ parseCount(v.substring(open + 1, slash)), parseCount(v.substring(slash + 1, close)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseCount(String v) {
+        v = v.trim();
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            // fractional counts, possibly with a decimal comma
+            return Math.round(Double.parseDouble(v.replace(',', '.')));
+        }
+    }
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+}
@@ -0,0 +1,186 @@
+package hudson.plugins.codecover;
+
+import hudson.Util;
+import hudson.model.Job;
+
+import org.jvnet.localizer.LocaleProvider;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Controller-wide cache of rendered trend graphs and of their data.
+ *
+ * <p>
+ * A graph only depends on the coverage recorded by the builds of its job, so
+ * its ETag is derived from what identifies the graph, such as its URL and
+ * size, from the version of the {@link CoverageHistory} of the job, which
+ * changes whenever a build records coverage or is deleted, and from the mark
+ * of the {@link CoverageRetention}, which changes whenever the detailed
+ * coverage of old builds, which the graphs of packages and source files are
+ * drawn from, is dropped. The legends are localized, so the ETag also
+ * depends on the locale of the request, and responses vary by
+ * <tt>Accept-Language</tt>. A client that has
+ * the graph gets a 304 without the graph being looked up or drawn; otherwise
+ * the image comes from the cache, up to a memory cap beyond which the least
+ * recently served images are dropped.
+ */
+final class GraphCache {
+
+    /**
+     * Memory cap, in MB.
+     */
+    static final int DEFAULT_SIZE = Integer.getInteger(GraphCache.class.getName() + ".size", 16);
+
+    static final GraphCache INSTANCE = new GraphCache(DEFAULT_SIZE * 1024L * 1024L);
+
+    /**
+     * Draws a graph, or writes its data, when it isn't cached.
+     */
+    interface Renderer {
+        byte[] render() throws IOException;
+    }
+
+    /**
+     * Images by ETag, least recently served first. Guarded by this cache.
+     */
+    private final Map<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+    private final long budget;
+    private long weight;
+
+    GraphCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Serves a graph of a job, or its data.
+     *
+     * @param key
+     *      identifies the graph among those of the job for a given coverage history.
+     */
+    void serve(StaplerRequest req, StaplerResponse rsp, Job<?,?> job, String key, String contentType, Renderer renderer) throws IOException {
+        serve(req, rsp, job.getFullName(), CoverageHistory.getFile(job), CoverageRetention.getMarkFile(job), key, contentType, renderer);
+    }
+
+    /**
+     * Serves a graph of the job of the given name, whose coverage history and
+     * retention mark are the given files.
+     */
+    void serve(StaplerRequest req, StaplerResponse rsp, String job, File history, File mark, String key, String contentType, Renderer renderer) throws IOException {
+        long retained = mark.lastModified();
+        long lastModified = Math.max(history.lastModified(), retained);
+        // the locale the legends are written in
+        Locale locale = LocaleProvider.getLocale();
+        String etag = '"' + Util.getDigestOf(job + '|' + key + '|' + locale + '|' + history.lastModified() + '|' + history.length()
+                + '|' + retained) + '"';
+
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Vary", "Accept-Language");
+        if (lastModified > 0) {
+            rsp.setDateHeader("Last-Modified", lastModified);
+        }
+        // always revalidated, which mostly costs a 304
+        rsp.setHeader("Cache-Control", "no-cache");
+        if (isNotModified(req, etag, lastModified)) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        Image image;
+        synchronized (this) {
+            image = images.get(etag);
+        }
+        if (image == null) {
+            image = new Image(job, renderer.render());
+            put(etag, image);
+        }
+        rsp.setContentType(contentType);
+        rsp.setContentLength(image.bytes.length);
+        rsp.getOutputStream().write(image.bytes);
+    }
+
+    private static boolean isNotModified(StaplerRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        // HTTP dates have a resolution of a second
+        return lastModified > 0 && req.getDateHeader("If-Modified-Since") >= lastModified / 1000 * 1000;
+    }
+
+    /**
+     * Tells whether an <tt>If-None-Match</tt> header, a list of entity tags
+     * or <tt>*</tt>, matches the given tag. Weak tags match as well, as they
+     * do for a GET.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void put(String etag, Image image) {
+        if (image.bytes.length > budget) {
+            return;
+        }
+        Image old = images.put(etag, image);
+        if (old != null) {
+            weight -= old.bytes.length;
+        }
+        weight += image.bytes.length;
+        for (Iterator<Image> it = images.values().iterator(); weight > budget && it.hasNext(); ) {
+            weight -= it.next().bytes.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the graphs of a job, which can't be served any more once its coverage changed.
+     */
+    void invalidate(Job<?,?> job) {
+        invalidate(job.getFullName());
+    }
+
+    synchronized void invalidate(String name) {
+        for (Iterator<Image> it = images.values().iterator(); it.hasNext(); ) {
+            Image image = it.next();
+            if (image.job.equals(name)) {
+                weight -= image.bytes.length;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int getSize() {
+        return images.size();
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    private static final class Image {
+        final String job;
+        final byte[] bytes;
+
+        Image(String job, byte[] bytes) {
+            this.job = job;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package hudson.plugins.codecover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Scrapes the project totals from the CodeCover HTML report.
+ *
+ * <p>
+ * The totals are the first four <tt>x&amp;nbsp;/&amp;nbsp;y</tt> fragments
+ * of the report, in statement, branch, loop and condition order. The report
+ * is scanned as raw bytes through a fixed size buffer: the marker is found
+ * with a precomputed KMP automaton and the ASCII digits around it are
+ * accumulated as they go by, so neither lines nor strings are ever built,
+ * and minified single-line reports cost no more memory than any other.
+ * Scanning stops as soon as the four fragments have been seen.
+ *
+ * <p>
+ * Instances keep the statistics of the last scan and are not thread-safe.
+ */
+final class HtmlReportScanner {
+
+    private static final byte[] MARKER = { '&', 'n', 'b', 's', 'p', ';', '/', '&', 'n', 'b', 's', 'p', ';' };
+
+    /**
+     * KMP failure function of {@link #MARKER}: the length of the longest
+     * proper prefix of <tt>MARKER[0..i]</tt> that is also a suffix of it.
+     */
+    private static final int[] FAILURE = failureFunction(MARKER);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long bytesScanned;
+    private long elapsedNanos;
+
+    /**
+     * Scans the report read from the channel. The channel is not closed.
+     *
+     * @return
+     *      statement, branch, loop and condition coverage; metrics that were
+     *      not found are <code>null</code>. A fragment without a number on
+     *      either side still stands for its metric, which is <code>null</code>
+     *      too rather than a bogus ratio summed into the totals.
+     */
+    Ratio[] scan(ReadableByteChannel channel) throws IOException {
+        final long start = System.nanoTime();
+        final byte[] buf = buffer.array();
+        Ratio[] r = new Ratio[4];
+        int found = 0;
+
+        long scanned = 0;
+        int matched = 0;        // number of marker bytes matched so far
+        long lead = -1;         // digits seen right before the current position
+        boolean inLead = false; // whether the next digit continues lead
+        long numerator = -1;    // lead as it was when the current marker started
+        long denominator = -1;  // digits after a complete marker
+        boolean afterMarker = false;
+
+        scan:
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                break;
+            }
+            scanned += n;
+            for (int i = 0; i < n; i++) {
+                final byte b = buf[i];
+
+                if (afterMarker) {
+                    if (b >= '0' && b <= '9') {
+                        denominator = (denominator < 0 ? 0 : denominator * 10) + (b - '0');
+                        continue;
+                    }
+                    if (denominator < 0 && isBlank(b)) {
+                        continue;
+                    }
+                    r[found++] = ratio(numerator, denominator);
+                    afterMarker = false;
+                    lead = -1;
+                    if (found == r.length) {
+                        break scan;
+                    }
+                    // the byte that ended the number is scanned normally
+                }
+
+                while (matched > 0 && MARKER[matched] != b) {
+                    matched = FAILURE[matched - 1];
+                    // a marker restarting inside another has no number in front of it
+                    numerator = -1;
+                }
+                if (MARKER[matched] == b) {
+                    if (matched == 0) {
+                        numerator = lead;
+                    }
+                    if (++matched == MARKER.length) {
+                        matched = 0;
+                        afterMarker = true;
+                        denominator = -1;
+                        continue;
+                    }
+                }
+
+                if (b >= '0' && b <= '9') {
+                    lead = (inLead && lead >= 0 ? lead * 10 : 0) + (b - '0');
+                    inLead = true;
+                } else if (isBlank(b)) {
+                    inLead = false;
+                } else {
+                    lead = -1;
+                    inLead = false;
+                }
+            }
+        }
+        if (afterMarker && found < r.length) {
+            r[found] = ratio(numerator, denominator);
+        }
+
+        bytesScanned = scanned;
+        elapsedNanos = System.nanoTime() - start;
+        return r;
+    }
+
+    /**
+     * Number of bytes read by the last scan.
+     */
+    long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    /**
+     * Throughput of the last scan, in MB/s.
+     */
+    double getThroughput() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (bytesScanned / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+    }
+
+    private static Ratio ratio(long numerator, long denominator) {
+        if (numerator < 0 || denominator < 0) {
+            return null;
+        }
+        return new Ratio(numerator, denominator);
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static int[] failureFunction(byte[] pattern) {
+        int[] f = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[k] != pattern[i]) {
+                k = f[k - 1];
+            }
+            if (pattern[k] == pattern[i]) {
+                k++;
+            }
+            f[i] = k;
+        }
+        return f;
+    }
+}
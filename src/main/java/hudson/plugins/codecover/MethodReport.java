@@ -0,0 +1,10 @@
+package hudson.plugins.codecover;
+
+/**
+ * Coverage of a method.
+ */
+public final class MethodReport extends AbstractReport<MethodReport> {
+    MethodReport(CoverageReport report, CoverageTree tree, int node) {
+        super(report, tree, node);
+    }
+}
@@ -0,0 +1,79 @@
+package hudson.plugins.codecover;
+
+import java.io.Serializable;
+
+/**
+ * Coverage totals of a single report file, typically one module of a
+ * multi-module build.
+ */
+public final class ModuleCoverage implements Serializable {
+    /**
+     * Path of the report, relative to the workspace.
+     */
+    private final String name;
+
+    /**
+     * MD5 digest of the report contents, used to recognize an unchanged
+     * report in the next build. Null for builds recorded before it was kept.
+     */
+    private final String digest;
+
+    private final Ratio statement;
+    private final Ratio branch;
+    private final Ratio loop;
+    private final Ratio condition;
+
+    public ModuleCoverage(String name, String digest, Ratio[] ratios) {
+        this.name = name;
+        this.digest = digest;
+        this.statement = ratios[CoverageXmlParser.STATEMENT];
+        this.branch = ratios[CoverageXmlParser.BRANCH];
+        this.loop = ratios[CoverageXmlParser.LOOP];
+        this.condition = ratios[CoverageXmlParser.CONDITION];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Gets statement, branch, loop and condition coverage, in that order.
+     */
+    Ratio[] getRatios() {
+        return new Ratio[]{ statement, branch, loop, condition };
+    }
+
+    public Ratio getStatementCoverage() {
+        return statement;
+    }
+
+    public Ratio getBranchCoverage() {
+        return branch;
+    }
+
+    public Ratio getLoopCoverage() {
+        return loop;
+    }
+
+    public Ratio getConditionCoverage() {
+        return condition;
+    }
+
+    /**
+     * Used in the view to print out four table columns with the coverage info.
+     */
+    public String printFourCoverageColumns() {
+        StringBuilder buf = new StringBuilder();
+        CoverageObject.printRatioCell(false, statement, buf);
+        CoverageObject.printRatioCell(false, branch, buf);
+        CoverageObject.printRatioCell(false, loop, buf);
+        CoverageObject.printRatioCell(false, condition, buf);
+        return buf.toString();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,10 @@
+package hudson.plugins.codecover;
+
+/**
+ * Coverage of a package.
+ */
+public final class PackageReport extends AbstractReport<PackageReport> {
+    PackageReport(CoverageReport report, CoverageTree tree, int node) {
+        super(report, tree, node);
+    }
+}
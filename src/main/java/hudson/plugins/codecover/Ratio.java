@@ -7,7 +7,12 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 /**
- * Represents <tt>x/y</tt> where x={@link #numerator} and y={@link #denominator}.
+ * Represents <tt>x/y</tt> where x={@link #covered} and y={@link #total}.
+ *
+ * <p>
+ * The counters are exact <code>long</code>s; the <code>float</code> accessors
+ * remain for compatibility. Builds recorded with the earlier <code>float</code>
+ * fields are converted when they are loaded.
  * 
  * @author Kohsuke Kawaguchi
  */
@@ -15,39 +20,63 @@ import org.kohsuke.stapler.export.ExportedBean;
 final public class Ratio implements Serializable {
   
 
-    private float numerator = 0;
-    private float denominator = 0;
+    private long covered;
+    private long total;
     boolean initialized = false;
 
+    /**
+     * Counters of builds recorded before they became <code>long</code>s.
+     * Only ever set when such a build is loaded.
+     */
+    private Float numerator, denominator;
+
     public Ratio(float...f) {
     	if (f.length >=2 ) {
     		initialized = true;
-            this.numerator = f[0];
-            this.denominator = f[1];
+            this.covered = Math.round((double) f[0]);
+            this.total = Math.round((double) f[1]);
     	}
     }
+
+    public Ratio(long covered, long total) {
+        this.covered = covered;
+        this.total = total;
+        this.initialized = true;
+    }
+
+    private Object readResolve() {
+        if (numerator != null) {
+            covered = Math.round((double) numerator);
+            numerator = null;
+        }
+        if (denominator != null) {
+            total = Math.round((double) denominator);
+            denominator = null;
+        }
+        return this;
+    }
+
+    public long getCovered() {
+        return covered;
+    }
+
+    public long getTotal() {
+        return total;
+    }
     
     public float getNumerator() {
-        return numerator;
+        return covered;
     }
 
     public float getDenominator() {
-        return denominator;
+        return total;
     }
 
     /**
      * Gets "x/y" representation.
      */
     public String toString() {
-        return print(numerator)+"/"+print(denominator);
-    }
-
-    private String print(float f) {
-        int i = (int) f;
-        if(i==f)
-            return String.valueOf(i);
-        else
-            return String.valueOf(f);
+        return covered+"/"+total;
     }
 
     /**
@@ -63,7 +92,7 @@ final public class Ratio implements Serializable {
      */
     @Exported
     public float getPercentageFloat() {
-        return denominator<=0? 0: 100*numerator/denominator;
+        return total<=0? 0: (float) (100.0*covered/total);
     }
 
     public boolean equals(Object o) {
@@ -72,22 +101,17 @@ final public class Ratio implements Serializable {
 
         Ratio ratio = (Ratio) o;
 
-        return Float.compare(ratio.denominator, denominator)==0
-            && Float.compare(ratio.numerator, numerator)==0;
-
+        return ratio.total == total && ratio.covered == covered;
     }
 
     public int hashCode() {
-        int result;
-        result = numerator != +0.0f ? Float.floatToIntBits(numerator) : 0;
-        result = 31 * result + denominator != +0.0f ? Float.floatToIntBits(denominator) : 0;
-        return result;
+        return 31 * (int) (covered ^ (covered >>> 32)) + (int) (total ^ (total >>> 32));
     }
     
     public void addValue(String v) {
         float[] f = parse(v);
-        numerator += f[0];
-        denominator += f[1];
+        covered += Math.round((double) f[0]);
+        total += Math.round((double) f[1]);
 		initialized = true;
     }
     
@@ -125,6 +149,6 @@ final public class Ratio implements Serializable {
          return Float.parseFloat(v);
      }
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
 }
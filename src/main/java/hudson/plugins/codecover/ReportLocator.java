@@ -0,0 +1,210 @@
+package hudson.plugins.codecover;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Finds the coverage reports of a workspace in a single walk of the file tree,
+ * on the machine that holds the workspace.
+ *
+ * <p>
+ * 'includes' is
+ * <ul>
+ *   <li>an Ant-style pattern, or a comma or space separated list of them</li>
+ *   <li>a list of files and folders separated by the characters ;:,
+ *       where folders are searched for <tt>coverage*.xml</tt> files</li>
+ * </ul>
+ * The Ant-style interpretation wins if it matches anything. As in Ant, a pattern
+ * ending with <tt>/</tt> matches everything below that directory. Both are evaluated
+ * during the same walk, which never descends into excluded directories nor into
+ * directories that cannot contain a match. Symbolic links to directories are
+ * followed, as Ant does, except those that lead back to a directory being walked.
+ *
+ * <p>
+ * The result is sent back in one reply: the matching files, relative to the
+ * workspace (or absolute, for absolute legacy entries), in lexical order.
+ */
+final class ReportLocator implements FilePath.FileCallable<String[]> {
+
+    /**
+     * Directories that never contain reports worth recording.
+     */
+    static final String DEFAULT_EXCLUDES = ".git, .svn, .hg, .bzr, CVS, node_modules";
+
+    private final String includes;
+    private final String excludes;
+    private final int maxReports;
+
+    /**
+     * @param excludes
+     *      comma separated directories to prune. An entry without a slash or a
+     *      wildcard is a directory name matched at any depth, anything else is
+     *      an Ant-style pattern matched against the path relative to the workspace.
+     * @param maxReports
+     *      maximum number of reports to return, or 0 for no limit. The first
+     *      ones in lexical order are returned, so that they are the same every time.
+     */
+    ReportLocator(String includes, String excludes, int maxReports) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.maxReports = maxReports;
+    }
+
+    public String[] invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        final List<String> antPatterns = new ArrayList<String>();
+        for (String pattern : split(includes, "[,\\s]+")) {
+            pattern = pattern.replace('\\', '/');
+            antPatterns.add(pattern.endsWith("/") ? pattern + "**" : pattern);
+        }
+        final List<String> legacyFiles = new ArrayList<String>();
+        final List<String> legacyPatterns = new ArrayList<String>();
+        final List<String> absolute = new ArrayList<String>();
+        for (String part : split(includes, "\\s*[;:,]+\\s*")) {
+            if (new File(part).isAbsolute()) {
+                absolute.add(part);
+            } else {
+                part = normalize(part);
+                legacyFiles.add(part);
+                legacyPatterns.add(part + "/**/coverage*.xml");
+            }
+        }
+        final List<String> prunedNames = new ArrayList<String>();
+        final List<String> prunedPatterns = new ArrayList<String>();
+        for (String exclude : split(excludes, "\\s*,\\s*")) {
+            exclude = normalize(exclude);
+            if (exclude.indexOf('/') < 0 && exclude.indexOf('*') < 0 && exclude.indexOf('?') < 0) {
+                prunedNames.add(exclude);
+            } else {
+                prunedPatterns.add(exclude);
+            }
+        }
+
+        final List<String> antMatches = new ArrayList<String>();
+        final List<String> legacyMatches = new ArrayList<String>();
+        final Path root = workspace.toPath();
+
+        if (workspace.isDirectory()) {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(root)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String rel = relative(root, dir);
+                    if (prunedNames.contains(dir.getFileName().toString()) || matchesAny(prunedPatterns, rel)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (!couldMatch(antPatterns, rel) && !couldMatch(legacyPatterns, rel)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String rel = relative(root, file);
+                    if (matchesAny(antPatterns, rel)) {
+                        antMatches.add(rel);
+                    } else if (legacyFiles.contains(rel) || matchesAny(legacyPatterns, rel)) {
+                        legacyMatches.add(rel);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // unreadable entries can't be reports we are able to parse, and a
+                    // link back to a directory being walked (FileSystemLoopException) was seen already
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        List<String> result = antMatches.isEmpty() ? legacyMatches : antMatches;
+        if (antMatches.isEmpty()) {
+            for (String path : absolute) {
+                File f = new File(path);
+                if (f.isFile()) {
+                    result.add(f.getPath());
+                } else if (f.isDirectory()) {
+                    for (FilePath child : new FilePath(f).list("**/coverage*.xml")) {
+                        result.add(child.getRemote());
+                    }
+                }
+            }
+        }
+        Collections.sort(result);
+        if (maxReports > 0 && result.size() > maxReports) {
+            result = result.subList(0, maxReports);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static List<String> split(String s, String separators) {
+        List<String> r = new ArrayList<String>();
+        if (s != null) {
+            for (String part : s.trim().split(separators)) {
+                if (part.length() > 0) {
+                    r.add(part);
+                }
+            }
+        }
+        return r;
+    }
+
+    private static String normalize(String path) {
+        path = path.replace('\\', '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static String relative(Path root, Path p) {
+        return root.relativize(p).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean matchesAny(List<String> patterns, String path) {
+        for (String p : patterns) {
+            if (SelectorUtils.matchPath(p, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether anything below the given directory could match one of the patterns.
+     */
+    private static boolean couldMatch(List<String> patterns, String dir) {
+        for (String p : patterns) {
+            if (SelectorUtils.matchPatternStart(p, dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
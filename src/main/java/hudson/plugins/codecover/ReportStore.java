@@ -0,0 +1,456 @@
+package hudson.plugins.codecover;
+
+import hudson.Util;
+import hudson.model.Job;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed, content-addressed storage of the archived coverage reports of a job.
+ *
+ * <p>
+ * Every distinct report is stored once per job, gzipped, under the MD5 digest
+ * of its uncompressed contents. The build folder only holds a hard link to that
+ * blob, <tt>coverageN.xml.gz</tt>, or, where hard links are not supported, a
+ * <tt>coverageN.xml.ref</tt> file naming the digest. Builds recorded before
+ * this storage existed keep their plain <tt>coverageN.xml</tt> copies, which
+ * {@link #open(Job, File, String)} still reads. A blob is always named after
+ * the digest of what was actually written to it, never after the digest an
+ * agent reported, and every digest is checked before it names a file of the store.
+ *
+ * <p>
+ * Next to each report, the store keeps the {@link CoverageTree} parsed from it,
+ * <tt>&lt;digest>.tree.gz</tt>, so that an unchanged report never has to be
+ * parsed again to rebuild the tree of a later build. The trees that agents
+ * parsed themselves, <tt>&lt;digest>.agent.tree.gz</tt>, are kept apart: no
+ * report reached the master for them, so nothing says that they belong to
+ * that digest, and they are only looked up by builds that parse on agents too.
+ *
+ * <p>
+ * A build that finds a report or a tree in the store holds the store with
+ * {@link #acquire()} until it has linked or read it, so that
+ * {@link #collectGarbage} doesn't delete it in between. Linking a report and
+ * reading a tree also mark them as recently used, which the collector leaves alone.
+ *
+ * <p>
+ * A store is dirty when builds may have stopped referring to some of its files
+ * since it was last collected, e.g. because builds were deleted. It is clean
+ * while it has a <tt>clean</tt> file, which {@link #markClean()} creates before
+ * the references are gathered and {@link #markDirty()} deletes.
+ */
+final class ReportStore {
+    /**
+     * Shared by the builds using a store, exclusive to the collector; a store
+     * is mapped to one of them by its directory.
+     */
+    private static final ReadWriteLock[] LOCKS = new ReadWriteLock[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private final File dir;
+
+    ReportStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the store of the given job.
+     */
+    static ReportStore of(Job<?,?> job) {
+        return new ReportStore(new File(job.getRootDir(), "codecover-reports"));
+    }
+
+    private ReadWriteLock getLock() {
+        return LOCKS[(dir.hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    /**
+     * Keeps {@link #collectGarbage} from deleting anything from the store until
+     * {@link #release()} is called, by the same thread.
+     */
+    void acquire() {
+        getLock().readLock().lock();
+    }
+
+    void release() {
+        getLock().readLock().unlock();
+    }
+
+    /**
+     * Tells whether a string is a digest as the store uses them: an MD5
+     * digest in lower case hex.
+     */
+    static boolean isDigest(String digest) {
+        if (digest == null || digest.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the message digest that names the reports.
+     */
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Checks a digest before it names a file of the store, as it may come from
+     * an agent or from a build folder.
+     */
+    private static String checkDigest(String digest) throws IOException {
+        if (!isDigest(digest)) {
+            throw new IOException("Not a report digest: " + digest);
+        }
+        return digest;
+    }
+
+    File getBlob(String digest) throws IOException {
+        return new File(dir, checkDigest(digest) + ".gz");
+    }
+
+    boolean contains(String digest) throws IOException {
+        return getBlob(digest).isFile();
+    }
+
+    File getTreeFile(String digest) throws IOException {
+        return new File(dir, checkDigest(digest) + ".tree.gz");
+    }
+
+    boolean containsTree(String digest) throws IOException {
+        return getTreeFile(digest).isFile();
+    }
+
+    File getAgentTreeFile(String digest) throws IOException {
+        return new File(dir, checkDigest(digest) + ".agent.tree.gz");
+    }
+
+    boolean containsAgentTree(String digest) throws IOException {
+        return getAgentTreeFile(digest).isFile();
+    }
+
+    /**
+     * Reads the tree parsed from the report of the given digest.
+     */
+    CoverageTree readTree(String digest) throws IOException {
+        return readTree(getTreeFile(digest));
+    }
+
+    /**
+     * Reads the tree an agent sent for the report of the given digest.
+     */
+    CoverageTree readAgentTree(String digest) throws IOException {
+        return readTree(getAgentTreeFile(digest));
+    }
+
+    private static CoverageTree readTree(File file) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        file.setLastModified(System.currentTimeMillis());
+        try {
+            return CoverageTree.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stores the tree parsed from the report of the given digest.
+     */
+    void writeTree(String digest, CoverageTree tree) throws IOException {
+        writeTree(getTreeFile(digest), compress(tree));
+    }
+
+    /**
+     * Stores a tree that an agent parsed and compressed by {@link #compress(CoverageTree)},
+     * once it is known to be a valid tree.
+     *
+     * @throws IOException if the agent sent something else.
+     */
+    void writeAgentTree(String digest, byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            CoverageTree.read(in);
+        } catch (IOException e) {
+            throw new IOException("Invalid coverage tree sent for the report " + digest, e);
+        } finally {
+            in.close();
+        }
+        writeTree(getAgentTreeFile(digest), compressed);
+    }
+
+    private void writeTree(File file, byte[] compressed) throws IOException {
+        dir.mkdirs();
+        File tmp = File.createTempFile("tree", ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(compressed);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Compresses a tree the way the store keeps it.
+     */
+    static byte[] compress(CoverageTree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes, 64 * 1024);
+        try {
+            tree.write(out);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private File getCleanFile() {
+        return new File(dir, "clean");
+    }
+
+    /**
+     * Tells whether the store may have files no build refers to.
+     */
+    boolean isDirty() {
+        return dir.isDirectory() && !getCleanFile().exists();
+    }
+
+    /**
+     * Records that builds may have stopped referring to files of the store.
+     */
+    void markDirty() {
+        getCleanFile().delete();
+    }
+
+    /**
+     * Records that the store is about to be collected. Called before the
+     * references are gathered, so that a build deleted meanwhile makes the
+     * store dirty again.
+     */
+    void markClean() throws IOException {
+        if (dir.isDirectory()) {
+            getCleanFile().createNewFile();
+        }
+    }
+
+    /**
+     * Deletes the reports and trees that are not referenced any more.
+     * Files modified or used after <tt>olderThan</tt> are kept, as a build
+     * may be storing or linking them right now. Nothing is deleted while a
+     * build holds the store. The store stays dirty if anything unreferenced
+     * was left.
+     *
+     * @param referenced
+     *      the digests of the reports to keep.
+     * @return the number of files deleted.
+     */
+    int collectGarbage(Set<String> referenced, long olderThan) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        if (!getLock().writeLock().tryLock()) {
+            // collected on the next run
+            markDirty();
+            return 0;
+        }
+        try {
+            int deleted = 0;
+            boolean left = false;
+            for (File f : files) {
+                String name = f.getName();
+                int dot = name.indexOf('.');
+                if (dot < 0 || !(name.endsWith(".gz") || name.endsWith(".tmp"))) {
+                    continue;
+                }
+                String digest = name.substring(0, dot);
+                if (referenced.contains(digest)) {
+                    continue;
+                }
+                if (f.lastModified() < olderThan && f.delete()) {
+                    deleted++;
+                } else {
+                    left = true;
+                }
+            }
+            if (left) {
+                markDirty();
+            }
+            return deleted;
+        } finally {
+            getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opens the decompressed contents of a stored report.
+     */
+    InputStream read(String digest) throws IOException {
+        return new GZIPInputStream(new FileInputStream(getBlob(digest)));
+    }
+
+    /**
+     * Starts storing a report. The contents written to the returned stream are
+     * compressed into a temporary file, which becomes the blob of their
+     * digest on {@link Pending#commit()}.
+     */
+    Pending create() throws IOException {
+        dir.mkdirs();
+        File tmp = File.createTempFile("report", ".tmp", dir);
+        return new Pending(tmp);
+    }
+
+    /**
+     * Makes a stored report appear as <tt>name</tt> in the given build folder.
+     *
+     * @throws FileNotFoundException
+     *      if the store doesn't have the report.
+     */
+    void link(String digest, File folder, String name) throws IOException {
+        File blob = getBlob(digest);
+        // in use from now on: the collector may have listed the references before this build links it
+        if (!blob.setLastModified(System.currentTimeMillis())) {
+            throw new FileNotFoundException(blob.getPath());
+        }
+        folder.mkdirs();
+        File link = new File(folder, name + ".gz");
+        try {
+            Files.deleteIfExists(link.toPath());
+            Files.createLink(link.toPath(), blob.toPath());
+            return;
+        } catch (UnsupportedOperationException e) {
+            // fall back to a reference below
+        } catch (IOException e) {
+            // e.g. the file system doesn't support hard links
+        }
+        Writer w = new FileWriter(new File(folder, name + ".ref"));
+        try {
+            // checked by getBlob
+            w.write(digest);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Opens an archived report of a build, decompressing it as it is read.
+     *
+     * @param name
+     *      the report name, e.g. <tt>coverage1.xml</tt>.
+     * @throws FileNotFoundException
+     *      if the build has no such report.
+     */
+    static InputStream open(Job<?,?> job, File folder, String name) throws IOException {
+        File plain = new File(folder, name);
+        if (plain.isFile()) {
+            return new FileInputStream(plain);
+        }
+        File gz = new File(folder, name + ".gz");
+        if (gz.isFile()) {
+            return new GZIPInputStream(new FileInputStream(gz));
+        }
+        File ref = new File(folder, name + ".ref");
+        if (ref.isFile()) {
+            BufferedReader r = new BufferedReader(new FileReader(ref));
+            try {
+                String digest = r.readLine();
+                digest = checkDigest(digest != null ? digest.trim() : null);
+                return of(job).read(digest);
+            } finally {
+                r.close();
+            }
+        }
+        throw new FileNotFoundException(plain.getPath());
+    }
+
+    /**
+     * A report being written to the store.
+     */
+    final class Pending {
+        private final File tmp;
+        private final MessageDigest md5;
+        private final OutputStream out;
+        private boolean committed;
+
+        private Pending(File tmp) throws IOException {
+            this.tmp = tmp;
+            this.md5 = newDigest();
+            this.out = new DigestOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024), md5);
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * Finishes writing and moves the report into place, under the digest
+         * of what was written.
+         * Another build storing the same report at the same time is harmless,
+         * as both write identical contents.
+         *
+         * @return the digest of the report.
+         */
+        String commit() throws IOException {
+            out.close();
+            String digest = Util.toHexString(md5.digest());
+            Files.move(tmp.toPath(), getBlob(digest).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            return digest;
+        }
+
+        /**
+         * Discards what was written so far, unless it was committed.
+         */
+        void abort() {
+            if (committed) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                // being discarded anyway
+            }
+            tmp.delete();
+        }
+    }
+}
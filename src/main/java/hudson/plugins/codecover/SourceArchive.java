@@ -0,0 +1,556 @@
+package hudson.plugins.codecover;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the source files of a build's coverage into the build folder, under
+ * <tt>codecover/sources</tt>, for the {@link SourceView} of every source file.
+ *
+ * <p>
+ * The files are looked for by the path given by their package and name, such
+ * as <tt>org/acme/Foo.java</tt>, under the source directories configured on the
+ * {@link CodeCoverPublisher}. They are located in a single round trip to the
+ * machine that holds the workspace, then fetched by their paths in batches of
+ * up to {@link #BATCH_SIZE} bytes, so that neither side has to match the files
+ * of the source directories against the list. A file larger than a batch is
+ * streamed on its own instead, so that it is never held whole in memory.
+ *
+ * <p>
+ * The coverage of the lines of the archived files is then extracted from the
+ * <tt>line</tt> records of the archived reports, in a single pass over each
+ * report, into <tt>codecover/source-lines</tt>: for every file that has line
+ * records, an int magic, the int number of lines and the status of each line,
+ * as defined by {@link SourceView}. Showing a source thus never reads the reports.
+ *
+ * <p>
+ * The package and file names come from the reports, which whoever controls the
+ * build can write, so a name that would lead out of the source directories is
+ * refused, and neither a file reached through a link out of its source directory
+ * nor an archived file reached through a link out of the archive is read.
+ */
+final class SourceArchive {
+
+    private SourceArchive() {
+    }
+
+    private static final int LINES_MAGIC = 0x43434c31; // "CCL1"
+
+    /**
+     * Number of bytes of source files fetched in one round trip; larger files are streamed one by one.
+     */
+    static final long BATCH_SIZE = Long.getLong(SourceArchive.class.getName() + ".batchSize", 4 * 1024 * 1024);
+
+    static File getDir(AbstractBuild<?,?> build) {
+        return getDir(CodeCoverPublisher.getCodeCoverReport(build));
+    }
+
+    /**
+     * @param folder
+     *      the <tt>codecover</tt> folder of a build.
+     */
+    static File getDir(File folder) {
+        return new File(folder, "sources");
+    }
+
+    static File getLinesDir(AbstractBuild<?,?> build) {
+        return getLinesDir(CodeCoverPublisher.getCodeCoverReport(build));
+    }
+
+    static File getLinesDir(File folder) {
+        return new File(folder, "source-lines");
+    }
+
+    /**
+     * Gets the path of a source file relative to the source directories.
+     *
+     * @param packageName
+     *      "" for a file in no package.
+     * @return null if the path would be absolute, or have an empty, "." or ".." segment.
+     */
+    static String getPath(String packageName, String fileName) {
+        String path = packageName.length() == 0 ? fileName : packageName.replace('.', '/') + '/' + fileName;
+        for (String segment : path.split("[/\\\\]", -1)) {
+            if (segment.length() == 0 || segment.equals(".") || segment.equals("..") || segment.indexOf(':') >= 0) {
+                return null;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Resolves a path given by {@link #getPath} against a directory, following links.
+     *
+     * @return null if the file is not inside the directory.
+     */
+    static File resolve(File dir, String path) throws IOException {
+        File base = dir.getCanonicalFile();
+        File file = new File(base, path).getCanonicalFile();
+        return file.getPath().startsWith(base.getPath() + File.separator) ? file : null;
+    }
+
+    /**
+     * Archives the source files of the tree of a build, and their line coverage.
+     *
+     * @param roots
+     *      comma separated source directories, relative to the workspace.
+     * @param reports
+     *      the number of reports of the build; those that were archived give the line coverage.
+     * @return the number of files archived.
+     */
+    static int archive(AbstractBuild<?,?> build, String roots, CoverageTree tree, int reports) throws IOException, InterruptedException {
+        File dir = getDir(build);
+        List<String> paths = new ArrayList<String>();
+        for (int p = tree.getFirstChild(0); p >= 0; p = tree.getNextSibling(p)) {
+            if (tree.getKind(p) == CoverageTree.FILE) {
+                addPath(dir, paths, getPath("", tree.getName(p)));
+            } else if (tree.getKind(p) == CoverageTree.PACKAGE) {
+                String pkg = tree.getName(p);
+                for (int f = tree.getFirstChild(p); f >= 0; f = tree.getNextSibling(f)) {
+                    if (tree.getKind(f) == CoverageTree.FILE) {
+                        addPath(dir, paths, getPath(pkg, tree.getName(f)));
+                    }
+                }
+            }
+        }
+        if (paths.isEmpty()) {
+            return 0;
+        }
+
+        FilePath workspace = build.getWorkspace();
+        Located found = workspace.act(new Locator(roots.split(","), paths.toArray(new String[paths.size()])));
+
+        // the files of each source directory, in batches
+        Map<String, List<String>> batch = new LinkedHashMap<String, List<String>>();
+        Map<String, Long> located = new HashMap<String, Long>();
+        long size = 0;
+        int archived = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            String root = found.roots[i];
+            if (root == null) {
+                continue;
+            }
+            if (found.sizes[i] > BATCH_SIZE) {
+                archived += stream(workspace, root, paths.get(i), dir, located);
+                continue;
+            }
+            if (size > 0 && size + found.sizes[i] > BATCH_SIZE) {
+                archived += fetch(workspace, batch, dir, located);
+                batch.clear();
+                size = 0;
+            }
+            List<String> files = batch.get(root);
+            if (files == null) {
+                batch.put(root, files = new ArrayList<String>());
+            }
+            files.add(paths.get(i));
+            size += found.sizes[i];
+        }
+        archived += fetch(workspace, batch, dir, located);
+
+        if (!located.isEmpty()) {
+            extractLines(build, reports, located);
+        }
+        return archived;
+    }
+
+    /**
+     * Adds up the line records of the given files in the archived reports, and
+     * writes the status of their lines.
+     */
+    private static void extractLines(AbstractBuild<?,?> build, int reports, final Map<String, Long> paths) throws IOException {
+        final Map<String, LineCounts> files = new HashMap<String, LineCounts>();
+        File folder = CodeCoverPublisher.getCodeCoverReport(build);
+        for (int i = 0; i < reports; i++) {
+            InputStream in;
+            try {
+                in = ReportStore.open(build.getParent(), folder, "coverage" + (i > 0 ? i : "") + ".xml");
+            } catch (FileNotFoundException e) {
+                // not archived, as when the reports were parsed on the agent
+                continue;
+            }
+            try {
+                CoverageXmlParser.parseLines(new BufferedInputStream(in), new CoverageXmlParser.LineHandler() {
+                    // the lines of a file come one after another
+                    private String packageName, fileName;
+                    private LineCounts counts;
+
+                    public void line(String packageName, String fileName, int line, long covered, long total) {
+                        if (packageName != this.packageName || fileName != this.fileName) {
+                            this.packageName = packageName;
+                            this.fileName = fileName;
+                            String path = getPath(packageName, fileName);
+                            counts = null;
+                            if (path != null && paths.containsKey(path)) {
+                                counts = files.get(path);
+                                if (counts == null) {
+                                    // a file can't have more lines than bytes, whatever the report says
+                                    long size = paths.get(path);
+                                    files.put(path, counts = new LineCounts((int) Math.min(Integer.MAX_VALUE, size + 1)));
+                                }
+                            }
+                        }
+                        if (counts != null) {
+                            counts.add(line, covered, total);
+                        }
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        }
+
+        File dir = getLinesDir(build);
+        for (Map.Entry<String, LineCounts> e : files.entrySet()) {
+            File file = resolve(dir, e.getKey() + ".lines");
+            if (file == null) {
+                continue;
+            }
+            LineCounts counts = e.getValue();
+            File tmp = createTempFile(file);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(LINES_MAGIC);
+                    out.writeInt(counts.lines);
+                    for (int i = 0; i < counts.lines; i++) {
+                        out.writeByte(SourceView.getStatus(counts.covered[i], counts.total[i]));
+                    }
+                } finally {
+                    out.close();
+                }
+                moveIntoPlace(tmp, file);
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates the temporary file that a file of the archive is written to, next to it,
+     * so that no view ever reads it half written.
+     */
+    private static File createTempFile(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        return File.createTempFile(file.getName() + ".part", ".tmp", file.getParentFile());
+    }
+
+    private static void moveIntoPlace(File tmp, File file) throws IOException {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the status of the lines of an archived source.
+     *
+     * @param lines
+     *      the number of lines of the source.
+     * @return {@link SourceView#UNKNOWN} for every line if the reports had no line record of the file.
+     */
+    static byte[] readLines(File file, int lines) throws IOException {
+        byte[] status = new byte[lines];
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return status;
+        }
+        try {
+            if (in.readInt() != LINES_MAGIC) {
+                throw new IOException("Not a line coverage file: " + file);
+            }
+            in.readFully(status, 0, Math.min(in.readInt(), lines));
+        } finally {
+            in.close();
+        }
+        return status;
+    }
+
+    /**
+     * The counters of the lines of a file, summed up over the reports.
+     */
+    static final class LineCounts {
+        /**
+         * The number of lines the file may have; records of other lines are dropped.
+         */
+        private final int max;
+        long[] covered;
+        long[] total;
+        int lines;
+
+        LineCounts(int max) {
+            this.max = max;
+            covered = new long[Math.min(max, 256)];
+            total = new long[covered.length];
+        }
+
+        void add(int line, long c, long t) {
+            if (line < 1 || line > max) {
+                return;
+            }
+            if (line > covered.length) {
+                int n = (int) Math.min(max, Math.max(line, covered.length * 2L));
+                covered = Arrays.copyOf(covered, n);
+                total = Arrays.copyOf(total, n);
+            }
+            covered[line - 1] += c;
+            total[line - 1] += t;
+            lines = Math.max(lines, line);
+        }
+    }
+
+    /**
+     * Copies the given files of each source directory into the archive.
+     *
+     * @param located
+     *      receives the paths and sizes of the files that were archived.
+     * @return the number of files archived.
+     */
+    private static int fetch(FilePath workspace, Map<String, List<String>> batch, File dir, Map<String, Long> located) throws IOException, InterruptedException {
+        int archived = 0;
+        for (Map.Entry<String, List<String>> e : batch.entrySet()) {
+            List<String> files = e.getValue();
+            byte[][] contents = workspace.act(new Fetcher(e.getKey(), files.toArray(new String[files.size()]), BATCH_SIZE));
+            for (int i = 0; i < contents.length; i++) {
+                File file = resolve(dir, files.get(i));
+                if (contents[i] == null || file == null) {
+                    continue;
+                }
+                File tmp = createTempFile(file);
+                try {
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        out.write(contents[i]);
+                    } finally {
+                        out.close();
+                    }
+                    moveIntoPlace(tmp, file);
+                } finally {
+                    tmp.delete();
+                }
+                located.put(files.get(i), (long) contents[i].length);
+                archived++;
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Copies a single file of a source directory into the archive, as it is read.
+     *
+     * @return 1 if it was archived, 0 if it is gone.
+     */
+    private static int stream(FilePath workspace, String root, String path, File dir, Map<String, Long> located) throws IOException, InterruptedException {
+        File file = resolve(dir, path);
+        if (file == null) {
+            return 0;
+        }
+        File tmp = createTempFile(file);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            boolean found;
+            try {
+                found = workspace.act(new Streamer(root, path, new RemoteOutputStream(out)));
+                // the writes come in asynchronously
+                VirtualChannel channel = workspace.getChannel();
+                if (channel instanceof Channel) {
+                    ((Channel) channel).syncLocalIO();
+                }
+            } finally {
+                out.close();
+            }
+            if (!found) {
+                return 0;
+            }
+            moveIntoPlace(tmp, file);
+            located.put(path, file.length());
+            return 1;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void addPath(File dir, List<String> paths, String path) throws IOException {
+        if (path != null && resolve(dir, path) != null) {
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Where {@link Locator} found the files.
+     */
+    static final class Located implements Serializable {
+        /**
+         * The source directory of each file, null for the files that weren't found.
+         */
+        final String[] roots;
+        /**
+         * The length of each file that was found.
+         */
+        final long[] sizes;
+
+        Located(String[] roots, long[] sizes) {
+            this.roots = roots;
+            this.sizes = sizes;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Finds the source directory of every file, in the workspace.
+     */
+    static final class Locator implements FilePath.FileCallable<Located> {
+        private final String[] roots;
+        private final String[] paths;
+
+        Locator(String[] roots, String[] paths) {
+            this.roots = roots;
+            this.paths = paths;
+        }
+
+        public Located invoke(File workspace, VirtualChannel channel) throws IOException {
+            String[] found = new String[paths.length];
+            long[] sizes = new long[paths.length];
+            for (String root : roots) {
+                root = root.trim();
+                File dir = new File(workspace, root);
+                if (root.length() == 0 || !dir.isDirectory()) {
+                    continue;
+                }
+                for (int i = 0; i < paths.length; i++) {
+                    if (found[i] == null) {
+                        File file = resolve(dir, paths[i]);
+                        if (file != null && file.isFile()) {
+                            found[i] = root;
+                            sizes[i] = file.length();
+                        }
+                    }
+                }
+            }
+            return new Located(found, sizes);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads the given files of a source directory, in the workspace.
+     */
+    static final class Fetcher implements FilePath.FileCallable<byte[][]> {
+        private final String root;
+        private final String[] paths;
+        private final long limit;
+
+        /**
+         * @param limit
+         *      the size beyond which a file is not read, as it grew since it was located.
+         */
+        Fetcher(String root, String[] paths, long limit) {
+            this.root = root;
+            this.paths = paths;
+            this.limit = Math.min(limit, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return the contents of each file, null for the files that are gone or too large.
+         */
+        public byte[][] invoke(File workspace, VirtualChannel channel) throws IOException {
+            File dir = new File(workspace, root);
+            byte[][] contents = new byte[paths.length][];
+            for (int i = 0; i < paths.length; i++) {
+                File file = resolve(dir, paths[i]);
+                if (file == null || !file.isFile() || file.length() > limit) {
+                    continue;
+                }
+                DataInputStream in;
+                try {
+                    in = new DataInputStream(new FileInputStream(file));
+                } catch (FileNotFoundException e) {
+                    continue;
+                }
+                try {
+                    contents[i] = new byte[(int) file.length()];
+                    in.readFully(contents[i]);
+                } catch (EOFException e) {
+                    // truncated meanwhile
+                    contents[i] = null;
+                } finally {
+                    in.close();
+                }
+            }
+            return contents;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes a single file of a source directory to a stream, in the workspace.
+     */
+    static final class Streamer implements FilePath.FileCallable<Boolean> {
+        private final String root;
+        private final String path;
+        private final OutputStream out;
+
+        Streamer(String root, String path, OutputStream out) {
+            this.root = root;
+            this.path = path;
+            this.out = out;
+        }
+
+        /**
+         * @return false if the file is gone.
+         */
+        public Boolean invoke(File workspace, VirtualChannel channel) throws IOException {
+            try {
+                File file = resolve(new File(workspace, root), path);
+                if (file == null || !file.isFile()) {
+                    return false;
+                }
+                InputStream in;
+                try {
+                    in = new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    return false;
+                }
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                return true;
+            } finally {
+                out.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
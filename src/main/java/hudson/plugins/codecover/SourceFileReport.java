@@ -0,0 +1,58 @@
+package hudson.plugins.codecover;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Coverage of a source file.
+ */
+public final class SourceFileReport extends AbstractReport<SourceFileReport> {
+    SourceFileReport(CoverageReport report, CoverageTree tree, int node) {
+        super(report, tree, node);
+    }
+
+    /**
+     * Gets the archived source of this file.
+     *
+     * @return null if the source was not archived.
+     */
+    public SourceView getSource() {
+        List<String> path = getPath();
+        String pkg = path.size() > 1 ? path.get(path.size() - 2) : "";
+        return SourceView.of(getReport(), pkg, getName());
+    }
+
+    /**
+     * Serves a range of lines of the source, from the line given by the <tt>from</tt>
+     * parameter (1 by default) and up to <tt>count</tt> lines, as HTML table rows.
+     * The number of lines of the file is in the <tt>X-Total-Count</tt> header.
+     */
+    public void doSource(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        SourceView source = getSource();
+        if (source == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int from, count;
+        try {
+            from = Integer.parseInt(req.getParameter("from"));
+        } catch (NumberFormatException e) {
+            from = 1;
+        }
+        try {
+            count = Integer.parseInt(req.getParameter("count"));
+        } catch (NumberFormatException e) {
+            count = SourceView.MAX_LINES;
+        }
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("X-Total-Count", Integer.toString(source.getLineCount()));
+        PrintWriter w = rsp.getWriter();
+        source.writeLines(from, count, w);
+        w.flush();
+    }
+}
@@ -0,0 +1,347 @@
+package hudson.plugins.codecover;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The archived source of a file, annotated with the coverage of its lines and
+ * read a range of lines at a time.
+ *
+ * <p>
+ * The first time a source is viewed, it is scanned once to build an index next
+ * to it, under <tt>codecover/source-index</tt>: the offset of every line and
+ * whether it is covered, partly covered or not covered at all, as extracted
+ * from the archived reports by {@link SourceArchive}. A range of lines is then read
+ * by seeking to it in the index and in the source, so that a generated file of
+ * many megabytes is never loaded whole. The index is rebuilt if the source changes.
+ */
+public final class SourceView {
+
+    /**
+     * Lines served at most at once.
+     */
+    static final int MAX_LINES = 2000;
+
+    /**
+     * Longer lines are cut, so that a minified line doesn't make a range huge.
+     */
+    static final int MAX_LINE_LENGTH = 4096;
+
+    static final byte UNKNOWN = 0;
+    static final byte COVERED = 1;
+    static final byte PARTLY_COVERED = 2;
+    static final byte NOT_COVERED = 3;
+
+    private static final String[] CLASSES = { "", "covered", "partlyCovered", "notCovered" };
+
+    private static final int MAGIC = 0x43435831; // "CCX1"
+
+    /**
+     * Magic, source length, source timestamp and line count.
+     */
+    private static final int HEADER = 4 + 8 + 8 + 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File source;
+    private final File lines;
+    private final File index;
+
+    private SourceView(File source, File lines, File index) {
+        this.source = source;
+        this.lines = lines;
+        this.index = index;
+    }
+
+    /**
+     * Gets the view of a source file.
+     *
+     * @return null if the source of the file was not archived.
+     */
+    static SourceView of(CoverageReport report, String packageName, String fileName) {
+        try {
+            return of(CodeCoverPublisher.getCodeCoverReport(report.getBuild()), packageName, fileName);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to locate the archived source of " + fileName + " in " + report.getBuild(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the view of a source file archived in the <tt>codecover</tt> folder of a build.
+     *
+     * @return null if the source of the file was not archived, or if its path leads out of the archive.
+     */
+    static SourceView of(File folder, String packageName, String fileName) throws IOException {
+        String path = SourceArchive.getPath(packageName, fileName);
+        if (path == null) {
+            return null;
+        }
+        File source = SourceArchive.resolve(SourceArchive.getDir(folder), path);
+        if (source == null || !source.isFile()) {
+            return null;
+        }
+        File lines = SourceArchive.resolve(SourceArchive.getLinesDir(folder), path + ".lines");
+        // written to when first viewed, so it must not lead elsewhere either
+        File index = SourceArchive.resolve(new File(folder, "source-index"), path + ".idx");
+        if (lines == null || index == null) {
+            return null;
+        }
+        return new SourceView(source, lines, index);
+    }
+
+    /**
+     * A line of the source.
+     */
+    public static final class Line {
+        private final int number;
+        private final String text;
+        private final byte status;
+
+        Line(int number, String text, byte status) {
+            this.number = number;
+            this.text = text;
+            this.status = status;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Gets the CSS class of the line: <tt>covered</tt>, <tt>partlyCovered</tt>,
+         * <tt>notCovered</tt>, or empty if the line has no coverage.
+         */
+        public String getStatus() {
+            return CLASSES[status];
+        }
+    }
+
+    public int getLineCount() throws IOException {
+        RandomAccessFile idx = openIndex();
+        try {
+            idx.seek(HEADER - 4);
+            return idx.readInt();
+        } finally {
+            idx.close();
+        }
+    }
+
+    /**
+     * Gets a range of lines.
+     *
+     * @param from
+     *      the first line, from 1.
+     * @param count
+     *      the number of lines, at most {@link #MAX_LINES}; fewer at the end of the file.
+     */
+    public List<Line> getLines(int from, int count) throws IOException {
+        RandomAccessFile idx = openIndex();
+        try {
+            idx.seek(HEADER - 4);
+            int lines = idx.readInt();
+            from = Math.max(1, from);
+            count = Math.max(0, Math.min(Math.min(count, MAX_LINES), lines - from + 1));
+            if (count == 0) {
+                return new ArrayList<Line>();
+            }
+
+            byte[] buf = new byte[(count + 1) * 8];
+            idx.seek(HEADER + (from - 1) * 8L);
+            idx.readFully(buf);
+            ByteBuffer offsets = ByteBuffer.wrap(buf);
+            byte[] status = new byte[count];
+            idx.seek(HEADER + (lines + 1) * 8L + from - 1);
+            idx.readFully(status);
+
+            List<Line> r = new ArrayList<Line>(count);
+            RandomAccessFile src = new RandomAccessFile(source, "r");
+            try {
+                long start = offsets.getLong(0);
+                src.seek(start);
+                InputStream in = new BufferedInputStream(Channels.newInputStream(src.getChannel()));
+                byte[] text = new byte[MAX_LINE_LENGTH];
+                for (int i = 0; i < count; i++) {
+                    long end = offsets.getLong((i + 1) * 8);
+                    int len = (int) Math.min(end - start, MAX_LINE_LENGTH);
+                    readFully(in, text, len);
+                    skipFully(in, end - start - len);
+                    r.add(new Line(from + i, trim(text, len), status[i]));
+                    start = end;
+                }
+            } finally {
+                src.close();
+            }
+            return r;
+        } finally {
+            idx.close();
+        }
+    }
+
+    /**
+     * Writes a range of lines as HTML table rows, straight to the response.
+     */
+    void writeLines(int from, int count, Appendable out) throws IOException {
+        for (Line line : getLines(from, count)) {
+            out.append("<tr class='").append(line.getStatus()).append("'><td class='line'>")
+                    .append(Integer.toString(line.getNumber())).append("</td><td class='code'>");
+            String text = line.getText();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                default: out.append(c);
+                }
+            }
+            out.append("</td></tr>\n");
+        }
+    }
+
+    private static String trim(byte[] text, int len) {
+        // the line terminator
+        while (len > 0 && (text[len - 1] == '\n' || text[len - 1] == '\r')) {
+            len--;
+        }
+        return new String(text, 0, len, UTF8);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Opens the index, building it first if it is missing or out of date.
+     */
+    private RandomAccessFile openIndex() throws IOException {
+        long length = source.length(), lastModified = source.lastModified();
+        try {
+            RandomAccessFile idx = new RandomAccessFile(index, "r");
+            if (idx.length() >= HEADER && idx.readInt() == MAGIC && idx.readLong() == length && idx.readLong() == lastModified) {
+                return idx;
+            }
+            idx.close();
+        } catch (FileNotFoundException e) {
+            // built below
+        }
+        buildIndex(length, lastModified);
+        return new RandomAccessFile(index, "r");
+    }
+
+    private void buildIndex(long length, long lastModified) throws IOException {
+        // the offset of every line, and of the end of the file
+        long[] offsets = new long[1024];
+        int lines = 0;
+        InputStream in = new BufferedInputStream(new FileInputStream(source), 64 * 1024);
+        try {
+            long pos = 0;
+            boolean lineStart = true;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (lineStart) {
+                    if (lines + 1 >= offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    }
+                    offsets[lines++] = pos;
+                    lineStart = false;
+                }
+                pos++;
+                if (b == '\n') {
+                    lineStart = true;
+                }
+            }
+            offsets[lines] = pos;
+        } finally {
+            in.close();
+        }
+
+        byte[] status = annotate(lines);
+
+        index.getParentFile().mkdirs();
+        // concurrent views of the same file each write their own copy; the last one wins
+        File tmp = File.createTempFile(index.getName(), ".tmp", index.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeInt(lines);
+                for (int i = 0; i <= lines; i++) {
+                    out.writeLong(offsets[i]);
+                }
+                out.write(status);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Gets the status of the lines of the source, as extracted when it was archived.
+     * If that fails, the source is still shown, without its line coverage.
+     */
+    private byte[] annotate(int count) {
+        try {
+            return SourceArchive.readLines(lines, count);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the line coverage of " + source, e);
+            return new byte[count];
+        }
+    }
+
+    /**
+     * Classifies a line by its counters, summed up over the reports.
+     */
+    static byte getStatus(long covered, long total) {
+        if (total <= 0) {
+            return UNKNOWN;
+        }
+        return covered == 0 ? NOT_COVERED : covered < total ? PARTLY_COVERED : COVERED;
+    }
+
+    private static final Logger logger = Logger.getLogger(SourceView.class.getName());
+}
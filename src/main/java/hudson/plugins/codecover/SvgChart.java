@@ -0,0 +1,150 @@
+package hudson.plugins.codecover;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line chart of percentages drawn as SVG, laid out like the JFreeChart trend graphs.
+ *
+ * <p>
+ * Drawing it takes neither AWT nor a display, so it works on controllers where
+ * {@link hudson.util.ChartUtil#awtProblemCause} is set, and the browser scales it
+ * to any size without the chart being drawn again. Text widths are estimated
+ * from the number of characters, as no font is at hand.
+ */
+public final class SvgChart {
+
+    /**
+     * The colors of {@link hudson.util.ColorPalette#LINE_GRAPH}.
+     */
+    private static final String[] COLORS = { "#EF2929", "#729FCF", "#73D216", "#EDD400", "#AD7FA8" };
+
+    private static final int FONT_SIZE = 10;
+
+    private final int width;
+    private final int height;
+    private final String[] categories;
+    private final List<String> legends = new ArrayList<String>();
+    private final List<float[]> series = new ArrayList<float[]>();
+
+    /**
+     * @param categories
+     *      the labels of the points along the horizontal axis.
+     */
+    public SvgChart(int width, int height, String[] categories) {
+        this.width = width;
+        this.height = height;
+        this.categories = categories;
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param values
+     *      a percentage for each category, NaN where the line has no point.
+     */
+    public SvgChart addSeries(String legend, float[] values) {
+        legends.add(legend);
+        series.add(values);
+        return this;
+    }
+
+    private static int textWidth(String s) {
+        return s.length() * FONT_SIZE * 6 / 10;
+    }
+
+    @Override
+    public String toString() {
+        int legendWidth = 0;
+        for (String legend : legends) {
+            legendWidth = Math.max(legendWidth, textWidth(legend));
+        }
+        int labelHeight = 0;
+        for (String c : categories) {
+            labelHeight = Math.max(labelHeight, textWidth(c));
+        }
+        int left = 30, top = 5;
+        int right = width - legendWidth - 30;
+        int bottom = height - labelHeight - 8;
+        double w = right - left, h = bottom - top;
+        int n = categories.length;
+
+        StringBuilder b = new StringBuilder(1024 + n * 64 * (series.size() + 1));
+        b.append("<svg xmlns='http://www.w3.org/2000/svg' width='").append(width).append("' height='").append(height)
+                .append("' viewBox='0 0 ").append(width).append(' ').append(height)
+                .append("' font-family='sans-serif' font-size='").append(FONT_SIZE).append("'>\n");
+        b.append("<rect width='").append(width).append("' height='").append(height).append("' fill='#fff'/>\n");
+
+        // the percentage axis and grid
+        b.append("<path stroke='#000' stroke-width='0.5' d='");
+        for (int p = 0; p <= 100; p += 10) {
+            double y = bottom - h * p / 100;
+            b.append('M').append(left).append(' ').append(round(y)).append('H').append(right);
+        }
+        b.append("'/>\n<g text-anchor='end'>");
+        for (int p = 0; p <= 100; p += 10) {
+            b.append("<text x='").append(left - 4).append("' y='").append(round(bottom - h * p / 100 + FONT_SIZE / 3.0))
+                    .append("'>").append(p).append("</text>");
+        }
+
+        // the labels, skipping those that would overlap
+        int step = Math.max(1, (int) Math.ceil(n * (FONT_SIZE + 2) / Math.max(w, 1)));
+        for (int i = 0; i < n; i += step) {
+            b.append("<text transform='translate(").append(round(x(i, n, left, w) + FONT_SIZE / 3.0)).append(' ')
+                    .append(bottom + 4).append(") rotate(-90)'>");
+            escape(b, categories[i]).append("</text>");
+        }
+        b.append("</g>\n");
+
+        // the lines, broken where a point is missing
+        for (int s = 0; s < series.size(); s++) {
+            float[] values = series.get(s);
+            String color = COLORS[s % COLORS.length];
+            b.append("<path fill='none' stroke='").append(color)
+                    .append("' stroke-width='4' stroke-linejoin='round' stroke-linecap='round' d='");
+            boolean drawing = false;
+            for (int i = 0; i < n; i++) {
+                if (Float.isNaN(values[i])) {
+                    drawing = false;
+                    continue;
+                }
+                b.append(drawing ? 'L' : 'M').append(round(x(i, n, left, w))).append(' ').append(round(bottom - h * values[i] / 100));
+                drawing = true;
+            }
+            if (n == 1 && !Float.isNaN(values[0])) {
+                // a single point still shows as a dot
+                b.append("h0.1");
+            }
+            b.append("'/>\n");
+
+            int ly = top + 10 + s * 16;
+            b.append("<rect x='").append(right + 10).append("' y='").append(ly - 4)
+                    .append("' width='10' height='8' fill='").append(color).append("'/>");
+            b.append("<text x='").append(right + 24).append("' y='").append(ly + FONT_SIZE / 3).append("'>");
+            escape(b, legends.get(s)).append("</text>\n");
+        }
+        return b.append("</svg>\n").toString();
+    }
+
+    private static double x(int i, int n, int left, double w) {
+        return n > 1 ? left + w * i / (n - 1) : left + w / 2;
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 10) / 10.0;
+    }
+
+    private static StringBuilder escape(StringBuilder b, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<': b.append("&lt;"); break;
+            case '>': b.append("&gt;"); break;
+            case '&': b.append("&amp;"); break;
+            case '\'': b.append("&apos;"); break;
+            default: b.append(c);
+            }
+        }
+        return b;
+    }
+}
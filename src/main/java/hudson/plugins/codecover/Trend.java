@@ -0,0 +1,387 @@
+package hudson.plugins.codecover;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The coverage of a {@link CoverageObject} over a window of builds, oldest first,
+ * as drawn by the trend graphs.
+ *
+ * <p>
+ * A trend is collected newest first and stops at the edge of its {@link Window},
+ * so that a short window never looks at, nor loads, older builds. Long trends
+ * are then reduced to a maximum number of points by {@link #downsample(int)}.
+ */
+final class Trend {
+
+    /**
+     * The builds a trend is drawn over, as given by the request parameters:
+     *
+     * <dl>
+     * <dt>builds</dt><dd>only the last so many builds</dd>
+     * <dt>from, to</dt><dd>only the builds started within these days, as <tt>yyyy-MM-dd</tt></dd>
+     * <dt>maxPoints</dt><dd>at most so many points, by default one every 4 pixels</dd>
+     * </dl>
+     */
+    static final class Window {
+        final int builds;
+        final long from;
+        final long to;
+        final int maxPoints;
+
+        Window(int builds, long from, long to, int maxPoints) {
+            this.builds = builds;
+            this.from = from;
+            this.to = to;
+            this.maxPoints = maxPoints;
+        }
+
+        static Window of(StaplerRequest req, int width) {
+            return new Window(
+                    parseInt(req.getParameter("builds"), 0),
+                    parseDay(req.getParameter("from"), Long.MIN_VALUE, 0),
+                    parseDay(req.getParameter("to"), Long.MAX_VALUE, DAY - 1),
+                    parseInt(req.getParameter("maxPoints"), Math.max(MIN_POINTS, width / 4)));
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            value = Util.fixEmptyAndTrim(value);
+            try {
+                return value != null ? Math.max(0, Integer.parseInt(value)) : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        private static long parseDay(String value, long defaultValue, long offset) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return new SimpleDateFormat("yyyy-MM-dd").parse(value).getTime() + offset;
+            } catch (ParseException e) {
+                return defaultValue;
+            }
+        }
+
+        /**
+         * Identifies the window in a cache key.
+         */
+        @Override
+        public String toString() {
+            return builds + "," + from + "," + to + "," + maxPoints;
+        }
+    }
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Downsampling below that many points would lose the shape of the trend.
+     */
+    private static final int MIN_POINTS = 3;
+
+    /**
+     * One build of a trend.
+     */
+    static final class Point {
+        final int number;
+        final String label;
+        final long timestamp;
+        /**
+         * Percentage of each metric, NaN if the build doesn't have it.
+         */
+        final float[] values = new float[4];
+
+        Point(int number, String label, long timestamp, Ratio statement, Ratio branch, Ratio loop, Ratio condition) {
+            this.number = number;
+            this.label = label;
+            this.timestamp = timestamp;
+            values[CoverageXmlParser.STATEMENT] = percentage(statement);
+            values[CoverageXmlParser.BRANCH] = percentage(branch);
+            values[CoverageXmlParser.LOOP] = percentage(loop);
+            values[CoverageXmlParser.CONDITION] = percentage(condition);
+        }
+
+        private static float percentage(Ratio r) {
+            return r != null && r.isInitialized() ? r.getPercentageFloat() : Float.NaN;
+        }
+
+        boolean hasMetric(int metric) {
+            return !Float.isNaN(values[metric]);
+        }
+    }
+
+    private final List<Point> points;
+
+    Trend(List<Point> points) {
+        this.points = points;
+    }
+
+    List<Point> getPoints() {
+        return points;
+    }
+
+    /**
+     * Collects the trend of an object up to its build.
+     */
+    static Trend of(CoverageObject<?> obj, Window window) {
+        List<Point> points = new ArrayList<Point>();
+        AbstractBuild<?,?> build = obj.getBuild();
+        CoverageHistory history = obj.getHistory();
+        if (history != null) {
+            // the builds themselves are not loaded
+            int current = build.getNumber();
+            if (history.indexOf(current) < 0 && build.getTimeInMillis() <= window.to) {
+                // not completed yet
+                points.add(new Point(current, build.getDisplayName(), build.getTimeInMillis(),
+                        obj.getStatementCoverage(), obj.getBranchCoverage(), obj.getLoopCoverage(), obj.getConditionCoverage()));
+            }
+            addRecords(points, history, current, window);
+        } else {
+            for (CoverageObject<?> a = obj; a != null && !isFull(window, points); a = a.getPreviousResult()) {
+                AbstractBuild<?,?> b = a.getBuild();
+                long timestamp = b.getTimeInMillis();
+                if (timestamp < window.from) {
+                    break;
+                }
+                if (timestamp > window.to) {
+                    continue;
+                }
+                points.add(new Point(b.getNumber(), b.getDisplayName(), timestamp,
+                        a.getStatementCoverage(), a.getBranchCoverage(), a.getLoopCoverage(), a.getConditionCoverage()));
+            }
+        }
+        Collections.reverse(points);
+        return new Trend(points);
+    }
+
+    /**
+     * Adds the records of a history up to the given build, latest first. The
+     * builds before it that failed are left out, as {@link CoverageObject#getPreviousResult()}
+     * does, but the build itself is always shown.
+     */
+    static void addRecords(List<Point> points, CoverageHistory history, int current, Window window) {
+        for (int i = history.upperBound(current) - 1; i >= 0 && !isFull(window, points); i--) {
+            long timestamp = history.getTimestamp(i);
+            if (timestamp < window.from) {
+                break;
+            }
+            int number = history.getNumber(i);
+            if ((history.getResult(i) == Result.FAILURE && number != current) || timestamp > window.to) {
+                continue;
+            }
+            points.add(new Point(number, "#" + number, timestamp,
+                    history.getRatio(i, CoverageXmlParser.STATEMENT), history.getRatio(i, CoverageXmlParser.BRANCH),
+                    history.getRatio(i, CoverageXmlParser.LOOP), history.getRatio(i, CoverageXmlParser.CONDITION)));
+        }
+    }
+
+    /**
+     * Writes the trend column by column.
+     *
+     * @see CoverageObject#doTrend(StaplerRequest, org.kohsuke.stapler.StaplerResponse)
+     */
+    String toJSON() {
+        StringBuilder b = new StringBuilder(64 + points.size() * 48);
+        b.append("{\"numbers\":[");
+        for (int i = 0; i < points.size(); i++) {
+            b.append(i > 0 ? "," : "").append(points.get(i).number);
+        }
+        b.append("],\"labels\":[");
+        for (int i = 0; i < points.size(); i++) {
+            appendString(b.append(i > 0 ? "," : ""), points.get(i).label);
+        }
+        b.append("],\"timestamps\":[");
+        for (int i = 0; i < points.size(); i++) {
+            b.append(i > 0 ? "," : "").append(points.get(i).timestamp);
+        }
+        b.append("],\"series\":[");
+        boolean first = true;
+        for (int m = 0; m < 4; m++) {
+            if (!hasMetric(m)) {
+                continue;
+            }
+            b.append(first ? "" : ",").append("{\"name\":\"").append(METRICS[m]).append("\",\"legend\":");
+            appendString(b, getLegend(m));
+            b.append(",\"values\":[");
+            for (int i = 0; i < points.size(); i++) {
+                Point p = points.get(i);
+                b.append(i > 0 ? "," : "");
+                if (p.hasMetric(m)) {
+                    // two decimals are plenty for a graph
+                    b.append(Math.round(p.values[m] * 100) / 100.0);
+                } else {
+                    b.append("null");
+                }
+            }
+            b.append("]}");
+            first = false;
+        }
+        return b.append("]}").toString();
+    }
+
+    /**
+     * Draws the trend as SVG.
+     */
+    String toSvg(int width, int height) {
+        String[] labels = new String[points.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = points.get(i).label;
+        }
+        SvgChart chart = new SvgChart(width, height, labels);
+        for (int m = 0; m < 4; m++) {
+            if (!hasMetric(m)) {
+                continue;
+            }
+            float[] values = new float[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                values[i] = points.get(i).values[m];
+            }
+            chart.addSeries(getLegend(m), values);
+        }
+        return chart.toString();
+    }
+
+    private static final String[] METRICS = { "statement", "branch", "loop", "condition" };
+
+    /**
+     * Tells whether any build of the trend has a metric.
+     */
+    boolean hasMetric(int metric) {
+        for (Point p : points) {
+            if (p.hasMetric(metric)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String getLegend(int metric) {
+        switch (metric) {
+        case CoverageXmlParser.STATEMENT:
+            return Messages.CoverageObject_Legend_Statement();
+        case CoverageXmlParser.BRANCH:
+            return Messages.CoverageObject_Legend_Branch();
+        case CoverageXmlParser.LOOP:
+            return Messages.CoverageObject_Legend_Loop();
+        default:
+            return Messages.CoverageObject_Legend_Condition();
+        }
+    }
+
+    static void appendString(StringBuilder b, String s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+                b.append('\\').append(c);
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == '<' || c == '>' || c == '&') {
+                    // also keeps the JSON from being read as markup
+                    b.append(String.format("\\u%04x", (int) c));
+                } else {
+                    b.append(c);
+                }
+            }
+        }
+        b.append('"');
+    }
+
+    private static boolean isFull(Window window, List<Point> points) {
+        return window.builds > 0 && points.size() >= window.builds;
+    }
+
+    /**
+     * Reduces the trend to at most <tt>max</tt> points with the largest-triangle-three-buckets
+     * algorithm, which keeps the peaks and dips that give the trend its shape.
+     * The first and the last builds are always kept. The areas of the triangles
+     * of all metrics are added up, so that the same builds are kept for all of them.
+     */
+    Trend downsample(int max) {
+        int n = points.size();
+        max = Math.max(max, MIN_POINTS);
+        if (n <= max) {
+            return this;
+        }
+        List<Point> sampled = new ArrayList<Point>(max);
+        sampled.add(points.get(0));
+        double bucket = (double) (n - 2) / (max - 2);
+        int a = 0;
+        float[] avg = new float[4];
+        for (int i = 0; i < max - 2; i++) {
+            // the average of the next bucket is the third corner of the triangles
+            int avgStart = (int) ((i + 1) * bucket) + 1;
+            int avgEnd = Math.min((int) ((i + 2) * bucket) + 1, n);
+            double avgX = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += x(j);
+            }
+            avgX /= avgEnd - avgStart;
+            for (int m = 0; m < 4; m++) {
+                float sum = 0;
+                int count = 0;
+                for (int j = avgStart; j < avgEnd; j++) {
+                    if (points.get(j).hasMetric(m)) {
+                        sum += points.get(j).values[m];
+                        count++;
+                    }
+                }
+                avg[m] = count > 0 ? sum / count : Float.NaN;
+            }
+
+            int start = (int) (i * bucket) + 1;
+            int end = (int) ((i + 1) * bucket) + 1;
+            Point pa = points.get(a);
+            double ax = x(a);
+            double maxArea = -1;
+            int next = start;
+            for (int j = start; j < end; j++) {
+                Point p = points.get(j);
+                double area = 0;
+                for (int m = 0; m < 4; m++) {
+                    if (pa.hasMetric(m) && p.hasMetric(m) && !Float.isNaN(avg[m])) {
+                        area += Math.abs((ax - avgX) * (p.values[m] - pa.values[m])
+                                - (ax - x(j)) * (avg[m] - pa.values[m]));
+                    }
+                }
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            sampled.add(points.get(next));
+            a = next;
+        }
+        sampled.add(points.get(n - 1));
+        return new Trend(sampled);
+    }
+
+    /**
+     * Gets the position of a point on the time axis, in days since the first point.
+     */
+    private double x(int i) {
+        return (points.get(i).timestamp - points.get(0).timestamp) / (double) DAY;
+    }
+}
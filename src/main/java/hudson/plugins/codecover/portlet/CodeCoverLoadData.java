@@ -32,6 +32,8 @@ package hudson.plugins.codecover.portlet;
 import hudson.model.Job;
 import hudson.model.Run;
 import hudson.plugins.codecover.CodeCoverBuildAction;
+import hudson.plugins.codecover.CoverageHistory;
+import hudson.plugins.codecover.Ratio;
 import hudson.plugins.codecover.portlet.bean.CodeCoverCoverageResultSummary;
 import hudson.plugins.codecover.portlet.utils.Utils;
 
@@ -59,6 +61,12 @@ public final class CodeCoverLoadData {
    * Get CodeCover coverage results of all jobs and store into a sorted
    * HashMap by date.
    *
+   * <p>
+   * The results are read from the {@link CoverageHistory} of each job, in
+   * which the date range is found by binary search, so that no build is
+   * loaded. The history is only read again once a build has changed it.
+   * Builds without coverage are not in the history and are skipped.
+   *
    * @param jobs
    *        jobs of Dashboard view
    * @param daysNumber
@@ -81,26 +89,14 @@ public final class CodeCoverLoadData {
     LocalDate firstDate = lastDate.minusDays(daysNumber);
 
     // For each job, get CodeCover coverage results according with
-    // date range (last build date minus number of days)
+    // date range (last build date minus number of days), latest first
     for (Job job : jobs) {
 
-      Run run = job.getLastBuild();
-
-      if (null != run) {
-        LocalDate runDate = new LocalDate(run.getTimestamp());
-
-        while (runDate.isAfter(firstDate)) {
-
-          summarize(summaries, run, runDate, job);
-
-          run = run.getPreviousBuild();
-
-          if (null == run) {
-            break;
-          }
-
-          runDate = new LocalDate(run.getTimestamp());
+      CoverageHistory history = CoverageHistory.get(job);
 
+      if (null != history) {
+        for (int i = history.size() - 1, first = firstAfter(history, firstDate); i >= first; i--) {
+          summarize(summaries, getResult(history, i, job), new LocalDate(history.getTimestamp(i)), job);
         }
       }
     }
@@ -112,23 +108,36 @@ public final class CodeCoverLoadData {
 
   }
 
+  /**
+   * Find the first record of a history that is after a date.
+   *
+   * @param history
+   *          the coverage history of a job
+   * @param date
+   *          the date
+   * @return int the index of the record, the size of the history if
+   *         there is none
+   */
+  private static int firstAfter(CoverageHistory history, LocalDate date) {
+    // the records of the date itself are before the start of the next day
+    return history.firstSince(date.plusDays(1).toDateTimeAtStartOfDay().getMillis());
+  }
+
   /**
    * Summarize CodeCover converage results.
    *
    * @param summaries
    *          a Map of CodeCoverCoverageResultSummary objects indexed by
    *          dates
-   * @param run
-   *          the build which will provide information about the
-   *          coverage result
+   * @param codecoverCoverageResult
+   *          the coverage result of a build
    * @param runDate
    *          the date on which the build was performed
    * @param job
    *          job from the DashBoard Portlet view
    */
-  private static void summarize(Map<LocalDate, CodeCoverCoverageResultSummary> summaries, Run run, LocalDate runDate, Job job) {
-
-    CodeCoverCoverageResultSummary codecoverCoverageResult = getResult(run);
+  private static void summarize(Map<LocalDate, CodeCoverCoverageResultSummary> summaries,
+    CodeCoverCoverageResultSummary codecoverCoverageResult, LocalDate runDate, Job job) {
 
     // Retrieve CodeCover information for informed date
     CodeCoverCoverageResultSummary codecoverCoverageResultSummary = summaries.get(runDate);
@@ -167,35 +176,25 @@ public final class CodeCoverLoadData {
   }
 
   /**
-   * Get the CodeCover coverage result for a specific run.
+   * Get the CodeCover coverage result of a record of a history.
    *
-   * @param run
-   *          a job execution
-   * @return CodeCoverCoverageTestResult the coverage result
+   * @param history
+   *          the coverage history of the job
+   * @param i
+   *          the index of the record
+   * @param job
+   *          the job
+   * @return CodeCoverCoverageResultSummary the coverage result
    */
-  private static CodeCoverCoverageResultSummary getResult(Run run) {
-    CodeCoverBuildAction codecoverAction = run.getAction(CodeCoverBuildAction.class);
-
-    float statementCoverage = 0.0f;
-    float branchCoverage = 0.0f;
-    float loopCoverage = 0.0f;
-    float conditionCoverage = 0.0f;
-
-    if (codecoverAction != null) {
-      if (null != codecoverAction.getStatementCoverage()) {
-        statementCoverage = codecoverAction.getStatementCoverage().getPercentageFloat();
-      }
-      if (null != codecoverAction.getBranchCoverage()) {
-        branchCoverage = codecoverAction.getBranchCoverage().getPercentageFloat();
-      }
-      if (null != codecoverAction.getLoopCoverage()) {
-        loopCoverage = codecoverAction.getLoopCoverage().getPercentageFloat();
-      }
-      if (null != codecoverAction.getConditionCoverage()) {
-        conditionCoverage = codecoverAction.getConditionCoverage().getPercentageFloat();
+  private static CodeCoverCoverageResultSummary getResult(CoverageHistory history, int i, Job job) {
+    float[] coverage = new float[4];
+    for (int metric = 0; metric < coverage.length; metric++) {
+      Ratio ratio = history.getRatio(i, metric);
+      if (null != ratio) {
+        coverage[metric] = ratio.getPercentageFloat();
       }
     }
-    return new CodeCoverCoverageResultSummary(run.getParent(), statementCoverage, branchCoverage, loopCoverage, conditionCoverage);
+    return new CodeCoverCoverageResultSummary(job, coverage[0], coverage[1], coverage[2], coverage[3]);
   }
 
   /**
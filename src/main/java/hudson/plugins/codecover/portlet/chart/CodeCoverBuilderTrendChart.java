@@ -37,6 +37,7 @@ import hudson.plugins.codecover.portlet.utils.Utils;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -54,11 +55,15 @@ import org.joda.time.LocalDate;
 import hudson.Extension;
 import hudson.model.Descriptor;
 import hudson.model.Job;
+import hudson.plugins.codecover.SvgChart;
 import hudson.plugins.view.dashboard.DashboardPortlet;
+import hudson.util.ChartUtil;
 import hudson.util.DataSetBuilder;
 import hudson.util.Graph;
 import hudson.util.ShiftedCategoryAxis;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * A portlet for CodeCover coverage results - Trend Chart.
@@ -80,6 +85,11 @@ public class CodeCoverBuilderTrendChart extends DashboardPortlet {
    */
   private final int daysNumber;
 
+  /**
+   * Whether the chart is drawn as SVG rather than PNG.
+   */
+  private final boolean svg;
+
   /**
    * Constructor with chart attributes as parameters.
    * DataBoundConstructor annotation helps the Stapler class to find
@@ -94,15 +104,22 @@ public class CodeCoverBuilderTrendChart extends DashboardPortlet {
    *          the chart height
    * @param daysNumber
    *          the number of days
+   * @param svg
+   *          whether the chart is drawn as SVG
    */
   @DataBoundConstructor
-  public CodeCoverBuilderTrendChart(String name, String width, String height, String daysNumber) {
+  public CodeCoverBuilderTrendChart(String name, String width, String height, String daysNumber, boolean svg) {
 
     super(name);
 
     this.width = Utils.validateChartAttributes(width, Constants.DEFAULT_WIDTH);
     this.height = Utils.validateChartAttributes(height, Constants.DEFAULT_HEIGHT);
     this.daysNumber = Utils.validateChartAttributes(daysNumber, Constants.DEFAULT_DAYS_NUMBER);
+    this.svg = svg;
+  }
+
+  public CodeCoverBuilderTrendChart(String name, String width, String height, String daysNumber) {
+    this(name, width, height, daysNumber, false);
   }
 
   /**
@@ -124,6 +141,50 @@ public class CodeCoverBuilderTrendChart extends DashboardPortlet {
     return createTrendChart(summaries, width, height);
   }
 
+  /**
+   * Draws the chart as SVG, which needs no AWT. Called by portlet.jelly
+   * through summarySvg, with optional width and height parameters.
+   *
+   * @param req
+   *          the request
+   * @param rsp
+   *          the response
+   * @throws IOException
+   *           if the chart can't be sent
+   */
+  public void doSummarySvg(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    int w = Utils.validateChartAttributes(req.getParameter("width"), width);
+    int h = Utils.validateChartAttributes(req.getParameter("height"), height);
+
+    Map<LocalDate, CodeCoverCoverageResultSummary> summaries =
+      CodeCoverLoadData.loadChartDataWithinRange(getDashboard().getJobs(), daysNumber);
+
+    SvgChart chart;
+    if (summaries == null) {
+      // Show empty chart
+      chart = new SvgChart(w, h, new String[0]);
+    } else {
+      String[] dates = new String[summaries.size()];
+      float[][] values = new float[4][summaries.size()];
+      int i = 0;
+      for (Map.Entry<LocalDate, CodeCoverCoverageResultSummary> entry : summaries.entrySet()) {
+        dates[i] = entry.getKey().toString();
+        float[] average = average(entry.getValue());
+        for (int m = 0; m < 4; m++) {
+          values[m][i] = average[m];
+        }
+        i++;
+      }
+      chart = new SvgChart(w, h, dates)
+        .addSeries("statement", values[0])
+        .addSeries("branch", values[1])
+        .addSeries("loop", values[2])
+        .addSeries("condition", values[3]);
+    }
+    rsp.setContentType("image/svg+xml;charset=UTF-8");
+    rsp.getWriter().write(chart.toString());
+  }
+
   /**
    * Creates a graph for CodeCover Coverage results.
    *
@@ -206,30 +267,44 @@ public class CodeCoverBuilderTrendChart extends DashboardPortlet {
     DataSetBuilder<String, LocalDate> dataSetBuilder = new DataSetBuilder<String, LocalDate>();
 
     for (Map.Entry<LocalDate, CodeCoverCoverageResultSummary> entry : summaries.entrySet()) {
-      float statementCoverage = 0;
-      float branchCoverage = 0;
-      float loopCoverage = 0;
-      float conditionCoverage = 0;
+      float[] average = average(entry.getValue());
 
-      int count = 0;
-
-      List<CodeCoverCoverageResultSummary> list = entry.getValue().getCodeCoverCoverageResults();
+      dataSetBuilder.add(average[0], "statement", entry.getKey());
+      dataSetBuilder.add(average[1], "branch", entry.getKey());
+      dataSetBuilder.add(average[2], "loop", entry.getKey());
+      dataSetBuilder.add(average[3], "condition", entry.getKey());
+    }
 
-      for (CodeCoverCoverageResultSummary item : list) {
-        statementCoverage += item.getStatementCoverage();
-        branchCoverage += item.getBranchCoverage();
-        loopCoverage += item.getLoopCoverage();
-        conditionCoverage += item.getConditionCoverage();
-        count++;
-      }
+    return dataSetBuilder.build();
+  }
 
-      dataSetBuilder.add((statementCoverage / count), "statement", entry.getKey());
-      dataSetBuilder.add((branchCoverage / count), "branch", entry.getKey());
-      dataSetBuilder.add((loopCoverage / count), "loop", entry.getKey());
-      dataSetBuilder.add((conditionCoverage / count), "condition", entry.getKey());
+  /**
+   * Averages the coverage of the jobs on a day.
+   *
+   * @param summary
+   *          the results of the jobs on that day
+   * @return float[] statement, branch, loop and condition coverage
+   */
+  private static float[] average(CodeCoverCoverageResultSummary summary) {
+    float statementCoverage = 0;
+    float branchCoverage = 0;
+    float loopCoverage = 0;
+    float conditionCoverage = 0;
+
+    int count = 0;
+
+    List<CodeCoverCoverageResultSummary> list = summary.getCodeCoverCoverageResults();
+
+    for (CodeCoverCoverageResultSummary item : list) {
+      statementCoverage += item.getStatementCoverage();
+      branchCoverage += item.getBranchCoverage();
+      loopCoverage += item.getLoopCoverage();
+      conditionCoverage += item.getConditionCoverage();
+      count++;
     }
 
-    return dataSetBuilder.build();
+    return new float[] {statementCoverage / count, branchCoverage / count, loopCoverage / count,
+      conditionCoverage / count};
   }
 
   /**
@@ -270,4 +345,14 @@ public class CodeCoverBuilderTrendChart extends DashboardPortlet {
   public int getDaysNumber() {
     return daysNumber;
   }
+
+  /**
+   * Getter of the SVG option.
+   *
+   * @return boolean true if the chart is drawn as SVG, which it also is
+   *         when AWT is not available
+   */
+  public boolean isSvg() {
+    return svg || ChartUtil.awtProblemCause != null;
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Loads the lines of an archived source as the page is scrolled, rather than
+ * sending a large file with the page.
+ *
+ * Every <table class="codecover-source"> holds the first lines of the source.
+ * The table has the URL the lines are served from in data-url and the number
+ * of lines of the file in data-lines. The next lines are appended, a chunk at
+ * a time, when the end of the table comes near the bottom of the window.
+ */
+(function() {
+    var CHUNK = 500;
+
+    function check(table) {
+        var loaded = table.rows.length;
+        var lines = parseInt(table.getAttribute("data-lines"), 10);
+        if (table.loading || loaded >= lines) {
+            return;
+        }
+        var bottom = table.getBoundingClientRect().bottom;
+        var height = window.innerHeight || document.documentElement.clientHeight;
+        if (bottom > height * 2) {
+            return;
+        }
+        table.loading = true;
+        var xhr = new XMLHttpRequest();
+        xhr.open("GET", table.getAttribute("data-url") + "?from=" + (loaded + 1) + "&count=" + CHUNK, true);
+        xhr.onreadystatechange = function() {
+            if (xhr.readyState != 4) {
+                return;
+            }
+            if (xhr.status == 200) {
+                // the rows are parsed in a table of their own, then moved
+                var div = document.createElement("div");
+                div.innerHTML = "<table>" + xhr.responseText + "</table>";
+                var rows = div.getElementsByTagName("tr");
+                var body = table.tBodies.length > 0 ? table.tBodies[0] : table;
+                while (rows.length > 0) {
+                    body.appendChild(rows[0]);
+                }
+                table.loading = false;
+                // the window may still not be filled
+                check(table);
+            }
+            // on failure, the table stays as it is
+        };
+        xhr.send(null);
+    }
+
+    function checkAll() {
+        var tables = document.getElementsByTagName("table");
+        for (var i = 0; i < tables.length; i++) {
+            if (/(^|\s)codecover-source(\s|$)/.test(tables[i].className)) {
+                check(tables[i]);
+            }
+        }
+    }
+
+    if (window.addEventListener && window.XMLHttpRequest) {
+        window.addEventListener("load", checkAll, false);
+        window.addEventListener("scroll", checkAll, false);
+        window.addEventListener("resize", checkAll, false);
+    }
+})();
@@ -0,0 +1,155 @@
+/*
+ * Draws the coverage trend graphs in the browser, from the data served by the
+ * "trend" URL of a coverage object, instead of having the server draw a PNG.
+ *
+ * Every <div class="codecover-trend"> is replaced by a chart. The div holds
+ * the URL of the data in data-trend, the size in data-width and data-height,
+ * and the URL of the PNG graph in data-graph, which is shown instead if the
+ * browser can't draw or the data can't be loaded.
+ */
+(function() {
+    // the colors of hudson.util.ColorPalette.LINE_GRAPH
+    var COLORS = ["#EF2929", "#729FCF", "#73D216", "#EDD400", "#AD7FA8"];
+
+    function fallback(div) {
+        var img = document.createElement("img");
+        img.src = div.getAttribute("data-graph");
+        img.width = div.getAttribute("data-width");
+        img.height = div.getAttribute("data-height");
+        div.appendChild(img);
+    }
+
+    function load(div) {
+        var canvas = document.createElement("canvas");
+        if (!canvas.getContext || !window.XMLHttpRequest || !window.JSON) {
+            fallback(div);
+            return;
+        }
+        var xhr = new XMLHttpRequest();
+        xhr.open("GET", div.getAttribute("data-trend"), true);
+        xhr.onreadystatechange = function() {
+            if (xhr.readyState != 4) {
+                return;
+            }
+            var data = null;
+            if (xhr.status == 200) {
+                try {
+                    data = JSON.parse(xhr.responseText);
+                } catch (e) {
+                    // drawn by the server below
+                }
+            }
+            if (data == null) {
+                fallback(div);
+                return;
+            }
+            canvas.width = div.getAttribute("data-width");
+            canvas.height = div.getAttribute("data-height");
+            div.appendChild(canvas);
+            draw(canvas, data);
+        };
+        xhr.send(null);
+    }
+
+    function draw(canvas, data) {
+        var g = canvas.getContext("2d");
+        var n = data.numbers.length;
+        g.font = "10px sans-serif";
+
+        // the legend goes to the right, the build labels below
+        var legendWidth = 0;
+        for (var s = 0; s < data.series.length; s++) {
+            legendWidth = Math.max(legendWidth, g.measureText(data.series[s].legend).width);
+        }
+        var labelHeight = 0;
+        for (var i = 0; i < n; i++) {
+            labelHeight = Math.max(labelHeight, g.measureText(data.labels[i]).width);
+        }
+        var left = 30, top = 5;
+        var right = canvas.width - legendWidth - 30;
+        var bottom = canvas.height - labelHeight - 8;
+        var w = right - left, h = bottom - top;
+
+        g.fillStyle = "#fff";
+        g.fillRect(0, 0, canvas.width, canvas.height);
+
+        // the percentage axis and grid
+        g.strokeStyle = "#000";
+        g.fillStyle = "#000";
+        g.lineWidth = 0.5;
+        g.textAlign = "right";
+        g.textBaseline = "middle";
+        for (var p = 0; p <= 100; p += 10) {
+            var y = bottom - h * p / 100;
+            g.beginPath();
+            g.moveTo(left, y);
+            g.lineTo(right, y);
+            g.stroke();
+            g.fillText(p, left - 4, y);
+        }
+
+        function x(i) {
+            return n > 1 ? left + w * i / (n - 1) : left + w / 2;
+        }
+
+        // the build labels, skipping those that would overlap
+        g.textAlign = "right";
+        var step = Math.max(1, Math.ceil(n * 12 / Math.max(w, 1)));
+        for (var i = 0; i < n; i += step) {
+            g.save();
+            g.translate(x(i), bottom + 4);
+            g.rotate(-Math.PI / 2);
+            g.fillText(data.labels[i], 0, 0);
+            g.restore();
+        }
+
+        // the series, broken where a build lacks the metric
+        g.lineWidth = 4;
+        g.lineJoin = "round";
+        for (var s = 0; s < data.series.length; s++) {
+            var values = data.series[s].values;
+            g.strokeStyle = COLORS[s % COLORS.length];
+            g.beginPath();
+            var drawing = false;
+            for (var i = 0; i < n; i++) {
+                if (values[i] == null) {
+                    drawing = false;
+                    continue;
+                }
+                var y = bottom - h * values[i] / 100;
+                if (drawing) {
+                    g.lineTo(x(i), y);
+                } else {
+                    g.moveTo(x(i), y);
+                    drawing = true;
+                }
+            }
+            g.stroke();
+
+            // legend
+            var ly = top + 10 + s * 16;
+            g.fillStyle = g.strokeStyle;
+            g.fillRect(right + 10, ly - 4, 10, 8);
+            g.fillStyle = "#000";
+            g.textAlign = "left";
+            g.fillText(data.series[s].legend, right + 24, ly);
+        }
+    }
+
+    function init() {
+        var divs = document.getElementsByTagName("div");
+        for (var i = 0; i < divs.length; i++) {
+            var div = divs[i];
+            if (/(^|\s)codecover-trend(\s|$)/.test(div.className) && !div.getAttribute("data-loaded")) {
+                div.setAttribute("data-loaded", "true");
+                load(div);
+            }
+        }
+    }
+
+    if (window.addEventListener) {
+        window.addEventListener("load", init, false);
+    } else if (window.attachEvent) {
+        window.attachEvent("onload", init);
+    }
+})();
@@ -0,0 +1,260 @@
+package hudson.plugins.codecover;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class BreakdownTest {
+
+    /**
+     * Statement coverage: com.Acme 0%, org.a 75%, org.b 25%, org.c 50%.
+     * Branch coverage: org.b 50%, org.c 100%, none for the others.
+     */
+    private static CoverageTree packages() throws IOException {
+        return tree(6, 14,
+                pkg("org.b", coverage("statement", 1, 4), coverage("branch", 1, 2), file("B.java", 1, 4)),
+                pkg("org.a", 3, 4, file("A.java", 3, 4)),
+                pkg("org.c", coverage("statement", 2, 4), coverage("branch", 2, 2), file("C.java", 2, 4)),
+                pkg("com.Acme", 0, 2, file("Acme.java", 0, 2)));
+    }
+
+    private static Breakdown of(String sort, String order, String filter, String start, String count) throws IOException {
+        return Breakdown.of(packages(), 0, sort, order, filter, start, count);
+    }
+
+    private static JSONObject json(Breakdown b) throws IOException {
+        StringBuilder out = new StringBuilder();
+        b.writeJSON(out);
+        return JSONObject.fromObject(out.toString());
+    }
+
+    /**
+     * Gets the names of the rows of the page.
+     */
+    private static List<String> names(Breakdown b) throws IOException {
+        List<String> names = new ArrayList<String>();
+        JSONArray rows = json(b).getJSONArray("rows");
+        for (int i = 0; i < rows.size(); i++) {
+            names.add(rows.getJSONObject(i).getString("name"));
+        }
+        return names;
+    }
+
+    @Test
+    public void treeOrder() throws IOException {
+        Breakdown b = of(null, null, null, null, null);
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(b));
+        assertNull(b.getSort());
+        assertEquals(4, b.getTotal());
+        assertEquals(0, b.getStart());
+        assertEquals(4, b.getEnd());
+        assertFalse(b.isPaged());
+
+        assertEquals(Arrays.asList("org.c", "org.b", "org.a", "com.Acme"), names(of(null, "desc", null, null, null)));
+    }
+
+    @Test
+    public void sortByName() throws IOException {
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(of("name", "asc", null, null, null)));
+        assertEquals(Arrays.asList("org.c", "org.b", "org.a", "com.Acme"), names(of("name", "desc", null, null, null)));
+    }
+
+    @Test
+    public void sortByMetric() throws IOException {
+        assertEquals(Arrays.asList("com.Acme", "org.b", "org.c", "org.a"), names(of("statement", null, null, null, null)));
+        assertEquals(Arrays.asList("org.a", "org.c", "org.b", "com.Acme"), names(of("statement", "desc", null, null, null)));
+        // the children without the metric come last either way, in the order of the tree
+        assertEquals(Arrays.asList("org.b", "org.c", "com.Acme", "org.a"), names(of("branch", "asc", null, null, null)));
+        assertEquals(Arrays.asList("org.c", "org.b", "com.Acme", "org.a"), names(of("branch", "desc", null, null, null)));
+        // none has it
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(of("loop", "desc", null, null, null)));
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(of("condition", null, null, null, null)));
+    }
+
+    @Test
+    public void unknownSortIsIgnored() throws IOException {
+        Breakdown b = of("size", null, null, null, null);
+        assertNull(b.getSort());
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(b));
+    }
+
+    @Test
+    public void filter() throws IOException {
+        Breakdown b = of(null, null, " ORG.B ", null, null);
+        assertEquals("ORG.B", b.getFilter());
+        assertEquals(Arrays.asList("org.b"), names(b));
+        assertEquals(1, b.getTotal());
+
+        assertEquals(Arrays.asList("com.Acme", "org.a"), names(of("name", null, "a", null, null)));
+
+        b = of(null, null, "nothing", "3", null);
+        assertEquals(0, b.getTotal());
+        assertEquals(0, b.getStart());
+        assertEquals(0, b.getEnd());
+        assertEquals(0, names(b).size());
+        assertFalse(b.isPaged());
+    }
+
+    @Test
+    public void paging() throws IOException {
+        Breakdown b = of(null, null, null, "1", "2");
+        assertEquals(Arrays.asList("org.a", "org.b"), names(b));
+        assertEquals(1, b.getStart());
+        assertEquals(3, b.getEnd());
+        assertEquals(4, b.getTotal());
+        assertTrue(b.isPaged());
+        assertEquals(1, json(b).getInt("start"));
+        assertEquals(4, json(b).getInt("total"));
+
+        // the last page of a sorted breakdown
+        assertEquals(Arrays.asList("org.b", "com.Acme"), names(of("statement", "desc", null, "2", "2")));
+        // past the end: the last row
+        b = of(null, null, null, "10", "2");
+        assertEquals(3, b.getStart());
+        assertEquals(Arrays.asList("org.c"), names(b));
+    }
+
+    @Test
+    public void invalidPagesAreIgnored() throws IOException {
+        Breakdown b = of(null, null, null, "abc", "-5");
+        assertEquals(0, b.getStart());
+        assertEquals(1, b.getCount());
+        assertEquals(Arrays.asList("com.Acme"), names(b));
+
+        b = of(null, null, null, "-3", "x");
+        assertEquals(0, b.getStart());
+        assertEquals(Breakdown.DEFAULT_PAGE_SIZE, b.getCount());
+    }
+
+    @Test
+    public void links() throws IOException {
+        Breakdown b = of(null, null, null, null, null);
+        assertEquals("?sort=statement", b.getSortLink("statement"));
+        assertEquals("?start=100", b.getPageLink(100));
+        assertEquals("?", b.getPageLink(-1));
+
+        b = of("statement", null, "a b&c", "1", "2");
+        assertEquals("?sort=statement&order=desc&filter=a+b%26c&count=2", b.getSortLink("statement"));
+        assertEquals("?sort=name&filter=a+b%26c&count=2", b.getSortLink("name"));
+        assertEquals("?sort=statement&filter=a+b%26c&count=2&start=4", b.getPageLink(4));
+    }
+
+    private static StaplerRequest request(String... parameters) {
+        final Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < parameters.length; i += 2) {
+            map.put(parameters[i], parameters[i + 1]);
+        }
+        return (StaplerRequest) Proxy.newProxyInstance(BreakdownTest.class.getClassLoader(),
+                new Class<?>[] { StaplerRequest.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getParameter") ? map.get(args[0]) : null;
+                    }
+                });
+    }
+
+    @Test
+    public void parameterNames() throws IOException {
+        StaplerRequest req = request("sort", "statement", "filter", "org",
+                "class1.sort", "name", "class1.order", "desc", "class1.start", "1", "class1.count", "2");
+        Breakdown b = Breakdown.of(packages(), 0, req, null);
+        assertEquals("", b.getPrefix());
+        assertEquals(Arrays.asList("org.b", "org.c", "org.a"), names(b));
+
+        b = Breakdown.of(packages(), 0, req, "class1.");
+        assertEquals("class1.", b.getPrefix());
+        assertNull(b.getFilter());
+        assertEquals(Arrays.asList("org.b", "org.a"), names(b));
+        assertEquals("?class1.sort=name&class1.count=2", b.getSortLink("name"));
+        assertEquals("?class1.sort=statement&class1.count=2", b.getSortLink("statement"));
+        assertEquals("?class1.sort=name&class1.order=desc&class1.count=2&class1.start=3", b.getPageLink(3));
+
+        // none of its parameters
+        b = Breakdown.of(packages(), 0, req, "class2.");
+        assertNull(b.getSort());
+        assertEquals(Arrays.asList("com.Acme", "org.a", "org.b", "org.c"), names(b));
+        assertEquals("?class2.sort=name", b.getSortLink("name"));
+    }
+
+    @Test
+    public void writeJSON() throws IOException {
+        JSONObject page = json(of("name", null, null, "1", "2"));
+        JSONArray rows = page.getJSONArray("rows");
+        assertEquals(2, rows.size());
+
+        JSONObject a = rows.getJSONObject(0);
+        assertEquals("org.a", a.getString("name"));
+        assertEquals(3, a.getJSONObject("statement").getLong("covered"));
+        assertEquals(4, a.getJSONObject("statement").getLong("total"));
+        // the metrics it doesn't have are left out
+        assertFalse(a.has("branch"));
+        assertFalse(a.has("loop"));
+
+        JSONObject b = rows.getJSONObject(1);
+        assertEquals("org.b", b.getString("name"));
+        assertEquals(1, b.getJSONObject("branch").getLong("covered"));
+        assertEquals(2, b.getJSONObject("branch").getLong("total"));
+    }
+
+    @Test
+    public void writeRows() throws IOException {
+        CoverageTree t = tree(1, 2, pkg("a&lt;b&gt;&amp;&apos;c&apos;", 1, 2, file("A.java", 1, 2)));
+        StringBuilder out = new StringBuilder();
+        Breakdown.of(t, 0, null, null, null, null, null).writeRows(out);
+        String html = out.toString();
+        assertTrue(html, html.startsWith("<tr><td class='nowrap'><a href='"));
+        assertTrue(html, html.contains("/'>a&lt;b&gt;&amp;&#39;c&#39;</a></td>"));
+        assertFalse(html, html.contains("a<b>"));
+        assertTrue(html, html.endsWith("</tr>\n"));
+        assertEquals(html, Breakdown.of(t, 0, null, null, null, null, null).printRows());
+    }
+
+    @Test
+    public void serve() throws IOException {
+        final Map<String, String> headers = new HashMap<String, String>();
+        final StringWriter body = new StringWriter();
+        StaplerResponse rsp = (StaplerResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StaplerResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setHeader")) {
+                            headers.put((String) args[0], (String) args[1]);
+                        } else if (method.getName().equals("setContentType")) {
+                            headers.put("Content-Type", (String) args[0]);
+                        } else if (method.getName().equals("getWriter")) {
+                            return new PrintWriter(body);
+                        }
+                        return null;
+                    }
+                });
+
+        of(null, null, "org", null, "1").serve(rsp, true);
+        assertEquals("3", headers.get("X-Total-Count"));
+        assertEquals("application/json;charset=UTF-8", headers.get("Content-Type"));
+        JSONObject page = JSONObject.fromObject(body.toString());
+        assertEquals(3, page.getInt("total"));
+        assertEquals(1, page.getJSONArray("rows").size());
+
+        body.getBuffer().setLength(0);
+        of(null, null, null, null, null).serve(rsp, false);
+        assertEquals("4", headers.get("X-Total-Count"));
+        assertEquals("text/html;charset=UTF-8", headers.get("Content-Type"));
+        assertTrue(body.toString().startsWith("<tr>"));
+    }
+}
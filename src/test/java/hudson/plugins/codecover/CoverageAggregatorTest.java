@@ -0,0 +1,277 @@
+package hudson.plugins.codecover;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class CoverageAggregatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String D1 = "0123456789abcdef0123456789abcdef";
+    private static final String D2 = "fedcba9876543210fedcba9876543210";
+    private static final String D3 = "00000000000000000000000000000003";
+
+    /**
+     * A report whose tree is given, parsed after some delay.
+     */
+    private static class FakeSource implements CoverageAggregator.Source {
+        private final String module;
+        private final String digest;
+        private final CoverageTree tree;
+        private final long delay;
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+
+        FakeSource(String module, String digest, CoverageTree tree, long delay) {
+            this.module = module;
+            this.digest = digest;
+            this.tree = tree;
+            this.delay = delay;
+        }
+
+        public String getRemote() {
+            return "/workspace/" + module;
+        }
+
+        public String getModuleName() {
+            return module;
+        }
+
+        public String digest() {
+            return digest;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public boolean skip() {
+            skipped.incrementAndGet();
+            return true;
+        }
+
+        public CoverageTree parse() throws IOException, InterruptedException {
+            Thread.sleep(delay);
+            parsed.incrementAndGet();
+            return tree;
+        }
+    }
+
+    private static CoverageTree a() throws IOException {
+        return tree(1, 2, pkg("org.a", 1, 2, file("A.java", 1, 2)));
+    }
+
+    private static CoverageTree b() throws IOException {
+        return parse("<report><all name='all'>" + coverage("statement", 3, 4) + coverage("branch", 1, 2)
+                + pkg("org.b", coverage("statement", 3, 4), coverage("branch", 1, 2), file("B.java", 3, 4))
+                + "</all></report>");
+    }
+
+    private static CoverageTree c() throws IOException {
+        return tree(0, 5, pkg("org.c", 0, 5, file("C.java", 0, 5)));
+    }
+
+    private static List<FakeSource> sources(long... delays) throws IOException {
+        return Arrays.asList(
+                new FakeSource("a/coverage.xml", D1, a(), delays[0]),
+                new FakeSource("b/coverage.xml", D2, b(), delays[1]),
+                new FakeSource("c/coverage.xml", D3, c(), delays[2]));
+    }
+
+    private static final Map<String, ModuleCoverage> NONE = Collections.emptyMap();
+
+    @Test
+    public void totalsDoNotDependOnCompletionOrder() throws Exception {
+        // the first report finishes last, then the other way round
+        CoverageSummary late = CoverageAggregator.aggregate(sources(200, 100, 0), NONE);
+        CoverageSummary early = CoverageAggregator.aggregate(sources(0, 100, 200), NONE);
+        for (CoverageSummary s : Arrays.asList(late, early)) {
+            assertEquals(new Ratio(4, 11), s.getStatement());
+            assertEquals(new Ratio(1, 2), s.getBranch());
+            assertNull(s.getLoop());
+            assertNull(s.getCondition());
+            assertEquals(0, s.getReused());
+            List<String> names = new ArrayList<String>();
+            for (ModuleCoverage m : s.getModules()) {
+                names.add(m.getName());
+            }
+            assertEquals(Arrays.asList("a/coverage.xml", "b/coverage.xml", "c/coverage.xml"), names);
+            assertArrayEquals(new String[] { "/workspace/a/coverage.xml", "/workspace/b/coverage.xml", "/workspace/c/coverage.xml" },
+                    s.getReports());
+        }
+    }
+
+    @Test
+    public void modules() throws Exception {
+        CoverageSummary s = CoverageAggregator.aggregate(sources(0, 0, 0), NONE);
+        List<ModuleCoverage> modules = s.getModules();
+        assertEquals(3, modules.size());
+
+        assertEquals(D1, modules.get(0).getDigest());
+        assertEquals(new Ratio(1, 2), modules.get(0).getStatementCoverage());
+        assertNull(modules.get(0).getBranchCoverage());
+
+        assertEquals(D2, modules.get(1).getDigest());
+        assertEquals(new Ratio(3, 4), modules.get(1).getStatementCoverage());
+        assertEquals(new Ratio(1, 2), modules.get(1).getBranchCoverage());
+
+        assertEquals(D3, modules.get(2).getDigest());
+        assertEquals(new Ratio(0, 5), modules.get(2).getStatementCoverage());
+
+        // the tree of every report that was parsed, in order
+        CoverageTree[] trees = s.getTrees();
+        assertEquals(3, trees.length);
+        assertTrue(trees[1].findChild(0, "org.b") > 0);
+        assertEquals(-1, trees[1].findChild(0, "org.a"));
+    }
+
+    @Test
+    public void single() throws Exception {
+        FakeSource source = new FakeSource("coverage.xml", D1, a(), 0);
+        CoverageSummary s = CoverageAggregator.aggregate(Collections.singletonList(source), NONE);
+        assertEquals(new Ratio(1, 2), s.getStatement());
+        assertEquals(1, source.parsed.get());
+    }
+
+    @Test
+    public void none() throws Exception {
+        CoverageSummary s = CoverageAggregator.aggregate(Collections.<FakeSource>emptyList(), NONE);
+        assertEquals(0, s.getModules().size());
+        assertNull(s.getStatement());
+    }
+
+    @Test
+    public void failureCancelsTheRest() throws Exception {
+        final AtomicInteger completed = new AtomicInteger();
+        List<FakeSource> sources = new ArrayList<FakeSource>();
+        sources.add(new FakeSource("broken.xml", D1, null, 0) {
+            @Override
+            public CoverageTree parse() throws IOException {
+                throw new IOException("broken report");
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            sources.add(new FakeSource("slow" + i + ".xml", D2, b(), 0) {
+                @Override
+                public CoverageTree parse() throws IOException, InterruptedException {
+                    // interrupted, if it started at all
+                    Thread.sleep(60 * 1000);
+                    completed.incrementAndGet();
+                    return super.parse();
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        try {
+            CoverageAggregator.aggregate(sources, NONE);
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken report", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+        Thread.sleep(100);
+        assertEquals(0, completed.get());
+    }
+
+    @Test
+    public void unchangedReportsAreReused() throws Exception {
+        ModuleCoverage a = new ModuleCoverage("a/coverage.xml", D1, new Ratio[] { new Ratio(1, 2), null, null, null });
+        ModuleCoverage b = new ModuleCoverage("b/coverage.xml", D1, new Ratio[] { new Ratio(1, 4), null, null, null });
+        Map<String, ModuleCoverage> previous = new HashMap<String, ModuleCoverage>();
+        previous.put(a.getName(), a);
+        previous.put(b.getName(), b);
+
+        List<FakeSource> sources = sources(0, 0, 0);
+        CoverageSummary s = CoverageAggregator.aggregate(sources, previous);
+        assertEquals(1, s.getReused());
+        // same digest: the previous result, nothing parsed
+        assertSame(a, s.getModules().get(0));
+        assertEquals(0, sources.get(0).parsed.get());
+        assertEquals(1, sources.get(0).skipped.get());
+        assertNull(s.getTrees()[0]);
+        // changed since: parsed again
+        assertEquals(D2, s.getModules().get(1).getDigest());
+        assertEquals(new Ratio(3, 4), s.getModules().get(1).getStatementCoverage());
+        assertEquals(1, sources.get(1).parsed.get());
+        assertEquals(0, sources.get(1).skipped.get());
+        // new
+        assertEquals(1, sources.get(2).parsed.get());
+        assertEquals(new Ratio(4, 11), s.getStatement());
+    }
+
+    @Test
+    public void reportsThatChangedWhileSkippedAreParsed() throws Exception {
+        ModuleCoverage a = new ModuleCoverage("a/coverage.xml", D1, new Ratio[] { new Ratio(0, 2), null, null, null });
+        FakeSource source = new FakeSource("a/coverage.xml", D1, a(), 0) {
+            @Override
+            public boolean skip() {
+                super.skip();
+                return false;
+            }
+        };
+        CoverageSummary s = CoverageAggregator.aggregate(Collections.singletonList(source),
+                Collections.singletonMap(a.getName(), a));
+        assertEquals(0, s.getReused());
+        assertEquals(1, source.parsed.get());
+        assertEquals(new Ratio(1, 2), s.getStatement());
+    }
+
+    @Test
+    public void reusedTreesComeFromTheStore() throws Exception {
+        ReportStore store = new ReportStore(tmp.newFolder("codecover-reports"));
+        // the previous build stores the trees of its reports
+        CoverageSummary first = CoverageAggregator.aggregate(sources(0, 0, 0), NONE);
+        CodeCoverPublisher.mergeCoverageTrees(store, first, false);
+        assertTrue(store.containsTree(D1));
+        Map<String, ModuleCoverage> previous = new HashMap<String, ModuleCoverage>();
+        for (ModuleCoverage m : first.getModules()) {
+            previous.put(m.getName(), m);
+        }
+
+        String d4 = "00000000000000000000000000000004";
+        List<FakeSource> sources = Arrays.asList(
+                // fails if it is parsed
+                new FakeSource("a/coverage.xml", D1, null, 0),
+                new FakeSource("b/coverage.xml", d4, tree(2, 4, pkg("org.b", 2, 4, file("B.java", 2, 4))), 0));
+        CoverageSummary second = CoverageAggregator.aggregate(sources, previous);
+        assertEquals(1, second.getReused());
+        CoverageTree merged = CodeCoverPublisher.mergeCoverageTrees(store, second, false);
+        assertEquals(new Ratio(3, 6), merged.getRatio(0, CoverageXmlParser.STATEMENT));
+        int a = merged.findChild(0, "org.a");
+        assertEquals(new Ratio(1, 2), merged.getRatio(a, CoverageXmlParser.STATEMENT));
+        int b = merged.findChild(0, "org.b");
+        assertEquals(new Ratio(2, 4), merged.getRatio(b, CoverageXmlParser.STATEMENT));
+        assertTrue(store.containsTree(d4));
+    }
+
+    @Test
+    public void agentTreesAreOnlyReusedByAgents() throws Exception {
+        ReportStore store = new ReportStore(tmp.newFolder("codecover-reports"));
+        store.writeAgentTree(D1, ReportStore.compress(a()));
+        ModuleCoverage m = new ModuleCoverage("a/coverage.xml", D1, new Ratio[] { new Ratio(1, 2), null, null, null });
+        CoverageSummary s = new CoverageSummary(new String[] { "a/coverage.xml" }, Collections.singletonList(m), null,
+                m.getRatios(), 1);
+        assertTrue(CodeCoverPublisher.mergeCoverageTrees(store, s, true).findChild(0, "org.a") > 0);
+        try {
+            CodeCoverPublisher.mergeCoverageTrees(store, s, false);
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+}
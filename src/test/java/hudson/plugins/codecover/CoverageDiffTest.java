@@ -0,0 +1,164 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class CoverageDiffTest {
+
+    private static final String BEFORE = "<report><all name='all'>"
+            + "<package name='org.a'>" + coverage("statement", 3, 10) + coverage("branch", 1, 2)
+            + "<srcfile name='A.java'>" + coverage("statement", 1, 5) + coverage("branch", 1, 2) + "</srcfile>"
+            + "<srcfile name='B.java'>" + coverage("statement", 2, 5) + "</srcfile>"
+            + "</package>"
+            + "<package name='org.old'>" + coverage("statement", 1, 1)
+            + "<srcfile name='Old.java'>" + coverage("statement", 1, 1) + "</srcfile>"
+            + "</package>"
+            + "<srcfile name='Main.java'>" + coverage("statement", 0, 4) + "</srcfile>"
+            + "</all></report>";
+
+    private static final String AFTER = "<report><all name='all'>"
+            + "<package name='org.a'>" + coverage("statement", 5, 10) + coverage("branch", 1, 2)
+            + "<srcfile name='A.java'>" + coverage("statement", 1, 5) + coverage("branch", 1, 2) + "</srcfile>"
+            + "<srcfile name='B.java'>" + coverage("statement", 4, 5) + coverage("loop", 1, 1) + "</srcfile>"
+            + "</package>"
+            + "<package name='org.new'>" + coverage("statement", 0, 2)
+            + "<srcfile name='New.java'>" + coverage("statement", 0, 2) + "</srcfile>"
+            + "</package>"
+            + "<srcfile name='Main.java'>" + coverage("statement", 0, 4) + "</srcfile>"
+            + "</all></report>";
+
+    private static CoverageDiff diff(String before, String after) throws IOException {
+        CoverageDiff d = new CoverageDiff(null, 1, 2);
+        d.compute(parse(before), null, parse(after), null);
+        return d;
+    }
+
+    private static List<String> names(List<CoverageDiff.Row> rows) {
+        List<String> r = new ArrayList<String>();
+        for (CoverageDiff.Row row : rows) {
+            r.add(row.getName());
+        }
+        return r;
+    }
+
+    private static CoverageDiff.Row row(CoverageDiff d, String name) {
+        for (CoverageDiff.Row row : d.getRows()) {
+            if (row.getName().equals(name)) {
+                return row;
+            }
+        }
+        throw new AssertionError("No row " + name);
+    }
+
+    @Test
+    public void rows() throws IOException {
+        CoverageDiff d = diff(BEFORE, AFTER);
+        assertEquals(1, d.getFrom());
+        assertEquals(2, d.getTo());
+        assertEquals(Arrays.asList("org.a", "org.a/A.java", "org.a/B.java", "org.new", "org.new/New.java",
+                "org.old", "org.old/Old.java", "Main.java"), names(d.getRows()));
+        assertEquals(Arrays.asList("org.a", "org.a/B.java", "org.new", "org.new/New.java", "org.old", "org.old/Old.java"),
+                names(d.getChangedRows()));
+
+        CoverageDiff.Row pkg = row(d, "org.a");
+        assertTrue(pkg.isPackage());
+        assertFalse(pkg.isAdded());
+        assertFalse(pkg.isRemoved());
+        assertTrue(pkg.isChanged());
+        assertFalse(row(d, "Main.java").isPackage());
+        assertFalse(row(d, "Main.java").isChanged());
+
+        CoverageDiff.Row added = row(d, "org.new/New.java");
+        assertTrue(added.isAdded());
+        assertNull(added.getBefore(CoverageXmlParser.STATEMENT));
+        assertEquals(new Ratio(0, 2), added.getAfter(CoverageXmlParser.STATEMENT));
+        assertTrue(Float.isNaN(added.getDelta(CoverageXmlParser.STATEMENT)));
+        assertEquals("", added.getDeltaText(CoverageXmlParser.STATEMENT));
+
+        CoverageDiff.Row removed = row(d, "org.old");
+        assertTrue(removed.isRemoved());
+        assertNull(removed.getAfter(CoverageXmlParser.STATEMENT));
+    }
+
+    @Test
+    public void deltas() throws IOException {
+        CoverageDiff d = diff(BEFORE, AFTER);
+        CoverageDiff.Row b = row(d, "org.a/B.java");
+        assertEquals(new Ratio(2, 5), b.getBefore(CoverageXmlParser.STATEMENT));
+        assertEquals(new Ratio(4, 5), b.getAfter(CoverageXmlParser.STATEMENT));
+        assertEquals(40, b.getDelta(CoverageXmlParser.STATEMENT), 0.001);
+        assertEquals("+40.0", b.getDeltaText(CoverageXmlParser.STATEMENT));
+
+        // a metric gained is a change, but has no delta
+        assertNull(b.getBefore(CoverageXmlParser.LOOP));
+        assertEquals(new Ratio(1, 1), b.getAfter(CoverageXmlParser.LOOP));
+        assertTrue(Float.isNaN(b.getDelta(CoverageXmlParser.LOOP)));
+
+        CoverageDiff.Row a = row(d, "org.a/A.java");
+        assertFalse(a.isChanged());
+        assertEquals(0, a.getDelta(CoverageXmlParser.BRANCH), 0);
+        assertEquals("+0.0", a.getDeltaText(CoverageXmlParser.BRANCH));
+
+        CoverageDiff reverse = diff(AFTER, BEFORE);
+        assertEquals("-40.0", row(reverse, "org.a/B.java").getDeltaText(CoverageXmlParser.STATEMENT));
+        assertTrue(row(reverse, "org.new").isRemoved());
+    }
+
+    @Test
+    public void sameBuild() throws IOException {
+        CoverageDiff d = diff(AFTER, AFTER);
+        assertEquals(6, d.getRows().size());
+        assertTrue(d.getChangedRows().isEmpty());
+    }
+
+    /**
+     * Names are matched in the order of the trees, not of {@link String#compareTo}.
+     */
+    @Test
+    public void namesOutsideOfTheBasicPlane() throws IOException {
+        String report = "<report><all name='all'>"
+                + "<package name='\uFF61'>" + coverage("statement", 1, 2) + "</package>"
+                + "<package name='\uD800\uDC00'>" + coverage("statement", 1, 2) + "</package>"
+                + "</all></report>";
+        CoverageDiff d = diff(report, report);
+        assertEquals(Arrays.asList("\uFF61", "\uD800\uDC00"), names(d.getRows()));
+        assertTrue(d.getChangedRows().isEmpty());
+    }
+
+    @Test
+    public void writeJSON() throws IOException {
+        CoverageDiff d = diff(BEFORE.replace("Old.java", "O\"ld.java"), AFTER);
+        StringBuilder changed = new StringBuilder();
+        d.writeJSON(changed, false);
+        String s = changed.toString();
+        assertTrue(s, s.startsWith("{\"from\":1,\"to\":2,\"rows\":[{\"kind\":\"package\",\"name\":\"org.a\",\"status\":\"changed\","
+                + "\"statement\":{\"before\":{\"covered\":3,\"total\":10},\"after\":{\"covered\":5,\"total\":10},\"delta\":20.0},"
+                + "\"branch\":{\"before\":{\"covered\":1,\"total\":2},\"after\":{\"covered\":1,\"total\":2},\"delta\":0.0}},"));
+        assertTrue(s, s.contains("{\"kind\":\"file\",\"name\":\"org.new/New.java\",\"status\":\"added\","
+                + "\"statement\":{\"after\":{\"covered\":0,\"total\":2}}}"));
+        assertTrue(s, s.contains("\"name\":\"org.old/O\\\"ld.java\",\"status\":\"removed\","
+                + "\"statement\":{\"before\":{\"covered\":1,\"total\":1}}}"));
+        assertFalse(s, s.contains("Main.java"));
+        assertTrue(s, s.endsWith("]}"));
+
+        StringBuilder all = new StringBuilder();
+        d.writeJSON(all, true);
+        assertTrue(all.toString(), all.toString().contains("{\"kind\":\"file\",\"name\":\"Main.java\",\"status\":\"unchanged\","
+                + "\"statement\":{\"before\":{\"covered\":0,\"total\":4},\"after\":{\"covered\":0,\"total\":4},\"delta\":0.0}}]}"));
+    }
+
+    @Test
+    public void memorySizeGrowsWithRows() throws IOException {
+        CoverageDiff small = diff(BEFORE, BEFORE);
+        CoverageDiff large = diff(BEFORE, AFTER);
+        assertTrue(small.getMemorySize() > 0);
+        assertTrue(large.getMemorySize() > small.getMemorySize());
+    }
+}
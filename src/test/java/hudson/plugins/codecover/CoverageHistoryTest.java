@@ -0,0 +1,280 @@
+package hudson.plugins.codecover;
+
+import hudson.model.Result;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class CoverageHistoryTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(tmp.getRoot(), "codecover-history.idx");
+    }
+
+    private void append(int number, long timestamp) throws IOException {
+        CoverageHistory.append(file, number, timestamp, Result.SUCCESS,
+                new Ratio[] { new Ratio(number, 10), null, null, null });
+    }
+
+    private static int[] numbers(CoverageHistory h) {
+        int[] r = new int[h.size()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = h.getNumber(i);
+        }
+        return r;
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        CoverageHistory.append(file, 3, 3000, Result.UNSTABLE,
+                new Ratio[] { new Ratio(5, 10), new Ratio(), null, new Ratio(0, 0) });
+        CoverageHistory.append(file, 1, 1000, null, new Ratio[4]);
+        CoverageHistory h = CoverageHistory.read(file);
+        assertArrayEquals(new int[] { 1, 3 }, numbers(h));
+
+        assertEquals(1000, h.getTimestamp(0));
+        assertEquals(Result.SUCCESS, h.getResult(0));
+        for (int m = 0; m < 4; m++) {
+            assertNull(h.getRatio(0, m));
+        }
+
+        assertEquals(3000, h.getTimestamp(1));
+        assertEquals(Result.UNSTABLE, h.getResult(1));
+        assertEquals(new Ratio(5, 10), h.getRatio(1, CoverageXmlParser.STATEMENT));
+        assertNull(h.getRatio(1, CoverageXmlParser.BRANCH));
+        assertNull(h.getRatio(1, CoverageXmlParser.LOOP));
+        assertEquals(new Ratio(0, 0), h.getRatio(1, CoverageXmlParser.CONDITION));
+    }
+
+    @Test
+    public void lookups() throws IOException {
+        append(2, 2000);
+        append(5, 5000);
+        CoverageHistory h = CoverageHistory.read(file);
+        assertEquals(0, h.upperBound(1));
+        assertEquals(1, h.upperBound(2));
+        assertEquals(1, h.upperBound(4));
+        assertEquals(2, h.upperBound(9));
+        assertEquals(1, h.indexOf(5));
+        assertEquals(-1, h.indexOf(3));
+    }
+
+    @Test
+    public void laterRecordReplacesEarlier() throws IOException {
+        append(1, 1000);
+        CoverageHistory.append(file, 1, 1500, Result.FAILURE, new Ratio[] { new Ratio(9, 10), null, null, null });
+        CoverageHistory h = CoverageHistory.read(file);
+        assertEquals(1, h.size());
+        assertEquals(1500, h.getTimestamp(0));
+        assertEquals(Result.FAILURE, h.getResult(0));
+        assertEquals(new Ratio(9, 10), h.getRatio(0, CoverageXmlParser.STATEMENT));
+    }
+
+    @Test
+    public void deleted() throws IOException {
+        append(1, 1000);
+        append(2, 2000);
+        CoverageHistory.appendDeleted(file, 1, 1000);
+        assertArrayEquals(new int[] { 2 }, numbers(CoverageHistory.read(file)));
+        // recorded again
+        append(1, 1000);
+        assertArrayEquals(new int[] { 1, 2 }, numbers(CoverageHistory.read(file)));
+    }
+
+    @Test
+    public void deletedWithoutHistory() throws IOException {
+        CoverageHistory.appendDeleted(file, 1, 1000);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void partialRecordIgnored() throws IOException {
+        append(1, 1000);
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[CoverageHistory.RECORD - 1]);
+        } finally {
+            out.close();
+        }
+        assertArrayEquals(new int[] { 1 }, numbers(CoverageHistory.read(file)));
+    }
+
+    @Test(expected = IOException.class)
+    public void readNotAHistory() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 'C', 'C', 'T', 'R', 0, 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+        CoverageHistory.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void readOtherVersion() throws IOException {
+        append(1, 1000);
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.seek(4);
+            f.writeInt(2);
+        } finally {
+            f.close();
+        }
+        CoverageHistory.read(file);
+    }
+
+    @Test
+    public void downsample() throws IOException {
+        // week 14 of the epoch starts on day 98
+        append(1, 98 * DAY + HOUR);
+        append(2, 98 * DAY + 2 * HOUR);
+        append(3, 99 * DAY + HOUR);
+        append(4, 105 * DAY + HOUR);
+        append(5, 106 * DAY);
+        append(6, 107 * DAY + HOUR);
+        append(7, 107 * DAY + 2 * HOUR);
+        append(8, 110 * DAY);
+
+        assertEquals(3, CoverageHistory.downsample(file, 110 * DAY, 105 * DAY));
+        CoverageHistory h = CoverageHistory.read(file);
+        assertArrayEquals(new int[] { 3, 4, 5, 7, 8 }, numbers(h));
+        assertEquals(99 * DAY + HOUR, h.getTimestamp(0));
+        assertEquals(new Ratio(7, 10), h.getRatio(3, CoverageXmlParser.STATEMENT));
+
+        assertEquals(0, CoverageHistory.downsample(file, 110 * DAY, 105 * DAY));
+        assertEquals(5, CoverageHistory.read(file).size());
+
+        // still appendable
+        append(9, 111 * DAY);
+        assertEquals(6, CoverageHistory.read(file).size());
+    }
+
+    @Test
+    public void downsampleKeepsLastRecord() throws IOException {
+        append(1, 98 * DAY + HOUR);
+        append(2, 98 * DAY + 2 * HOUR);
+        assertEquals(1, CoverageHistory.downsample(file, 200 * DAY, 0));
+        assertArrayEquals(new int[] { 2 }, numbers(CoverageHistory.read(file)));
+    }
+
+    @Test
+    public void downsampleSkipsFailedBuilds() throws IOException {
+        Ratio[] ratios = { new Ratio(1, 10), null, null, null };
+        append(1, 98 * DAY + HOUR);
+        CoverageHistory.append(file, 2, 98 * DAY + 2 * HOUR, Result.FAILURE, ratios);
+        // only failures
+        CoverageHistory.append(file, 3, 99 * DAY + HOUR, Result.FAILURE, ratios);
+        CoverageHistory.append(file, 4, 99 * DAY + 2 * HOUR, Result.FAILURE, ratios);
+        append(5, 100 * DAY);
+        CoverageHistory.append(file, 6, 110 * DAY, Result.FAILURE, ratios);
+
+        assertEquals(2, CoverageHistory.downsample(file, 110 * DAY, 0));
+        CoverageHistory h = CoverageHistory.read(file);
+        assertArrayEquals(new int[] { 1, 4, 5, 6 }, numbers(h));
+        assertEquals(Result.SUCCESS, h.getResult(0));
+
+        // the last record is kept as well, failed or not
+        append(7, 120 * DAY);
+        append(8, 120 * DAY + HOUR);
+        CoverageHistory.append(file, 9, 120 * DAY + 2 * HOUR, Result.FAILURE, ratios);
+        assertEquals(1, CoverageHistory.downsample(file, 200 * DAY, 0));
+        assertArrayEquals(new int[] { 1, 4, 5, 6, 8, 9 }, numbers(CoverageHistory.read(file)));
+    }
+
+    @Test
+    public void downsampleWithoutHistory() throws IOException {
+        assertEquals(0, CoverageHistory.downsample(file, 200 * DAY, 100 * DAY));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void firstSince() throws IOException {
+        append(1, 1000);
+        append(2, 2000);
+        append(3, 2000);
+        append(4, 3000);
+        CoverageHistory h = CoverageHistory.read(file);
+        // before the first record
+        assertEquals(0, h.firstSince(Long.MIN_VALUE));
+        assertEquals(0, h.firstSince(1000));
+        assertEquals(1, h.firstSince(1001));
+        // the first of the records of the same time
+        assertEquals(1, h.firstSince(2000));
+        assertEquals(3, h.firstSince(2001));
+        assertEquals(3, h.firstSince(3000));
+        // after the last record
+        assertEquals(4, h.firstSince(3001));
+        assertEquals(4, h.firstSince(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void firstSinceWithoutRecords() throws IOException {
+        append(1, 1000);
+        CoverageHistory.appendDeleted(file, 1, 1000);
+        CoverageHistory h = CoverageHistory.read(file);
+        assertEquals(0, h.size());
+        assertEquals(0, h.firstSince(0));
+
+        append(2, 2000);
+        h = CoverageHistory.read(file);
+        assertEquals(0, h.firstSince(2000));
+        assertEquals(1, h.firstSince(2001));
+    }
+
+    @Test
+    public void laterRecordsOfABuildWin() throws IOException {
+        append(5, 5000);
+        append(2, 2000);
+        CoverageHistory.append(file, 5, 5500, Result.SUCCESS, new Ratio[] { new Ratio(1, 3), null, null, null });
+        CoverageHistory.appendDeleted(file, 2, 2000);
+        append(2, 2500);
+        append(3, 3000);
+        CoverageHistory.appendDeleted(file, 3, 3000);
+        CoverageHistory h = CoverageHistory.read(file);
+        assertArrayEquals(new int[] { 2, 5 }, numbers(h));
+        assertEquals(2500, h.getTimestamp(0));
+        assertEquals(5500, h.getTimestamp(1));
+        assertEquals(new Ratio(1, 3), h.getRatio(1, CoverageXmlParser.STATEMENT));
+    }
+
+    @Test
+    public void unchangedHistoriesAreNotReadAgain() throws IOException {
+        append(1, 1000);
+        CoverageHistory h = CoverageHistory.load(file);
+        assertSame(h, CoverageHistory.load(file));
+
+        append(2, 2000);
+        CoverageHistory appended = CoverageHistory.load(file);
+        assertNotSame(h, appended);
+        assertArrayEquals(new int[] { 1, 2 }, numbers(appended));
+        assertSame(appended, CoverageHistory.load(file));
+
+        // rewritten to the same length
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.seek(8 + CoverageHistory.RECORD);
+            f.writeInt(3);
+        } finally {
+            f.close();
+        }
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        assertArrayEquals(new int[] { 1, 3 }, numbers(CoverageHistory.load(file)));
+    }
+}
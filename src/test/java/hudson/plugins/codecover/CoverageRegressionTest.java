@@ -0,0 +1,104 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class CoverageRegressionTest {
+
+    private static List<CoverageRegression> attribute(CoverageTree before, CoverageTree after) {
+        CoverageDiff diff = new CoverageDiff(null, 1, 2);
+        diff.compute(before, null, after, null);
+        return CoverageRegression.attribute(diff, before.getTotals(0), after.getTotals(0));
+    }
+
+    private static final double EPSILON = 0.001;
+
+    @Test
+    public void contributionsAddUpToTheDrop() throws IOException {
+        CoverageTree before = tree(23, 30,
+                pkg("org.a", 13, 20, file("A.java", 8, 10), file("B.java", 5, 10)),
+                pkg("org.b", 10, 10, file("C.java", 10, 10)));
+        CoverageTree after = tree(20, 40,
+                pkg("org.a", 10, 22, file("A.java", 4, 10), file("B.java", 6, 12)),
+                pkg("org.b", 10, 18, file("C.java", 10, 10), file("D.java", 0, 8)));
+        List<CoverageRegression> r = attribute(before, after);
+        assertEquals(5, r.size());
+
+        // packages, then files, worst first
+        assertEquals("org.b", r.get(0).getName());
+        assertTrue(r.get(0).isPackage());
+        assertEquals(-15.333, r.get(0).getContribution(), EPSILON);
+        assertEquals("org.a", r.get(1).getName());
+        assertEquals(-11.333, r.get(1).getContribution(), EPSILON);
+        assertEquals("org.b/D.java", r.get(2).getName());
+        assertFalse(r.get(2).isPackage());
+        assertEquals(-15.333, r.get(2).getContribution(), EPSILON);
+        assertEquals("org.a/A.java", r.get(3).getName());
+        assertEquals(-10, r.get(3).getContribution(), EPSILON);
+        assertEquals("org.a/B.java", r.get(4).getName());
+        assertEquals(-1.333, r.get(4).getContribution(), EPSILON);
+
+        double drop = after.getRatio(0, CoverageXmlParser.STATEMENT).getPercentageFloat()
+                - before.getRatio(0, CoverageXmlParser.STATEMENT).getPercentageFloat();
+        double files = 0, packages = 0;
+        for (CoverageRegression c : r) {
+            assertEquals(CoverageXmlParser.STATEMENT, c.getMetric());
+            if (c.isPackage()) {
+                packages += c.getContribution();
+            } else {
+                files += c.getContribution();
+            }
+        }
+        assertEquals(drop, files, EPSILON);
+        assertEquals(drop, packages, EPSILON);
+
+        assertEquals(80, r.get(3).getBefore(), EPSILON);
+        assertEquals(40, r.get(3).getAfter(), EPSILON);
+        // added
+        assertTrue(Float.isNaN(r.get(2).getBefore()));
+        assertEquals(0, r.get(2).getAfter(), EPSILON);
+    }
+
+    @Test
+    public void noDrop() throws IOException {
+        CoverageTree before = tree(5, 10, pkg("org.a", 5, 10, file("A.java", 5, 10)));
+        CoverageTree after = tree(6, 10, pkg("org.a", 6, 10, file("A.java", 4, 5), file("B.java", 2, 5)));
+        assertTrue(attribute(before, after).isEmpty());
+        assertTrue(attribute(before, before).isEmpty());
+        assertFalse(attribute(after, before).isEmpty());
+    }
+
+    @Test
+    public void metricMissingFromABuild() throws IOException {
+        CoverageTree before = parse("<report><all name='all'>" + coverage("branch", 5, 10)
+                + "<srcfile name='A.java'>" + coverage("branch", 5, 10) + "</srcfile></all></report>");
+        CoverageTree after = tree(0, 10, file("A.java", 0, 10));
+        assertTrue(attribute(before, after).isEmpty());
+    }
+
+    @Test
+    public void onlyTheWorstAreKept() throws IOException {
+        int n = CoverageRegression.SIZE + 5;
+        String[] before = new String[n], after = new String[n];
+        for (int i = 0; i < n; i++) {
+            before[i] = file("F" + i + ".java", 10, 10);
+            after[i] = file("F" + i + ".java", 10 - i, 10);
+        }
+        long lost = (long) n * (n - 1) / 2;
+        List<CoverageRegression> r = attribute(tree(n * 10, n * 10, before), tree(n * 10 - lost, n * 10, after));
+        assertEquals(CoverageRegression.SIZE, r.size());
+        List<String> names = new ArrayList<String>();
+        for (CoverageRegression c : r) {
+            names.add(c.getName());
+        }
+        for (int i = 0; i < CoverageRegression.SIZE; i++) {
+            assertEquals(names.toString(), "F" + (n - 1 - i) + ".java", names.get(i));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CoverageReportCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    /**
+     * Loads a report of nothing but totals, counting the loads.
+     */
+    private Callable<CoverageReport> loader() {
+        return new Callable<CoverageReport>() {
+            public CoverageReport call() {
+                loads.incrementAndGet();
+                return new CoverageReport(new CodeCoverBuildAction(null, null, new Ratio(1, 2), null, null, null, null));
+            }
+        };
+    }
+
+    private static long weightOfOne() throws IOException {
+        CoverageReportCache cache = new CoverageReportCache(Long.MAX_VALUE);
+        cache.get("job#1", new CoverageReportCacheTest().loader());
+        return cache.getWeight();
+    }
+
+    @Test
+    public void cachedReportsAreLoadedOnce() throws IOException {
+        CoverageReportCache cache = new CoverageReportCache(Long.MAX_VALUE);
+        CoverageReport r = cache.get("job#1", loader());
+        assertSame(r, cache.get("job#1", loader()));
+        assertNotSame(r, cache.get("job#2", loader()));
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertTrue(cache.getWeight() > 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() throws IOException {
+        long one = weightOfOne();
+        CoverageReportCache cache = new CoverageReportCache(one * 2);
+        cache.get("job#1", loader());
+        cache.get("job#2", loader());
+        // #1 is now more recent than #2
+        cache.get("job#1", loader());
+        cache.get("job#3", loader());
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(one * 2, cache.getWeight());
+
+        loads.set(0);
+        cache.get("job#1", loader());
+        assertEquals(0, loads.get());
+        cache.get("job#2", loader());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void growingEvicts() throws IOException {
+        long one = weightOfOne();
+        CoverageReportCache cache = new CoverageReportCache(one * 3);
+        cache.get("job#1", loader());
+        cache.get("job#2", loader());
+        cache.grow("job#2", one);
+        assertEquals(one * 3, cache.getWeight());
+        assertEquals(2, cache.getSize());
+        cache.grow("job#2", 1);
+        assertEquals(1, cache.getSize());
+        assertEquals(one * 2 + 1, cache.getWeight());
+        // not cached, so not accounted for
+        cache.grow("job#1", 1000);
+        assertEquals(one * 2 + 1, cache.getWeight());
+    }
+
+    @Test
+    public void invalidateAndBudget() throws IOException {
+        long one = weightOfOne();
+        CoverageReportCache cache = new CoverageReportCache(Long.MAX_VALUE);
+        cache.get("job#1", loader());
+        cache.get("job#2", loader());
+        cache.invalidate("job#1");
+        assertEquals(1, cache.getSize());
+        assertEquals(one, cache.getWeight());
+        cache.setBudget(0);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void failuresAreNotKept() throws IOException {
+        CoverageReportCache cache = new CoverageReportCache(Long.MAX_VALUE);
+        try {
+            cache.get("job#1", new Callable<CoverageReport>() {
+                public CoverageReport call() throws IOException {
+                    throw new IOException("broken");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken", e.getCause().getMessage());
+        }
+        assertEquals(0, cache.getSize());
+        cache.get("job#1", loader());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void concurrentLoadsHappenOnce() throws Exception {
+        final CoverageReportCache cache = new CoverageReportCache(Long.MAX_VALUE);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<CoverageReport> slow = new Callable<CoverageReport>() {
+            public CoverageReport call() throws Exception {
+                loading.countDown();
+                release.await();
+                return loader().call();
+            }
+        };
+        final CoverageReport[] got = new CoverageReport[2];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    got[0] = cache.get("job#1", slow);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        first.start();
+        loading.await();
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    got[1] = cache.get("job#1", loader());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        second.start();
+        release.countDown();
+        first.join();
+        second.join();
+        assertSame(got[0], got[1]);
+        assertEquals(1, loads.get());
+    }
+}
@@ -0,0 +1,217 @@
+package hudson.plugins.codecover;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class CoverageRetentionTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mark;
+    private ReportStore store;
+
+    /**
+     * The numbers of the builds that were looked at, and of those whose detail was dropped.
+     */
+    private final List<Integer> visited = new ArrayList<Integer>();
+    private final List<Integer> dropped = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        mark = new File(tmp.getRoot(), "codecover-retention");
+        store = new ReportStore(new File(tmp.getRoot(), "codecover-reports"));
+    }
+
+    private String put(String contents) throws IOException {
+        ReportStore.Pending p = store.create();
+        try {
+            p.getOutputStream().write(contents.getBytes("UTF-8"));
+            return p.commit();
+        } finally {
+            p.abort();
+        }
+    }
+
+    /**
+     * A build of the job, linked to the one before it.
+     */
+    private class FakeBuild implements CoverageRetention.RetainedBuild {
+        private final int number;
+        private final boolean building;
+        private final boolean coverage;
+        private final int keyframe;
+        private final String digest;
+        private final FakeBuild previous;
+
+        FakeBuild(int number, boolean building, boolean coverage, int keyframe, String digest, FakeBuild previous) {
+            this.number = number;
+            this.building = building;
+            this.coverage = coverage;
+            this.keyframe = keyframe;
+            this.digest = digest;
+            this.previous = previous;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public boolean isBuilding() {
+            visited.add(number);
+            return building;
+        }
+
+        public boolean hasCoverage() {
+            return coverage;
+        }
+
+        public int getKeyframe() {
+            return keyframe;
+        }
+
+        public List<ModuleCoverage> getModules() {
+            return Collections.singletonList(new ModuleCoverage("coverage.xml", digest, new Ratio[4]));
+        }
+
+        public boolean dropDetail() {
+            dropped.add(number);
+            return true;
+        }
+
+        public CoverageRetention.RetainedBuild getPrevious() {
+            return previous;
+        }
+    }
+
+    private int readMark() throws IOException {
+        Reader r = new FileReader(mark);
+        try {
+            char[] buf = new char[32];
+            return Integer.parseInt(new String(buf, 0, r.read(buf)).trim());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void keyframesOfTheLastBuildsAreKept() throws IOException {
+        String d1 = put("1"), d2 = put("2"), d4 = put("4"), d5 = put("5"), d6 = put("6");
+        // 6 and 5 are deltas against 4, 3 recorded no coverage
+        FakeBuild b1 = new FakeBuild(1, false, true, 0, d1, null);
+        FakeBuild b2 = new FakeBuild(2, false, true, 0, d2, b1);
+        FakeBuild b3 = new FakeBuild(3, false, false, 0, null, b2);
+        FakeBuild b4 = new FakeBuild(4, false, true, 0, d4, b3);
+        FakeBuild b5 = new FakeBuild(5, false, true, 4, d5, b4);
+        FakeBuild b6 = new FakeBuild(6, false, true, 4, d6, b5);
+        FakeBuild b7 = new FakeBuild(7, true, false, 0, null, b6);
+
+        long now = System.currentTimeMillis();
+        CoverageRetention.Outcome r = CoverageRetention.dropDetail(mark, store, b7, 2, now);
+        assertEquals(Arrays.asList(2, 1), dropped);
+        assertEquals(2, r.dropped);
+        // the reports of the builds that lost their detail are still in their grace period
+        assertEquals(0, r.collected);
+        assertTrue(store.contains(d1));
+        assertTrue(store.isDirty());
+        // up to the keyframe
+        assertEquals(3, readMark());
+
+        // a day later, only the builds after the mark are looked at again
+        visited.clear();
+        dropped.clear();
+        r = CoverageRetention.dropDetail(mark, store, b7, 2, now + 2 * CoverageRetention.GRACE_PERIOD);
+        assertEquals(Arrays.asList(7, 6, 5, 4), visited);
+        assertEquals(0, r.dropped);
+        assertEquals(2, r.collected);
+        assertFalse(store.contains(d1));
+        assertFalse(store.contains(d2));
+        assertTrue(store.contains(d4));
+        assertTrue(store.contains(d5));
+        assertTrue(store.contains(d6));
+        assertFalse(store.isDirty());
+        assertEquals(3, readMark());
+    }
+
+    @Test
+    public void theMarkMovesOnceTheDeltasAreGone() throws IOException {
+        String d1 = put("1"), d2 = put("2"), d3 = put("3");
+        FakeBuild b1 = new FakeBuild(1, false, true, 0, d1, null);
+        FakeBuild b2 = new FakeBuild(2, false, true, 1, d2, b1);
+        FakeBuild b3 = new FakeBuild(3, false, true, 0, d3, b2);
+        CoverageRetention.dropDetail(mark, store, b2, 1, System.currentTimeMillis());
+        assertEquals(Collections.<Integer>emptyList(), dropped);
+        assertFalse(mark.exists());
+
+        // 3 is a keyframe: neither 2 nor its keyframe keep their detail
+        long later = System.currentTimeMillis() + 2 * CoverageRetention.GRACE_PERIOD;
+        CoverageRetention.Outcome r = CoverageRetention.dropDetail(mark, store, b3, 1, later);
+        assertEquals(Arrays.asList(2, 1), dropped);
+        assertEquals(2, readMark());
+        assertEquals(2, r.collected);
+        assertTrue(store.contains(d3));
+    }
+
+    @Test
+    public void keepingEverythingOnlyCollects() throws IOException {
+        String d1 = put("1");
+        String orphan = put("deleted build");
+        FakeBuild b1 = new FakeBuild(1, false, true, 0, d1, null);
+        CoverageRetention.Outcome r = CoverageRetention.dropDetail(mark, store, b1, Integer.MAX_VALUE,
+                System.currentTimeMillis() + 2 * CoverageRetention.GRACE_PERIOD);
+        assertEquals(0, r.dropped);
+        assertEquals(1, r.collected);
+        assertTrue(store.contains(d1));
+        assertFalse(store.contains(orphan));
+        assertFalse(mark.exists());
+    }
+
+    @Test
+    public void noBuilds() throws IOException {
+        CoverageRetention.Outcome r = CoverageRetention.dropDetail(mark, store, null, 1, System.currentTimeMillis());
+        assertEquals(0, r.dropped);
+        assertEquals(0, r.collected);
+        assertFalse(mark.exists());
+    }
+
+    @Test
+    public void dropDetailOfABuild() throws IOException {
+        File folder = tmp.newFolder("codecover");
+        Ratio[] totals = { new Ratio(1, 2), null, null, null };
+        List<ModuleCoverage> modules = Collections.singletonList(new ModuleCoverage("coverage.xml", null, totals));
+        File file = CoverageSnapshot.getFile(folder);
+        CoverageSnapshot.write(file, totals, modules, tree(1, 2, pkg("org.a", file("A.java", 1, 2))));
+        for (String name : new String[] { "coverage.xml", "coverage1.xml.gz", "coverage2.xml.ref", "other.txt" }) {
+            assertTrue(new File(folder, name).createNewFile());
+        }
+        assertTrue(new File(folder, "sources/org/a").mkdirs());
+        assertTrue(new File(folder, "sources/org/a/A.java").createNewFile());
+        assertTrue(new File(folder, "source-lines").mkdirs());
+
+        assertTrue(CoverageRetention.dropDetail(folder, CoverageSnapshot.open(file), totals, modules));
+        CoverageSnapshot s = CoverageSnapshot.open(file);
+        assertFalse(s.hasDetail());
+        assertEquals(new Ratio(1, 2), s.getRatio(CoverageXmlParser.STATEMENT));
+        assertEquals(1, s.getModules().size());
+        List<String> left = Arrays.asList(folder.list());
+        Collections.sort(left);
+        assertEquals(Arrays.asList("coverage.snapshot", "other.txt"), left);
+
+        // nothing left to drop
+        assertFalse(CoverageRetention.dropDetail(folder, CoverageSnapshot.open(file), totals, modules));
+    }
+}
@@ -0,0 +1,250 @@
+package hudson.plugins.codecover;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static hudson.plugins.codecover.CoverageTreeTest.*;
+import static org.junit.Assert.*;
+
+public class CoverageSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final Ratio[] TOTALS = { new Ratio(6, 10), null, new Ratio(), new Ratio(0, 2) };
+
+    private static String manyFiles(String pkg, int n) {
+        String[] files = new String[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = file("F" + i + ".java", i, n);
+        }
+        return pkg(pkg, files);
+    }
+
+    private static final List<ModuleCoverage> MODULES = Arrays.asList(
+            new ModuleCoverage("core", "0123abcd", new Ratio[] { new Ratio(4, 5), null, null, null }),
+            new ModuleCoverage("ui", null, new Ratio[] { new Ratio(2, 5), new Ratio(0, 2), null, null }));
+
+    private CoverageSnapshot keyframe(CoverageTree tree) throws IOException {
+        File f = new File(tmp.getRoot(), "keyframe/coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree);
+        return CoverageSnapshot.open(f);
+    }
+
+    @Test
+    public void keyframe() throws IOException {
+        CoverageTree tree = tree(6, 10, pkg("org.a", file("A.java", 1, 2), file("B.java", 2, 2)), pkg("org.b", file("C.java", 3, 6)));
+        CoverageSnapshot s = keyframe(tree);
+
+        assertFalse(s.isDelta());
+        assertEquals(0, s.getKeyframe());
+        assertEquals(0, s.getDistance());
+        assertTrue(s.hasDetail());
+
+        assertEquals(new Ratio(6, 10), s.getRatio(CoverageXmlParser.STATEMENT));
+        assertNull(s.getRatio(CoverageXmlParser.BRANCH));
+        assertNull(s.getRatio(CoverageXmlParser.LOOP));
+        assertEquals(new Ratio(0, 2), s.getRatio(CoverageXmlParser.CONDITION));
+        assertArrayEquals(new Ratio[] { new Ratio(6, 10), null, null, new Ratio(0, 2) }, s.getRatios());
+
+        List<ModuleCoverage> modules = s.getModules();
+        assertEquals(2, modules.size());
+        assertEquals("core", modules.get(0).getName());
+        assertEquals("0123abcd", modules.get(0).getDigest());
+        assertEquals(new Ratio(4, 5), modules.get(0).getStatementCoverage());
+        assertNull(modules.get(0).getBranchCoverage());
+        assertEquals("ui", modules.get(1).getName());
+        assertNull(modules.get(1).getDigest());
+        assertEquals(new Ratio(0, 2), modules.get(1).getBranchCoverage());
+
+        assertTrue(tree.top().subtreeEquals(0, s.getTopTree(), 0));
+        assertEquals(2, s.getSegmentCount());
+        assertTrue(tree.subtreeEquals(tree.findChild(0, "org.b"), s.getSegment(1), 0));
+        assertTrue(tree.subtreeEquals(0, s.getTree(null), 0));
+    }
+
+    @Test
+    public void delta() throws IOException {
+        CoverageTree before = tree(6, 10, manyFiles("org.a", 40), pkg("org.b", file("C.java", 3, 6)));
+        CoverageSnapshot k = keyframe(before);
+
+        CoverageTree after = tree(6, 10, 
+                manyFiles("org.a", 40).replace(file("F7.java", 7, 40), file("F7.java", 8, 40)),
+                pkg("org.c", file("D.java", 0, 1)));
+        File f = new File(tmp.getRoot(), "delta/coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, after, k, 5, 2);
+        CoverageSnapshot d = CoverageSnapshot.open(f);
+
+        assertTrue(d.isDelta());
+        assertEquals(5, d.getKeyframe());
+        assertEquals(2, d.getDistance());
+        assertEquals(new Ratio(6, 10), d.getRatio(CoverageXmlParser.STATEMENT));
+        assertEquals(2, d.getModules().size());
+        assertTrue(after.top().subtreeEquals(0, d.getTopTree(), 0));
+        assertTrue(after.subtreeEquals(0, d.getTree(k), 0));
+        CoverageTree a = d.getSegment(0, k);
+        assertEquals(new Ratio(8, 40), a.getRatio(a.findChild(0, "F7.java"), CoverageXmlParser.STATEMENT));
+
+        // the classes of the files that didn't change aren't stored
+        File full = new File(tmp.getRoot(), "full/coverage.snapshot");
+        CoverageSnapshot.write(full, TOTALS, MODULES, after);
+        assertTrue(f.length() < full.length() * 3 / 4);
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaWithoutKeyframe() throws IOException {
+        CoverageTree tree = tree(6, 10, pkg("org.a", file("A.java", 1, 2)));
+        CoverageSnapshot k = keyframe(tree);
+        File f = new File(tmp.getRoot(), "delta/coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree, k, 5, 1);
+        CoverageSnapshot.open(f).getSegment(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deltaAgainstDelta() throws IOException {
+        CoverageTree tree = tree(6, 10, pkg("org.a", file("A.java", 1, 2)));
+        CoverageSnapshot k = keyframe(tree);
+        File f = new File(tmp.getRoot(), "delta/coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree, k, 5, 1);
+        CoverageSnapshot.write(new File(tmp.getRoot(), "other/coverage.snapshot"), TOTALS, MODULES, tree,
+                CoverageSnapshot.open(f), 6, 1);
+    }
+
+    @Test
+    public void totalsOnly() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, Collections.<ModuleCoverage>emptyList(), CoverageTree.of(TOTALS));
+        CoverageSnapshot s = CoverageSnapshot.open(f);
+        assertFalse(s.hasDetail());
+        assertEquals(0, s.getSegmentCount());
+        assertTrue(s.getModules().isEmpty());
+        assertEquals(new Ratio(6, 10), s.getRatio(CoverageXmlParser.STATEMENT));
+        assertEquals(1, s.getTree(null).getSize());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void noSuchSegment() throws IOException {
+        keyframe(tree(6, 10, pkg("org.a", file("A.java", 1, 2)))).getSegment(1);
+    }
+
+    @Test
+    public void rewrite() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2))));
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.b", file("B.java", 1, 2))));
+        assertEquals("org.b", CoverageSnapshot.open(f).getSegment(0).getName(0));
+        assertArrayEquals(new String[] { "coverage.snapshot" }, tmp.getRoot().list());
+    }
+
+    @Test(expected = IOException.class)
+    public void openNotASnapshot() throws IOException {
+        File f = tmp.newFile("coverage.snapshot");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[200]);
+        } finally {
+            out.close();
+        }
+        CoverageSnapshot.open(f);
+    }
+
+    @Test(expected = IOException.class)
+    public void openOtherVersion() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, CoverageTree.of(TOTALS));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        CoverageSnapshot.open(f);
+    }
+
+    @Test
+    public void replacedWhileOpen() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2))));
+        CoverageSnapshot s = CoverageSnapshot.open(f);
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2), file("B.java", 1, 2))));
+        try {
+            s.getSegment(0);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        // the header was read when it was opened
+        assertEquals(new Ratio(6, 10), s.getRatio(CoverageXmlParser.STATEMENT));
+        assertTrue(CoverageSnapshot.open(f).getSegment(0).findChild(0, "B.java") > 0);
+    }
+
+    @Test
+    public void replacedByAFileOfTheSameLength() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2))));
+        CoverageSnapshot s = CoverageSnapshot.open(f);
+        long modified = f.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            // the same length, other contents
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 1);
+        } finally {
+            raf.close();
+        }
+        assertTrue(f.setLastModified(modified + 2000));
+        try {
+            s.getSegment(0);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deletedWhileOpen() throws IOException {
+        File f = new File(tmp.getRoot(), "coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2))));
+        CoverageSnapshot s = CoverageSnapshot.open(f);
+        s.getSegment(0);
+        assertTrue(f.delete());
+        try {
+            s.getTopTree();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A keyframe that is rewritten isn't read from the cache of decoded segments any more.
+     */
+    @Test
+    public void rewrittenKeyframe() throws IOException {
+        File kf = new File(tmp.getRoot(), "keyframe/coverage.snapshot");
+        CoverageSnapshot.write(kf, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2), file("B.java", 1, 2))));
+        CoverageSnapshot k = CoverageSnapshot.open(kf);
+        File f = new File(tmp.getRoot(), "delta/coverage.snapshot");
+        CoverageSnapshot.write(f, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 2, 2), file("B.java", 1, 2))), k, 1, 1);
+        CoverageSnapshot d = CoverageSnapshot.open(f);
+        CoverageTree a = d.getSegment(0, k);
+        assertEquals(new Ratio(1, 2), a.getRatio(a.findChild(0, "B.java"), CoverageXmlParser.STATEMENT));
+
+        // not what a real keyframe would become, but B.java tells where it was read from
+        CoverageSnapshot.write(kf, TOTALS, MODULES, tree(6, 10, pkg("org.a", file("A.java", 1, 2), file("B.java", 0, 2))));
+        a = d.getSegment(0, CoverageSnapshot.open(kf));
+        assertEquals(new Ratio(0, 2), a.getRatio(a.findChild(0, "B.java"), CoverageXmlParser.STATEMENT));
+    }
+}
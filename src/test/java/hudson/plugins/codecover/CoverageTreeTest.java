@@ -0,0 +1,340 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoverageTreeTest {
+
+    static CoverageTree parse(String report) throws IOException {
+        CoverageTree.Builder builder = new CoverageTree.Builder();
+        CoverageXmlParser.parse(new ByteArrayInputStream(report.getBytes("UTF-8")), builder);
+        return builder.build();
+    }
+
+    static String coverage(String type, long covered, long total) {
+        return "<coverage type='" + type + ", %' value='(" + covered + "/" + total + ")'/>";
+    }
+
+    /**
+     * A source file with statement coverage, holding a class of the same name with the same coverage.
+     */
+    static String file(String name, long covered, long total) {
+        return "<srcfile name='" + name + "'>" + coverage("statement", covered, total)
+                + "<class name='" + name.replace(".java", "") + "'>" + coverage("statement", covered, total) + "</class>"
+                + "</srcfile>";
+    }
+
+    static String pkg(String name, String... children) {
+        StringBuilder b = new StringBuilder("<package name='").append(name).append("'>");
+        for (String c : children) {
+            b.append(c);
+        }
+        return b.append("</package>").toString();
+    }
+
+    static String pkg(String name, long covered, long total, String... children) {
+        return pkg(name, concat(coverage("statement", covered, total), children));
+    }
+
+    /**
+     * Parses a report whose root has the given statement coverage.
+     */
+    static CoverageTree tree(long covered, long total, String... children) throws IOException {
+        StringBuilder b = new StringBuilder("<report><all name='all'>").append(coverage("statement", covered, total));
+        for (String c : children) {
+            b.append(c);
+        }
+        return parse(b.append("</all></report>").toString());
+    }
+
+    private static String[] concat(String first, String[] rest) {
+        String[] r = new String[rest.length + 1];
+        r[0] = first;
+        System.arraycopy(rest, 0, r, 1, rest.length);
+        return r;
+    }
+
+    private static final String REPORT =
+        "<report><data><all name='all classes'>" + coverage("statement", 6, 10) + coverage("branch", 1, 4)
+        + "<package name='org.b'>" + coverage("statement", 1, 5)
+        + "<srcfile name='B.java'>" + coverage("statement", 1, 5) + "</srcfile>"
+        + "</package>"
+        + "<package name='org.a'>" + coverage("statement", 5, 5) + coverage("branch", 1, 4)
+        + "<srcfile name='Z.java'>" + coverage("statement", 2, 2) + "</srcfile>"
+        + "<srcfile name='A.java'>" + coverage("statement", 3, 3) + coverage("branch", 1, 4)
+        + "<class name='A'><method name='run()'>" + coverage("statement", 3, 3) + "</method></class>"
+        + "</srcfile>"
+        + "</package>"
+        + "</all></data></report>";
+
+    /**
+     * Gets the names of the children of a node.
+     */
+    private static List<String> children(CoverageTree t, int node) {
+        List<String> r = new ArrayList<String>();
+        for (int c = t.getFirstChild(node); c >= 0; c = t.getNextSibling(c)) {
+            r.add(t.getName(c));
+        }
+        return r;
+    }
+
+    @Test
+    public void build() throws IOException {
+        CoverageTree t = parse(REPORT);
+        assertEquals(CoverageTree.ROOT, t.getKind(0));
+        assertEquals(new Ratio(6, 10), t.getRatio(0, CoverageXmlParser.STATEMENT));
+        assertEquals(new Ratio(1, 4), t.getRatio(0, CoverageXmlParser.BRANCH));
+        assertFalse(t.hasMetric(0, CoverageXmlParser.LOOP));
+        assertFalse(t.getRatio(0, CoverageXmlParser.LOOP).isInitialized());
+        assertNull(t.getTotals(0)[CoverageXmlParser.LOOP]);
+        assertEquals(Arrays.asList("org.a", "org.b"), children(t, 0));
+
+        int a = t.findChild(0, "org.a");
+        assertEquals(CoverageTree.PACKAGE, t.getKind(a));
+        assertEquals(Arrays.asList("A.java", "Z.java"), children(t, a));
+        int file = t.findChild(a, "A.java");
+        assertEquals(a, t.getParent(file));
+        int cls = t.findChild(file, "A");
+        assertEquals(CoverageTree.CLASS, t.getKind(cls));
+        int method = t.findChild(cls, "run()");
+        assertEquals(CoverageTree.METHOD, t.getKind(method));
+        assertFalse(t.hasChildren(method));
+        assertEquals(-1, t.findChild(a, "B.java"));
+        assertEquals(8, t.getSize());
+    }
+
+    @Test
+    public void buildCombinesDuplicates() throws IOException {
+        CoverageTree t = parse("<report><all name='all'>"
+                + "<package name='p'><srcfile name='A.java'>" + coverage("loop", 1, 2) + "</srcfile></package>"
+                + "<package name='p'><srcfile name='A.java'>" + coverage("loop", 2, 2) + "</srcfile></package>"
+                + "</all></report>");
+        assertEquals(Arrays.asList("p"), children(t, 0));
+        int file = t.findChild(t.findChild(0, "p"), "A.java");
+        assertEquals(new Ratio(3, 4), t.getRatio(file, CoverageXmlParser.LOOP));
+    }
+
+    @Test
+    public void merge() throws IOException {
+        CoverageTree a = parse(REPORT);
+        CoverageTree b = parse("<report><all name='all'>" + coverage("statement", 4, 10)
+                + "<package name='org.a'>" + coverage("statement", 0, 1)
+                + "<srcfile name='C.java'>" + coverage("statement", 0, 1) + "</srcfile>"
+                + "</package>"
+                + "<package name='org.c'>" + coverage("statement", 4, 9) + "</package>"
+                + "</all></report>");
+        CoverageTree m = CoverageTree.merge(Arrays.asList(a, b));
+        assertEquals(new Ratio(10, 20), m.getRatio(0, CoverageXmlParser.STATEMENT));
+        // only in the first report
+        assertEquals(new Ratio(1, 4), m.getRatio(0, CoverageXmlParser.BRANCH));
+        assertEquals(Arrays.asList("org.a", "org.b", "org.c"), children(m, 0));
+        int pa = m.findChild(0, "org.a");
+        assertEquals(new Ratio(5, 6), m.getRatio(pa, CoverageXmlParser.STATEMENT));
+        assertEquals(Arrays.asList("A.java", "C.java", "Z.java"), children(m, pa));
+        assertEquals(a.getSize() + 2, m.getSize());
+    }
+
+    @Test
+    public void mergeNothing() {
+        CoverageTree m = CoverageTree.merge(Collections.<CoverageTree>emptyList());
+        assertEquals(1, m.getSize());
+        assertFalse(m.hasChildren(0));
+    }
+
+    /**
+     * Siblings are in code point order, which differs from {@link String#compareTo}
+     * for characters outside of the basic plane.
+     */
+    @Test
+    public void siblingOrderMatchesCompareNames() throws IOException {
+        String bmp = "\uFF61", supplementary = "\uD800\uDC00";
+        assertTrue(supplementary.compareTo(bmp) < 0);
+        CoverageTree t = CoverageTree.merge(Arrays.asList(
+                parse("<report><all name='all'><package name='" + supplementary + "'/></all></report>"),
+                parse("<report><all name='all'><package name='" + bmp + "'/></all></report>")));
+        assertEquals(Arrays.asList(bmp, supplementary), children(t, 0));
+        int first = t.getFirstChild(0);
+        assertTrue(t.compareNames(first, t.getNextSibling(first)) < 0);
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        CoverageTree t = parse(REPORT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.write(out);
+        CoverageTree r = CoverageTree.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(t.getSize(), r.getSize());
+        assertTrue(t.subtreeEquals(0, r, 0));
+        assertEquals("B.java", r.getName(r.getSize() - 1));
+        assertEquals(t.getSize() - 1, r.find(t, t.getSize() - 1));
+    }
+
+    @Test
+    public void countsOfMissingMetrics() throws IOException {
+        CoverageTree t = parse("<report><all name='all'><package name='p'>"
+                + "<srcfile name='A.java'>" + coverage("loop", 1, 2) + coverage("statement", 3, 4) + "</srcfile>"
+                + "<srcfile name='B.java'>" + coverage("condition", 5, 6) + "</srcfile>"
+                + "<srcfile name='C.java'/>"
+                + "</package></all></report>");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.write(out);
+        CoverageTree r = CoverageTree.read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(t.subtreeEquals(0, r, 0));
+
+        int p = r.findChild(0, "p");
+        int a = r.findChild(p, "A.java");
+        assertEquals(new Ratio(3, 4), r.getRatio(a, CoverageXmlParser.STATEMENT));
+        assertEquals(new Ratio(1, 2), r.getRatio(a, CoverageXmlParser.LOOP));
+        assertEquals(0, r.getTotal(a, CoverageXmlParser.BRANCH));
+        int b = r.findChild(p, "B.java");
+        assertEquals(new Ratio(5, 6), r.getRatio(b, CoverageXmlParser.CONDITION));
+        assertEquals(0, r.getCovered(b, CoverageXmlParser.STATEMENT));
+        int c = r.findChild(p, "C.java");
+        for (int m = 0; m < 4; m++) {
+            assertFalse(r.hasMetric(c, m));
+            assertEquals(0, r.getTotal(c, m));
+        }
+        assertFalse(t.subtreeEquals(a, r, b));
+    }
+
+    @Test(expected = IOException.class)
+    public void readNotATree() throws IOException {
+        CoverageTree.read(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 0, 0, 0, 1 }));
+    }
+
+    @Test(expected = IOException.class)
+    public void readOtherVersion() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parse(REPORT).write(out);
+        byte[] data = out.toByteArray();
+        data[7]++;
+        CoverageTree.read(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] bytes(CoverageTree t) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.write(out);
+        return out.toByteArray();
+    }
+
+    private static void readInvalid(byte[] data) {
+        try {
+            CoverageTree.read(new ByteArrayInputStream(data));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readTruncated() throws IOException {
+        byte[] data = bytes(parse(REPORT));
+        for (int length : new int[] { 10, 12, 20, data.length / 2, data.length - 1 }) {
+            readInvalid(Arrays.copyOf(data, length));
+        }
+    }
+
+    @Test
+    public void readInvalidSize() throws IOException {
+        byte[] data = bytes(parse(REPORT));
+        // a size the stream can't hold fails at its end, without allocating it all
+        for (int size : new int[] { Integer.MAX_VALUE, 1 << 28, 0, -1, Integer.MIN_VALUE }) {
+            ByteBuffer.wrap(data).putInt(8, size);
+            readInvalid(data);
+        }
+    }
+
+    @Test
+    public void readOutOfRange() throws IOException {
+        CoverageTree t = parse(REPORT);
+        int size = t.getSize();
+        byte[] valid = bytes(t);
+        // parent and end of node i
+        int nodes = 12 + 2 * size;
+        int last = size - 1;
+        int[][] corruptions = {
+            { nodes, 0 }, // the root has a parent
+            { nodes + 8 * last, last }, // its own parent
+            { nodes + 8 * last, size }, // a parent after it
+            { nodes + 8 * last, -1 }, // a second root
+            { nodes + 8 * last + 4, last }, // empty
+            { nodes + 8 * last + 4, size + 1 }, // past the end of the tree
+            { nodes + 4, 1 }, // the root ends before its children
+        };
+        for (int[] c : corruptions) {
+            byte[] data = valid.clone();
+            ByteBuffer.wrap(data).putInt(c[0], c[1]);
+            readInvalid(data);
+        }
+
+        // the starts of the names come last but for the names themselves
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            length += t.getName(i).getBytes("UTF-8").length;
+        }
+        int nameStart = valid.length - length - 4 * (size + 1);
+        assertEquals(length, ByteBuffer.wrap(valid).getInt(nameStart + 4 * size));
+        corruptions = new int[][] {
+            { nameStart, 1 }, // not at the start of the names
+            { nameStart + 4 * last, length + 1 }, // after the next one
+            { nameStart + 4 * size, Integer.MAX_VALUE }, // more names than the stream holds
+        };
+        for (int[] c : corruptions) {
+            byte[] data = valid.clone();
+            ByteBuffer.wrap(data).putInt(c[0], c[1]);
+            readInvalid(data);
+        }
+    }
+
+    @Test
+    public void topSubtreeAndJoin() throws IOException {
+        CoverageTree t = parse(REPORT);
+        CoverageTree top = t.top();
+        assertEquals(3, top.getSize());
+        assertEquals(children(t, 0), children(top, 0));
+        assertFalse(top.hasChildren(top.getFirstChild(0)));
+
+        List<CoverageTree> segments = new ArrayList<CoverageTree>();
+        for (int c = t.getFirstChild(0); c >= 0; c = t.getNextSibling(c)) {
+            CoverageTree s = t.subtree(c);
+            assertEquals(t.getName(c), s.getName(0));
+            assertTrue(t.subtreeEquals(c, s, 0));
+            segments.add(s);
+        }
+        CoverageTree joined = CoverageTree.join(top, segments);
+        assertTrue(t.subtreeEquals(0, joined, 0));
+    }
+
+    @Test
+    public void subtreeEquals() throws IOException {
+        CoverageTree t = parse(REPORT);
+        CoverageTree u = parse(REPORT.replace("<srcfile name='Z.java'>" + coverage("statement", 2, 2),
+                "<srcfile name='Z.java'>" + coverage("statement", 1, 2)));
+        assertFalse(t.subtreeEquals(0, u, 0));
+        assertFalse(t.subtreeEquals(t.findChild(0, "org.a"), u, u.findChild(0, "org.a")));
+        assertTrue(t.subtreeEquals(t.findChild(0, "org.b"), u, u.findChild(0, "org.b")));
+    }
+
+    @Test
+    public void find() throws IOException {
+        CoverageTree t = parse(REPORT);
+        CoverageTree m = CoverageTree.merge(Arrays.asList(t, parse("<report><all name='all'>"
+                + "<package name='org.0'><srcfile name='A.java'/></package></all></report>")));
+        int file = t.findChild(t.findChild(0, "org.a"), "A.java");
+        int found = m.find(t, file);
+        assertEquals("A.java", m.getName(found));
+        assertEquals("org.a", m.getName(m.getParent(found)));
+        assertEquals(0, m.find(t, 0));
+        assertEquals(-1, t.find(m, m.findChild(0, "org.0")));
+    }
+}
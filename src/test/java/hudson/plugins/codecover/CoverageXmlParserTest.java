@@ -0,0 +1,140 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoverageXmlParserTest {
+
+    /**
+     * Records the events of a parse as strings.
+     */
+    private static final class Recorder implements CoverageXmlParser.Handler, CoverageXmlParser.LineHandler {
+        final List<String> events = new ArrayList<String>();
+
+        public void startItem(String kind, String name) {
+            events.add("start " + kind + " " + name);
+        }
+
+        public void coverage(int metric, long covered, long total) {
+            events.add("coverage " + metric + " " + covered + "/" + total);
+        }
+
+        public void endItem() {
+            events.add("end");
+        }
+
+        public void line(String packageName, String fileName, int line, long covered, long total) {
+            events.add(packageName + "/" + fileName + ":" + line + " " + covered + "/" + total);
+        }
+    }
+
+    private static InputStream xml(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    private static final String REPORT =
+        "<?xml version='1.0' encoding='UTF-8'?>\n" +
+        "<report><data>\n" +
+        "  <all name='all classes'>\n" +
+        "    <coverage type='statement, %' value='52% (52/100)'/>\n" +
+        "    <coverage type='branch, %' value='0% (0/4)'/>\n" +
+        "    <coverage type='term, %' value='10% (1/10)'/>\n" +
+        "    <package name='org.acme'>\n" +
+        "      <coverage type='loop, %' value='50% (1/2)'/>\n" +
+        "      <srcfile name='Foo.java'>\n" +
+        "        <line number='3' value='100% (2/2)'/>\n" +
+        "        <line number='x' value='100% (2/2)'/>\n" +
+        "        <line number='4' value='-'/>\n" +
+        "        <class name='Foo'>\n" +
+        "          <method name='bar()'><coverage type='condition, %' value='25% (1/4)'/></method>\n" +
+        "        </class>\n" +
+        "      </srcfile>\n" +
+        "    </package>\n" +
+        "    <srcfile name='Bar.java'><line number='7' value='0% (0/1)'/></srcfile>\n" +
+        "  </all>\n" +
+        "</data></report>\n";
+
+    @Test
+    public void parse() throws IOException {
+        Recorder r = new Recorder();
+        CoverageXmlParser.parse(xml(REPORT), r);
+        String[] expected = {
+            "start all all classes",
+            "coverage 0 52/100",
+            "coverage 1 0/4",
+            "start package org.acme",
+            "coverage 2 1/2",
+            "start srcfile Foo.java",
+            "start class Foo",
+            "start method bar()",
+            "coverage 3 1/4",
+            "end", "end", "end", "end",
+            "start srcfile Bar.java",
+            "end", "end",
+        };
+        assertArrayEquals(expected, r.events.toArray());
+    }
+
+    @Test
+    public void parseLines() throws IOException {
+        Recorder r = new Recorder();
+        CoverageXmlParser.parseLines(xml(REPORT), r);
+        String[] expected = { "org.acme/Foo.java:3 2/2", "/Bar.java:7 0/1" };
+        assertArrayEquals(expected, r.events.toArray());
+    }
+
+    @Test
+    public void parseEmptyReport() throws IOException {
+        Recorder r = new Recorder();
+        CoverageXmlParser.parse(xml("<report/>"), r);
+        assertTrue(r.events.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void parseMalformed() throws IOException {
+        CoverageXmlParser.parse(xml("<report><data><all name='x'></data></report>"), new Recorder());
+    }
+
+    @Test(expected = IOException.class)
+    public void parseLinesMalformed() throws IOException {
+        CoverageXmlParser.parseLines(xml("<report><srcfile name='A.java'>"), new Recorder());
+    }
+
+    @Test
+    public void parseIgnoresExternalDtd() throws IOException {
+        Recorder r = new Recorder();
+        CoverageXmlParser.parse(xml("<!DOCTYPE report SYSTEM 'file:///nonexistent/report.dtd'>"
+                + "<report><all name='a'/></report>"), r);
+        assertArrayEquals(new Object[] { "start all a", "end" }, r.events.toArray());
+    }
+
+    @Test
+    public void parseMetric() {
+        assertEquals(CoverageXmlParser.STATEMENT, CoverageXmlParser.parseMetric("statement, %"));
+        assertEquals(CoverageXmlParser.BRANCH, CoverageXmlParser.parseMetric(" Branch "));
+        assertEquals(CoverageXmlParser.LOOP, CoverageXmlParser.parseMetric("LOOP,%"));
+        assertEquals(CoverageXmlParser.CONDITION, CoverageXmlParser.parseMetric("condition, %"));
+        assertEquals(-1, CoverageXmlParser.parseMetric("term, %"));
+        assertEquals(-1, CoverageXmlParser.parseMetric(""));
+        assertEquals(-1, CoverageXmlParser.parseMetric(null));
+    }
+
+    @Test
+    public void parseCounts() {
+        assertArrayEquals(new long[] { 52, 100 }, CoverageXmlParser.parseCounts("52% (52/100)"));
+        assertArrayEquals(new long[] { 0, 0 }, CoverageXmlParser.parseCounts("- ( 0 / 0 )"));
+        assertArrayEquals(new long[] { 3, 7 }, CoverageXmlParser.parseCounts("40% (2.5/7.0)"));
+        assertArrayEquals(new long[] { 3, 7 }, CoverageXmlParser.parseCounts("40% (2,5/7,0)"));
+        assertNull(CoverageXmlParser.parseCounts("52%"));
+        assertNull(CoverageXmlParser.parseCounts("52% (52)"));
+        assertNull(CoverageXmlParser.parseCounts("52% (52/100"));
+        assertNull(CoverageXmlParser.parseCounts("52% (a/100)"));
+    }
+}
@@ -0,0 +1,289 @@
+package hudson.plugins.codecover;
+
+import hudson.model.Result;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.localizer.LocaleProvider;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GraphCacheTest {
+
+    private static final String ETAG = "\"0123abcd\"";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File history;
+    private File mark;
+    private int renders;
+    private LocaleProvider locales;
+
+    @Before
+    public void setUp() throws IOException {
+        locales = LocaleProvider.getProvider();
+        history = new File(tmp.getRoot(), "codecover-history.idx");
+        mark = new File(tmp.getRoot(), "codecover-retention");
+        append(1);
+    }
+
+    @After
+    public void tearDown() {
+        LocaleProvider.setProvider(locales);
+    }
+
+    private void append(int number) throws IOException {
+        CoverageHistory.append(history, number, number * 1000L, Result.SUCCESS, new Ratio[] { new Ratio(1, 2), null, null, null });
+    }
+
+    /**
+     * Renders the given number of bytes, counting the renders.
+     */
+    private GraphCache.Renderer renderer(final int size) {
+        return new GraphCache.Renderer() {
+            public byte[] render() {
+                renders++;
+                byte[] image = new byte[size];
+                image[0] = (byte) renders;
+                return image;
+            }
+        };
+    }
+
+    /**
+     * What a request got back.
+     */
+    private static final class Response {
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = 200;
+
+        String getETag() {
+            return (String) headers.get("ETag");
+        }
+    }
+
+    private Response get(GraphCache cache, String job, String key, int size, final Map<String, Object> requestHeaders) throws IOException {
+        final Response r = new Response();
+        StaplerRequest req = (StaplerRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StaplerRequest.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Object value = requestHeaders.get(args[0]);
+                        if (method.getName().equals("getDateHeader")) {
+                            return value != null ? (Long) value : -1L;
+                        }
+                        return value;
+                    }
+                });
+        StaplerResponse rsp = (StaplerResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StaplerResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("setHeader") || name.equals("setDateHeader")) {
+                            r.headers.put((String) args[0], args[1]);
+                        } else if (name.equals("setStatus")) {
+                            r.status = (Integer) args[0];
+                        } else if (name.equals("getOutputStream")) {
+                            return new ServletOutputStream() {
+                                @Override
+                                public void write(int b) {
+                                    r.body.write(b);
+                                }
+                            };
+                        }
+                        return null;
+                    }
+                });
+        cache.serve(req, rsp, job, history, mark, key, "image/png", renderer(size));
+        return r;
+    }
+
+    private Response get(GraphCache cache, String key, Map<String, Object> requestHeaders) throws IOException {
+        return get(cache, "job", key, 10, requestHeaders);
+    }
+
+    private Response get(GraphCache cache, String job, String key, int size) throws IOException {
+        return get(cache, job, key, size, new HashMap<String, Object>());
+    }
+
+    private static Map<String, Object> header(String name, Object value) {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(name, value);
+        return headers;
+    }
+
+    @Test
+    public void renderedOnce() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        Response first = get(cache, "job", "graph", 10);
+        assertEquals(200, first.status);
+        assertEquals(10, first.body.size());
+        assertEquals("Accept-Language", first.headers.get("Vary"));
+        assertEquals("no-cache", first.headers.get("Cache-Control"));
+        assertEquals(history.lastModified(), first.headers.get("Last-Modified"));
+
+        Response second = get(cache, "job", "graph", 10);
+        assertEquals(first.getETag(), second.getETag());
+        assertArrayEquals(first.body.toByteArray(), second.body.toByteArray());
+        assertEquals(1, renders);
+
+        // another graph of the job
+        Response other = get(cache, "job", "graph?width=100", 10);
+        assertFalse(other.getETag().equals(first.getETag()));
+        assertEquals(2, renders);
+    }
+
+    @Test
+    public void notModifiedWhenTheETagMatches() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        String etag = get(cache, "graph", new HashMap<String, Object>()).getETag();
+
+        for (String ifNoneMatch : new String[] { etag, "W/" + etag, "\"a\", " + etag, "*" }) {
+            Response r = get(cache, "graph", header("If-None-Match", ifNoneMatch));
+            assertEquals(304, r.status);
+            assertEquals(0, r.body.size());
+            assertEquals(etag, r.getETag());
+        }
+        assertEquals(1, renders);
+
+        // a tag that doesn't match wins over a date that does
+        Map<String, Object> headers = header("If-None-Match", "\"a\"");
+        headers.put("If-Modified-Since", System.currentTimeMillis());
+        Response r = get(cache, "graph", headers);
+        assertEquals(200, r.status);
+        assertEquals(10, r.body.size());
+    }
+
+    @Test
+    public void notModifiedSince() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        long lastModified = history.lastModified();
+        // HTTP dates have a resolution of a second
+        assertEquals(304, get(cache, "graph", header("If-Modified-Since", lastModified / 1000 * 1000)).status);
+        assertEquals(0, renders);
+        Response r = get(cache, "graph", header("If-Modified-Since", lastModified / 1000 * 1000 - 1000));
+        assertEquals(200, r.status);
+        assertEquals(1, renders);
+    }
+
+    @Test
+    public void newETagOnceABuildPublishes() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        String etag = get(cache, "graph", new HashMap<String, Object>()).getETag();
+        append(2);
+        Response r = get(cache, "graph", header("If-None-Match", etag));
+        assertEquals(200, r.status);
+        assertFalse(etag.equals(r.getETag()));
+        assertEquals(2, renders);
+
+        // and once old detail was dropped
+        etag = r.getETag();
+        assertTrue(mark.createNewFile());
+        assertTrue(mark.setLastModified(history.lastModified() + 2000));
+        r = get(cache, "graph", header("If-None-Match", etag));
+        assertEquals(200, r.status);
+        assertFalse(etag.equals(r.getETag()));
+        assertEquals(mark.lastModified(), r.headers.get("Last-Modified"));
+    }
+
+    @Test
+    public void newETagInAnotherLocale() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        setLocale(Locale.ENGLISH);
+        String english = get(cache, "graph", new HashMap<String, Object>()).getETag();
+        setLocale(Locale.GERMAN);
+        Response german = get(cache, "graph", header("If-None-Match", english));
+        assertEquals(200, german.status);
+        assertFalse(english.equals(german.getETag()));
+        assertEquals(2, renders);
+        setLocale(Locale.ENGLISH);
+        assertEquals(304, get(cache, "graph", header("If-None-Match", english)).status);
+    }
+
+    private static void setLocale(final Locale locale) {
+        LocaleProvider.setProvider(new LocaleProvider() {
+            @Override
+            public Locale get() {
+                return locale;
+            }
+        });
+    }
+
+    @Test
+    public void leastRecentlyServedAreEvicted() throws IOException {
+        GraphCache cache = new GraphCache(250);
+        get(cache, "job", "a", 100);
+        get(cache, "job", "b", 100);
+        // a is now more recent than b
+        get(cache, "job", "a", 100);
+        assertEquals(2, renders);
+        get(cache, "job", "c", 100);
+        assertEquals(2, cache.getSize());
+        assertEquals(200, cache.getWeight());
+
+        get(cache, "job", "a", 100);
+        get(cache, "job", "c", 100);
+        assertEquals(3, renders);
+        // evicted
+        get(cache, "job", "b", 100);
+        assertEquals(4, renders);
+    }
+
+    @Test
+    public void imagesBeyondTheBudgetAreNotKept() throws IOException {
+        GraphCache cache = new GraphCache(250);
+        get(cache, "job", "a", 100);
+        Response r = get(cache, "job", "big", 300);
+        assertEquals(300, r.body.size());
+        assertEquals(1, cache.getSize());
+        assertEquals(100, cache.getWeight());
+        get(cache, "job", "big", 300);
+        assertEquals(3, renders);
+    }
+
+    @Test
+    public void invalidate() throws IOException {
+        GraphCache cache = new GraphCache(Long.MAX_VALUE);
+        get(cache, "job", "a", 10);
+        get(cache, "job", "b", 20);
+        get(cache, "other", "a", 30);
+        assertEquals(60, cache.getWeight());
+
+        cache.invalidate("job");
+        assertEquals(1, cache.getSize());
+        assertEquals(30, cache.getWeight());
+        get(cache, "other", "a", 30);
+        assertEquals(3, renders);
+        get(cache, "job", "a", 10);
+        assertEquals(4, renders);
+    }
+
+    @Test
+    public void matches() {
+        assertTrue(GraphCache.matches(ETAG, ETAG));
+        assertTrue(GraphCache.matches("*", ETAG));
+        assertTrue(GraphCache.matches("W/" + ETAG, ETAG));
+        assertTrue(GraphCache.matches("\"a\", " + ETAG + ",\"b\"", ETAG));
+        assertTrue(GraphCache.matches("\"a\",W/" + ETAG, ETAG));
+        assertFalse(GraphCache.matches("\"a\", \"b\"", ETAG));
+        assertFalse(GraphCache.matches("0123abcd", ETAG));
+        assertFalse(GraphCache.matches("", ETAG));
+    }
+}
@@ -0,0 +1,50 @@
+package hudson.plugins.codecover;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.*;
+
+public class HtmlReportScannerTest {
+
+    private static Ratio[] scan(String html) throws IOException {
+        return new HtmlReportScanner().scan(Channels.newChannel(new ByteArrayInputStream(html.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void totals() throws IOException {
+        Ratio[] r = scan("<table><tr><td>12&nbsp;/&nbsp;20</td><td> 3&nbsp;/&nbsp;4 </td></tr>"
+                + "<tr><td>0&nbsp;/&nbsp;0</td><td>5&nbsp;/&nbsp;10</td><td>7&nbsp;/&nbsp;8</td></tr></table>");
+        assertEquals(new Ratio(12, 20), r[0]);
+        assertEquals(new Ratio(3, 4), r[1]);
+        assertEquals(new Ratio(0, 0), r[2]);
+        assertEquals(new Ratio(5, 10), r[3]);
+    }
+
+    @Test
+    public void missingMetrics() throws IOException {
+        Ratio[] r = scan("<td>1&nbsp;/&nbsp;2</td>");
+        assertEquals(new Ratio(1, 2), r[0]);
+        assertNull(r[1]);
+        assertNull(r[3]);
+    }
+
+    @Test
+    public void fragmentWithoutNumbers() throws IOException {
+        Ratio[] r = scan("<td>1&nbsp;/&nbsp;2</td><td>-&nbsp;/&nbsp;-</td><td>x&nbsp;/&nbsp;3</td><td>4&nbsp;/&nbsp;5</td>");
+        assertEquals(new Ratio(1, 2), r[0]);
+        assertNull(r[1]);
+        assertNull(r[2]);
+        assertEquals(new Ratio(4, 5), r[3]);
+    }
+
+    @Test
+    public void fragmentAtTheEnd() throws IOException {
+        Ratio[] r = scan("1&nbsp;/&nbsp;2 3&nbsp;/&nbsp;");
+        assertEquals(new Ratio(1, 2), r[0]);
+        assertNull(r[1]);
+    }
+}
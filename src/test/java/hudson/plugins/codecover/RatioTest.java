@@ -0,0 +1,54 @@
+package hudson.plugins.codecover;
+
+import hudson.util.XStream2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RatioTest {
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    @Test
+    public void floatCountersOfOldBuildsAreConverted() {
+        Ratio r = (Ratio) XSTREAM.fromXML("<hudson.plugins.codecover.Ratio>"
+                + "<numerator>12.0</numerator><denominator>40.0</denominator><initialized>true</initialized>"
+                + "</hudson.plugins.codecover.Ratio>");
+        assertEquals(12, r.getCovered());
+        assertEquals(40, r.getTotal());
+        assertEquals(12f, r.getNumerator(), 0f);
+        assertEquals(40f, r.getDenominator(), 0f);
+        assertEquals(30f, r.getPercentageFloat(), 0.001f);
+        assertEquals(30, r.getPercentage());
+        assertTrue(r.isInitialized());
+        assertEquals(new Ratio(12, 40), r);
+
+        // written back with the new fields only
+        String xml = XSTREAM.toXML(r);
+        assertTrue(xml, xml.contains("<covered>12</covered>"));
+        assertTrue(xml, xml.contains("<total>40</total>"));
+        assertFalse(xml, xml.contains("numerator"));
+        assertEquals(r, XSTREAM.fromXML(xml));
+    }
+
+    @Test
+    public void uninitializedRatiosOfOldBuildsStaySo() {
+        Ratio r = (Ratio) XSTREAM.fromXML("<hudson.plugins.codecover.Ratio>"
+                + "<numerator>0.0</numerator><denominator>0.0</denominator><initialized>false</initialized>"
+                + "</hudson.plugins.codecover.Ratio>");
+        assertFalse(r.isInitialized());
+        assertEquals(0, r.getCovered());
+        assertEquals(0, r.getTotal());
+        assertEquals(0, r.getPercentage());
+    }
+
+    @Test
+    public void roundedToTheNearestCount() {
+        Ratio r = (Ratio) XSTREAM.fromXML("<hudson.plugins.codecover.Ratio>"
+                + "<numerator>2.6</numerator><denominator>3.0</denominator><initialized>true</initialized>"
+                + "</hudson.plugins.codecover.Ratio>");
+        assertEquals(3, r.getCovered());
+        assertEquals(100, r.getPercentage());
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.codecover;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ReportLocatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File workspace;
+
+    @Before
+    public void setUp() throws IOException {
+        workspace = tmp.newFolder("workspace");
+    }
+
+    private void touch(String path) throws IOException {
+        File f = new File(workspace, path);
+        f.getParentFile().mkdirs();
+        new FileOutputStream(f).close();
+    }
+
+    private String[] locate(String includes, String excludes, int maxReports) throws IOException, InterruptedException {
+        return new ReportLocator(includes, excludes, maxReports).invoke(workspace, null);
+    }
+
+    @Test
+    public void antPatterns() throws Exception {
+        touch("a/report.xml");
+        touch("b/report.xml");
+        touch("b/other.txt");
+        assertArrayEquals(new String[] { "a/report.xml", "b/report.xml" }, locate("**/*.xml", "", 0));
+        assertArrayEquals(new String[] { "a/report.xml", "b/report.xml" }, locate("a/*.xml, b/*.xml", "", 0));
+        // the first in lexical order, whatever order the walk finds them in
+        assertArrayEquals(new String[] { "a/report.xml" }, locate("**/*.xml", "", 1));
+    }
+
+    @Test
+    public void maxReportsKeepsTheFirstInLexicalOrder() throws Exception {
+        for (String path : new String[] { "z/coverage.xml", "m/coverage.xml", "a/b/coverage.xml", "b/coverage.xml", "a/coverage.xml" }) {
+            touch(path);
+        }
+        assertArrayEquals(new String[] { "a/b/coverage.xml", "a/coverage.xml", "b/coverage.xml" },
+                locate("**/coverage.xml", "", 3));
+        assertArrayEquals(new String[] { "a/b/coverage.xml", "a/coverage.xml" }, locate("a, z", "", 2));
+        assertEquals(5, locate("**/coverage.xml", "", 0).length);
+    }
+
+    @Test
+    public void trailingSlashMatchesEverythingBelow() throws Exception {
+        touch("reports/x/one.xml");
+        touch("reports/two.xml");
+        touch("other/three.xml");
+        assertArrayEquals(new String[] { "reports/two.xml", "reports/x/one.xml" }, locate("reports/", "", 0));
+    }
+
+    @Test
+    public void excludes() throws Exception {
+        touch("node_modules/lib/report.xml");
+        touch("build/tmp/report.xml");
+        touch("build/report.xml");
+        assertArrayEquals(new String[] { "build/report.xml" }, locate("**/*.xml", ReportLocator.DEFAULT_EXCLUDES + ", build/tmp", 0));
+    }
+
+    @Test
+    public void legacyEntries() throws Exception {
+        touch("target/codecover/coverage-report.xml");
+        touch("target/codecover/summary.xml");
+        touch("single.xml");
+        // no Ant-style match, so the folders are searched for coverage*.xml files
+        assertArrayEquals(new String[] { "single.xml", "target/codecover/coverage-report.xml" },
+                locate("target;./single.xml:missing", "", 0));
+    }
+
+    @Test
+    public void symbolicLinksAreFollowedOnce() throws Exception {
+        touch("real/report.xml");
+        Files.createSymbolicLink(new File(workspace, "linked").toPath(), new File(workspace, "real").toPath());
+        // a cycle, which must not be walked forever
+        Files.createSymbolicLink(new File(workspace, "real/loop").toPath(), workspace.toPath());
+        assertArrayEquals(new String[] { "linked/report.xml", "real/report.xml" }, locate("*/report.xml", "", 0));
+    }
+}
@@ -0,0 +1,295 @@
+package hudson.plugins.codecover;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ReportStoreTest {
+
+    private static final String A = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * MD5 digests of the reports "a" and "b".
+     */
+    private static final String MD5_A = "0cc175b9c0f1b6a831c399e269772661";
+    private static final String MD5_B = "92eb5ffee6ae2fec3ad71c777531578f";
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private ReportStore store;
+
+    @Before
+    public void setUp() {
+        dir = new File(tmp.getRoot(), "codecover-reports");
+        store = new ReportStore(dir);
+    }
+
+    private String put(String contents) throws IOException {
+        ReportStore.Pending p = store.create();
+        try {
+            p.getOutputStream().write(contents.getBytes("UTF-8"));
+            return p.commit();
+        } finally {
+            p.abort();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the files of the store look as if they were last used some time ago.
+     */
+    private void age(long millis) {
+        for (File f : dir.listFiles()) {
+            f.setLastModified(System.currentTimeMillis() - millis);
+        }
+    }
+
+    @Test
+    public void storeAndRead() throws IOException {
+        assertFalse(store.contains(MD5_A));
+        assertEquals(MD5_A, put("a"));
+        assertTrue(store.contains(MD5_A));
+        assertEquals("a", read(store.read(MD5_A)));
+        // nothing left behind but the blob
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void blobsAreNamedAfterTheirContents() throws IOException {
+        assertEquals(MD5_B, put("b"));
+        // whatever digest the agent claimed for it
+        assertFalse(store.contains(A));
+        assertEquals("b", read(store.read(MD5_B)));
+    }
+
+    @Test
+    public void abort() throws IOException {
+        ReportStore.Pending p = store.create();
+        p.getOutputStream().write(1);
+        p.abort();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void link() throws IOException {
+        String digest = put("<report/>");
+        age(2 * HOUR);
+        File build = new File(tmp.getRoot(), "builds/1/codecover");
+        store.link(digest, build, "coverage.xml");
+        assertTrue(store.getBlob(digest).lastModified() > System.currentTimeMillis() - HOUR);
+        assertEquals("<report/>", read(ReportStore.open(null, build, "coverage.xml")));
+
+        // linked again by the next build
+        store.link(digest, build, "coverage.xml");
+        assertEquals("<report/>", read(ReportStore.open(null, build, "coverage.xml")));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void linkMissing() throws IOException {
+        store.link(A, new File(tmp.getRoot(), "builds/1/codecover"), "coverage.xml");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void openMissing() throws IOException {
+        ReportStore.open(null, tmp.getRoot(), "coverage.xml");
+    }
+
+    @Test
+    public void trees() throws IOException {
+        CoverageTree tree = CoverageTreeTest.parse("<report><all name='all'><package name='org.a'>"
+                + CoverageTreeTest.coverage("statement", 1, 2) + "</package></all></report>");
+        assertFalse(store.containsTree(A));
+        store.writeTree(A, tree);
+        assertTrue(store.containsTree(A));
+        age(2 * HOUR);
+        assertTrue(tree.subtreeEquals(0, store.readTree(A), 0));
+        assertTrue(store.getTreeFile(A).lastModified() > System.currentTimeMillis() - HOUR);
+    }
+
+    @Test
+    public void agentTreesAreKeptApart() throws IOException {
+        CoverageTree tree = CoverageTree.of(new Ratio[] { new Ratio(1, 2), null, null, null });
+        store.writeAgentTree(A, ReportStore.compress(tree));
+        assertTrue(store.containsAgentTree(A));
+        assertFalse(store.containsTree(A));
+        assertTrue(tree.subtreeEquals(0, store.readAgentTree(A), 0));
+    }
+
+    @Test
+    public void invalidAgentTreesAreNotStored() throws IOException {
+        CoverageTree tree = CoverageTree.of(new Ratio[] { new Ratio(1, 2), null, null, null });
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        tree.write(raw);
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(truncated);
+        out.write(raw.toByteArray(), 0, raw.size() - 1);
+        out.close();
+        for (byte[] compressed : new byte[][] { truncated.toByteArray(), raw.toByteArray() }) {
+            try {
+                store.writeAgentTree(A, compressed);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(store.containsAgentTree(A));
+        }
+    }
+
+    @Test
+    public void collectGarbage() throws IOException {
+        put("a");
+        put("b");
+        store.writeTree(MD5_B, CoverageTree.of(new Ratio[4]));
+        store.writeAgentTree(MD5_B, ReportStore.compress(CoverageTree.of(new Ratio[4])));
+        age(2 * HOUR);
+        store.markClean();
+        assertEquals(3, store.collectGarbage(Collections.singleton(MD5_A), System.currentTimeMillis() - HOUR));
+        assertTrue(store.contains(MD5_A));
+        assertFalse(store.contains(MD5_B));
+        assertFalse(store.containsTree(MD5_B));
+        assertFalse(store.containsAgentTree(MD5_B));
+        assertFalse(store.isDirty());
+    }
+
+    @Test
+    public void recentFilesAreKept() throws IOException {
+        put("a");
+        store.markClean();
+        assertEquals(0, store.collectGarbage(Collections.<String>emptySet(), System.currentTimeMillis() - HOUR));
+        assertTrue(store.contains(MD5_A));
+        // collected later
+        assertTrue(store.isDirty());
+    }
+
+    @Test
+    public void nothingIsCollectedWhileTheStoreIsHeld() throws Exception {
+        put("a");
+        age(2 * HOUR);
+        store.markClean();
+        final Set<Integer> collected = new HashSet<Integer>();
+        store.acquire();
+        try {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    collected.add(store.collectGarbage(Collections.<String>emptySet(), System.currentTimeMillis()));
+                }
+            };
+            t.start();
+            t.join();
+        } finally {
+            store.release();
+        }
+        assertEquals(Collections.singleton(0), collected);
+        assertTrue(store.contains(MD5_A));
+        assertTrue(store.isDirty());
+    }
+
+    @Test
+    public void dirty() throws IOException {
+        // no store yet
+        assertFalse(store.isDirty());
+        put("a");
+        assertTrue(store.isDirty());
+        store.markClean();
+        assertFalse(store.isDirty());
+        store.markDirty();
+        assertTrue(store.isDirty());
+    }
+
+    @Test
+    public void isDigest() {
+        assertTrue(ReportStore.isDigest(A));
+        assertFalse(ReportStore.isDigest(null));
+        assertFalse(ReportStore.isDigest(""));
+        assertFalse(ReportStore.isDigest(A.toUpperCase()));
+        assertFalse(ReportStore.isDigest(A + "0"));
+        assertFalse(ReportStore.isDigest(A.substring(1)));
+        assertFalse(ReportStore.isDigest("../../../../config.xml.0123456789a"));
+    }
+
+    @Test
+    public void badDigestsAreRejected() throws IOException {
+        String[] bad = { "../../secrets/master.key", "..", "", A.substring(0, 31) + "/", null };
+        File build = new File(tmp.getRoot(), "builds/1/codecover");
+        for (String digest : bad) {
+            try {
+                store.contains(digest);
+                fail("contains " + digest);
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                store.writeTree(digest, CoverageTree.of(new Ratio[4]));
+                fail("writeTree " + digest);
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                store.readTree(digest);
+                fail("readTree " + digest);
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                store.writeAgentTree(digest, new byte[0]);
+                fail("writeAgentTree " + digest);
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                store.link(digest, build, "coverage.xml");
+                fail("link " + digest);
+            } catch (IOException e) {
+                assertFalse(e instanceof FileNotFoundException);
+            }
+        }
+        assertFalse(dir.exists());
+        assertFalse(build.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void badReference() throws IOException {
+        File build = tmp.newFolder("build");
+        Writer w = new FileWriter(new File(build, "coverage.xml.ref"));
+        try {
+            w.write("../../../config.xml");
+        } finally {
+            w.close();
+        }
+        ReportStore.open(null, build, "coverage.xml");
+    }
+}
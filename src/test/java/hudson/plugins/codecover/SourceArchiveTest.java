@@ -0,0 +1,104 @@
+package hudson.plugins.codecover;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class SourceArchiveTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File workspace;
+
+    @Before
+    public void setUp() throws IOException {
+        workspace = tmp.newFolder("workspace");
+    }
+
+    private File write(String path, String contents) throws IOException {
+        File f = new File(workspace, path);
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void locateAndFetch() throws IOException {
+        write("src/main/java/org/acme/Foo.java", "class Foo {}");
+        write("src/test/java/org/acme/FooTest.java", "class FooTest {}");
+        // both roots have it, the first one wins
+        write("src/test/java/org/acme/Foo.java", "class Other {}");
+        // names that would be glob patterns
+        write("src/main/java/org/acme/A, B*?.java", "class AB {}");
+        String[] paths = { "org/acme/Foo.java", "org/acme/FooTest.java", "org/acme/A, B*?.java", "org/acme/Missing.java" };
+
+        SourceArchive.Located found = new SourceArchive.Locator(new String[] { "src/main/java", " src/test/java ", "nonexistent", "" }, paths)
+                .invoke(workspace, null);
+        assertArrayEquals(new Object[] { "src/main/java", "src/test/java", "src/main/java", null }, found.roots);
+        assertEquals(12, found.sizes[0]);
+        assertEquals(16, found.sizes[1]);
+
+        byte[][] contents = new SourceArchive.Fetcher("src/main/java", new String[] { paths[0], paths[2], paths[3] }, 1024)
+                .invoke(workspace, null);
+        assertEquals("class Foo {}", new String(contents[0], "UTF-8"));
+        assertEquals("class AB {}", new String(contents[1], "UTF-8"));
+        assertNull(contents[2]);
+    }
+
+    @Test
+    public void pathsLeadingOutAreNotFetched() throws IOException {
+        write("secret.txt", "secret");
+        write("src/Foo.java", "class Foo {}");
+        String[] paths = { "../secret.txt", "Foo.java" };
+        SourceArchive.Located found = new SourceArchive.Locator(new String[] { "src" }, paths).invoke(workspace, null);
+        assertNull(found.roots[0]);
+        byte[][] contents = new SourceArchive.Fetcher("src", paths, 1024).invoke(workspace, null);
+        assertNull(contents[0]);
+        assertNotNull(contents[1]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(new SourceArchive.Streamer("src", paths[0], out).invoke(workspace, null));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void largeFilesAreStreamed() throws IOException {
+        write("src/Foo.java", "class Foo {}");
+        // grew past the limit since it was located
+        assertNull(new SourceArchive.Fetcher("src", new String[] { "Foo.java" }, 4).invoke(workspace, null)[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new SourceArchive.Streamer("src", "Foo.java", out).invoke(workspace, null));
+        assertEquals("class Foo {}", out.toString("UTF-8"));
+        assertFalse(new SourceArchive.Streamer("src", "Missing.java", new ByteArrayOutputStream()).invoke(workspace, null));
+    }
+
+    @Test
+    public void linesBeyondTheFileAreDropped() {
+        SourceArchive.LineCounts counts = new SourceArchive.LineCounts(1000);
+        counts.add(3, 1, 2);
+        counts.add(2000000000, 1, 1);
+        counts.add(0, 1, 1);
+        counts.add(-5, 1, 1);
+        assertEquals(3, counts.lines);
+        assertTrue(counts.covered.length <= 1000);
+        counts.add(1000, 1, 1);
+        assertEquals(1000, counts.lines);
+        assertEquals(1000, counts.covered.length);
+        assertEquals(1, counts.covered[2]);
+        assertEquals(2, counts.total[2]);
+    }
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.codecover;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SourceViewTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * The <tt>codecover</tt> folder of a build.
+     */
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = tmp.newFolder("codecover");
+    }
+
+    private static File write(File f, String contents) throws IOException {
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void paths() {
+        assertEquals("org/acme/Foo.java", SourceArchive.getPath("org.acme", "Foo.java"));
+        assertEquals("Foo.java", SourceArchive.getPath("", "Foo.java"));
+        assertNull(SourceArchive.getPath("org..acme", "Foo.java"));
+        assertNull(SourceArchive.getPath("", "../Foo.java"));
+        assertNull(SourceArchive.getPath("org", "..\\Foo.java"));
+        assertNull(SourceArchive.getPath("", "/etc/passwd"));
+        assertNull(SourceArchive.getPath("", "C:Foo.java"));
+    }
+
+    @Test
+    public void resolve() throws IOException {
+        File dir = SourceArchive.getDir(folder);
+        assertEquals(new File(dir, "org/acme/Foo.java").getCanonicalFile(), SourceArchive.resolve(dir, "org/acme/Foo.java"));
+        assertNull(SourceArchive.resolve(dir, "../Foo.java"));
+        assertNull(SourceArchive.resolve(dir, ""));
+    }
+
+    @Test
+    public void missingSourceHasNoView() throws IOException {
+        assertNull(SourceView.of(folder, "org.acme", "Foo.java"));
+        assertNull(SourceView.of(folder, "org..acme", "Foo.java"));
+    }
+
+    @Test
+    public void linksLeadingOutHaveNoView() throws IOException {
+        write(tmp.newFile("Secret.java"), "secret");
+        File dir = new File(SourceArchive.getDir(folder), "org");
+        dir.mkdirs();
+        Files.createSymbolicLink(new File(dir, "Foo.java").toPath(), new File(tmp.getRoot(), "Secret.java").toPath());
+        assertNull(SourceView.of(folder, "org", "Foo.java"));
+    }
+
+    @Test
+    public void lines() throws IOException {
+        File source = write(new File(SourceArchive.getDir(folder), "org/acme/Foo.java"), "class Foo {\r\n  int a = 1 < 2;\n}");
+        SourceView view = SourceView.of(folder, "org.acme", "Foo.java");
+        assertNotNull(view);
+        assertEquals(3, view.getLineCount());
+        assertTrue(new File(folder, "source-index/org/acme/Foo.java.idx").isFile());
+
+        List<SourceView.Line> lines = view.getLines(2, 5);
+        assertEquals(2, lines.size());
+        assertEquals(2, lines.get(0).getNumber());
+        assertEquals("  int a = 1 < 2;", lines.get(0).getText());
+        assertEquals("}", lines.get(1).getText());
+        // no line coverage was archived
+        assertEquals("", lines.get(0).getStatus());
+        assertTrue(view.getLines(4, 1).isEmpty());
+
+        StringBuilder html = new StringBuilder();
+        view.writeLines(2, 1, html);
+        assertTrue(html.toString(), html.toString().contains("<td class='code'>  int a = 1 &lt; 2;</td>"));
+
+        // the index is rebuilt once the source changes
+        write(source, "a\nb\nc\nd\n");
+        source.setLastModified(source.lastModified() + 2000);
+        assertEquals(4, SourceView.of(folder, "org.acme", "Foo.java").getLineCount());
+    }
+
+    @Test
+    public void longLinesAreCut() throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < SourceView.MAX_LINE_LENGTH + 100; i++) {
+            b.append('x');
+        }
+        write(new File(SourceArchive.getDir(folder), "Long.java"), b + "\nnext\n");
+        List<SourceView.Line> lines = SourceView.of(folder, "", "Long.java").getLines(1, 2);
+        assertEquals(SourceView.MAX_LINE_LENGTH, lines.get(0).getText().length());
+        assertEquals("next", lines.get(1).getText());
+    }
+}
@@ -0,0 +1,157 @@
+package hudson.plugins.codecover;
+
+import hudson.model.Result;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrendTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Trend.Point point(int number, long covered, Ratio branch) {
+        return new Trend.Point(number, "#" + number, number * HOUR, new Ratio(covered, 100), branch, null, null);
+    }
+
+    /**
+     * A flat trend of the given number of builds, numbered from 1.
+     */
+    private static List<Trend.Point> flat(int n) {
+        List<Trend.Point> points = new ArrayList<Trend.Point>();
+        for (int i = 1; i <= n; i++) {
+            points.add(point(i, 50, null));
+        }
+        return points;
+    }
+
+    private static void assertOrdered(Trend t) {
+        List<Trend.Point> points = t.getPoints();
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(points.get(i - 1).number < points.get(i).number);
+        }
+    }
+
+    @Test
+    public void fewPointsAreKept() {
+        Trend t = new Trend(flat(10));
+        assertSame(t, t.downsample(10));
+        assertSame(t, t.downsample(50));
+    }
+
+    @Test
+    public void firstAndLastAreKept() {
+        Trend t = new Trend(flat(1000)).downsample(50);
+        List<Trend.Point> points = t.getPoints();
+        assertEquals(50, points.size());
+        assertEquals(1, points.get(0).number);
+        assertEquals(1000, points.get(49).number);
+        assertOrdered(t);
+    }
+
+    @Test
+    public void atLeastThreePoints() {
+        Trend t = new Trend(flat(10)).downsample(1);
+        assertEquals(3, t.getPoints().size());
+        assertEquals(1, t.getPoints().get(0).number);
+        assertEquals(10, t.getPoints().get(2).number);
+    }
+
+    @Test
+    public void peaksAndDipsAreKept() {
+        List<Trend.Point> points = flat(200);
+        points.set(36, point(37, 100, null));
+        points.set(141, point(142, 0, null));
+        Trend t = new Trend(points).downsample(10);
+        assertEquals(10, t.getPoints().size());
+        assertOrdered(t);
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (Trend.Point p : t.getPoints()) {
+            numbers.add(p.number);
+        }
+        assertTrue(numbers.toString(), numbers.contains(37));
+        assertTrue(numbers.toString(), numbers.contains(142));
+    }
+
+    /**
+     * A change of a metric some builds don't have still counts.
+     */
+    @Test
+    public void missingMetrics() {
+        List<Trend.Point> points = new ArrayList<Trend.Point>();
+        for (int i = 1; i <= 100; i++) {
+            Ratio branch = i % 2 == 0 ? null : new Ratio(i == 61 ? 90 : 10, 100);
+            points.add(point(i, 50, branch));
+        }
+        points.add(new Trend.Point(101, "#101", 101 * HOUR, null, null, null, null));
+        Trend t = new Trend(points).downsample(8);
+        assertEquals(8, t.getPoints().size());
+        assertOrdered(t);
+        boolean found = false;
+        for (Trend.Point p : t.getPoints()) {
+            found |= p.number == 61;
+        }
+        assertTrue(found);
+        assertEquals(101, t.getPoints().get(7).number);
+        assertFalse(t.getPoints().get(7).hasMetric(CoverageXmlParser.STATEMENT));
+    }
+
+    @Test
+    public void sameTimestamps() {
+        List<Trend.Point> points = new ArrayList<Trend.Point>();
+        for (int i = 1; i <= 100; i++) {
+            points.add(new Trend.Point(i, "#" + i, 0, new Ratio(i == 50 ? 99 : 1, 100), null, null, null));
+        }
+        Trend t = new Trend(points).downsample(5);
+        assertEquals(5, t.getPoints().size());
+        assertOrdered(t);
+    }
+
+    private static List<Integer> numbers(List<Trend.Point> points) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (Trend.Point p : points) {
+            numbers.add(p.number);
+        }
+        return numbers;
+    }
+
+    @Test
+    public void failedBuildsOfTheHistory() throws IOException {
+        File file = new File(tmp.getRoot(), "codecover-history.idx");
+        Result[] results = { Result.SUCCESS, Result.FAILURE, Result.UNSTABLE, Result.FAILURE, Result.SUCCESS };
+        for (int i = 0; i < results.length; i++) {
+            CoverageHistory.append(file, i + 1, (i + 1) * HOUR, results[i], new Ratio[] { new Ratio(i, 10), null, null, null });
+        }
+        CoverageHistory history = CoverageHistory.read(file);
+        Trend.Window all = new Trend.Window(0, Long.MIN_VALUE, Long.MAX_VALUE, 100);
+
+        // the older builds that failed are left out, but not the build shown
+        List<Trend.Point> points = new ArrayList<Trend.Point>();
+        Trend.addRecords(points, history, 4, all);
+        assertEquals(Arrays.asList(4, 3, 1), numbers(points));
+        assertEquals(30f, points.get(0).values[CoverageXmlParser.STATEMENT], 0.01f);
+
+        points.clear();
+        Trend.addRecords(points, history, 5, all);
+        assertEquals(Arrays.asList(5, 3, 1), numbers(points));
+
+        // limited to the last builds and to the dates
+        points.clear();
+        Trend.addRecords(points, history, 4, new Trend.Window(2, Long.MIN_VALUE, Long.MAX_VALUE, 100));
+        assertEquals(Arrays.asList(4, 3), numbers(points));
+        points.clear();
+        Trend.addRecords(points, history, 5, new Trend.Window(0, 2 * HOUR, 4 * HOUR, 100));
+        assertEquals(Arrays.asList(3), numbers(points));
+    }
+}